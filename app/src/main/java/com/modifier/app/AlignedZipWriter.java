@@ -0,0 +1,224 @@
+package com.modifier.app;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Minimal ZIP writer for APKs.
+ *
+ * STORED entries can be written with their data aligned the way zipalign does: the local header's
+ * extra field is padded and carries the 0xD935 alignment record. apksig reads that record back and
+ * keeps the alignment when it signs, so page alignment of DEX files survives signing (by default it
+ * only page-aligns .so files).
+ *
+ * DEFLATED entries are compressed by a {@link ParallelDeflater} and streamed with a data descriptor,
+ * which {@link java.util.zip.ZipOutputStream} cannot do since it insists on its own single deflater.
+ * No ZIP64: entries and archives are limited to 4 GiB and 65535 entries.
+ */
+class AlignedZipWriter implements Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int VERSION_NEEDED = 20;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+    private static final int ALIGNMENT_EXTRA_MIN_SIZE = 6; // id, data size, alignment
+    private static final long MAX_ZIP32 = 0xFFFFFFFFL;
+
+    private final CountingOutputStream out;
+    private final ParallelDeflater deflater;
+    private final int dosTime;
+    private final int dosDate;
+    private final List<CentralRecord> records = new ArrayList<>();
+
+    private static class CentralRecord {
+        byte[] name;
+        int flags;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+    }
+
+    AlignedZipWriter(File outputFile, ParallelDeflater deflater) throws IOException {
+        this.out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 64 * 1024));
+        this.deflater = deflater;
+        Calendar now = Calendar.getInstance();
+        this.dosTime = (now.get(Calendar.HOUR_OF_DAY) << 11) | (now.get(Calendar.MINUTE) << 5)
+                | (now.get(Calendar.SECOND) >> 1);
+        this.dosDate = ((now.get(Calendar.YEAR) - 1980) << 9) | ((now.get(Calendar.MONTH) + 1) << 5)
+                | now.get(Calendar.DAY_OF_MONTH);
+    }
+
+    /**
+     * Compresses {@code in} at {@code level} into a DEFLATED entry.
+     */
+    void writeDeflated(String name, InputStream in, int level) throws IOException {
+        CentralRecord record = newRecord(name, METHOD_DEFLATED, FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(record, new byte[0]);
+
+        ParallelDeflater.Result result = deflater.deflate(in, out, level);
+        record.crc = result.crc;
+        record.compressedSize = result.compressedSize;
+        record.size = result.uncompressedSize;
+        checkZip32(record.compressedSize, name);
+        checkZip32(record.size, name);
+
+        writeInt(DATA_DESCRIPTOR_SIGNATURE);
+        writeInt((int) record.crc);
+        writeInt((int) record.compressedSize);
+        writeInt((int) record.size);
+    }
+
+    /**
+     * Writes an uncompressed entry whose data starts at a multiple of {@code alignment}.
+     * {@code size} and {@code crc} must describe the data {@code in} delivers.
+     */
+    void writeStored(String name, long size, long crc, int alignment, InputStream in) throws IOException {
+        checkZip32(size, name);
+        CentralRecord record = newRecord(name, METHOD_STORED, 0);
+        record.crc = crc;
+        record.compressedSize = size;
+        record.size = size;
+
+        long dataStart = out.count + LOCAL_HEADER_SIZE + record.name.length + ALIGNMENT_EXTRA_MIN_SIZE;
+        int padding = (int) ((alignment - dataStart % alignment) % alignment);
+        byte[] extra = new byte[ALIGNMENT_EXTRA_MIN_SIZE + padding];
+        putShort(extra, 0, ALIGNMENT_EXTRA_ID);
+        putShort(extra, 2, 2 + padding);
+        putShort(extra, 4, alignment);
+        writeLocalHeader(record, extra);
+
+        long written = PooledIo.copy("repack", in, out);
+        if (written != size) {
+            throw new IOException("Entry " + name + " has " + written + " bytes, expected " + size);
+        }
+    }
+
+    private CentralRecord newRecord(String name, int method, int flags) throws IOException {
+        if (records.size() == 0xFFFF) {
+            throw new IOException("Too many entries for a ZIP without ZIP64");
+        }
+        checkZip32(out.count, name);
+        CentralRecord record = new CentralRecord();
+        record.name = name.getBytes(StandardCharsets.UTF_8);
+        record.method = method;
+        record.flags = flags | (record.name.length != name.length() ? FLAG_UTF8 : 0);
+        record.localHeaderOffset = out.count;
+        records.add(record);
+        return record;
+    }
+
+    private void writeLocalHeader(CentralRecord record, byte[] extra) throws IOException {
+        boolean descriptor = (record.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(VERSION_NEEDED);
+        writeShort(record.flags);
+        writeShort(record.method);
+        writeShort(dosTime);
+        writeShort(dosDate);
+        writeInt(descriptor ? 0 : (int) record.crc);
+        writeInt(descriptor ? 0 : (int) record.compressedSize);
+        writeInt(descriptor ? 0 : (int) record.size);
+        writeShort(record.name.length);
+        writeShort(extra.length);
+        out.write(record.name);
+        out.write(extra);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            long centralDirectoryOffset = out.count;
+            for (CentralRecord record : records) {
+                writeInt(CENTRAL_HEADER_SIGNATURE);
+                writeShort(VERSION_NEEDED); // version made by
+                writeShort(VERSION_NEEDED);
+                writeShort(record.flags);
+                writeShort(record.method);
+                writeShort(dosTime);
+                writeShort(dosDate);
+                writeInt((int) record.crc);
+                writeInt((int) record.compressedSize);
+                writeInt((int) record.size);
+                writeShort(record.name.length);
+                writeShort(0); // extra
+                writeShort(0); // comment
+                writeShort(0); // disk number
+                writeShort(0); // internal attributes
+                writeInt(0); // external attributes
+                writeInt((int) record.localHeaderOffset);
+                out.write(record.name);
+            }
+            long centralDirectorySize = out.count - centralDirectoryOffset;
+            checkZip32(out.count, "central directory");
+            writeInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            writeShort(0);
+            writeShort(0);
+            writeShort(records.size());
+            writeShort(records.size());
+            writeInt((int) centralDirectorySize);
+            writeInt((int) centralDirectoryOffset);
+            writeShort(0); // comment
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void checkZip32(long value, String what) throws IOException {
+        if (value > MAX_ZIP32) {
+            throw new IOException(what + " needs ZIP64, which is not supported");
+        }
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value & 0xFFFF);
+        writeShort((value >>> 16) & 0xFFFF);
+    }
+
+    private static void putShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
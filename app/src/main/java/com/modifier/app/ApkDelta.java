@@ -0,0 +1,699 @@
+package com.modifier.app;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Binary delta from an input APK to the patched, signed APK made from it, and the applier that
+ * rebuilds the patched APK from the input and the delta, byte for byte.
+ *
+ * The delta follows the ZIP structure of the new APK. Every entry's data is described by the
+ * cheapest of:
+ * <ul>
+ * <li>a copy of the raw bytes of the old APK, when the entry's data is unchanged byte for byte
+ * (typically STORED entries);</li>
+ * <li>a reference to the old entry's content plus how it was compressed, when only the
+ * compression differs; the applier re-deflates it with {@link ParallelDeflater}, which produces
+ * the same bytes for the same input and level;</li>
+ * <li>a byte-level diff against the old entry of the same name, for the patched DEX;</li>
+ * <li>the raw bytes themselves.</li>
+ * </ul>
+ * Everything between entry data (local headers, data descriptors, the signing block, the central
+ * directory) is carried literally; it is a few KiB. The whole delta is deflated.
+ *
+ * The delta records the base APK's fingerprint (see {@link JobCheckpoints#fingerprint}) and the
+ * SHA-256 of the new APK. Each reconstructed entry is checked against the CRC of its raw bytes and
+ * the result against the SHA-256, so a device whose zlib compresses differently gets an error,
+ * never a corrupt APK.
+ */
+public class ApkDelta {
+    private static final String TAG = "ApkDelta";
+    public static final String FILE_SUFFIX = ".apkdelta";
+
+    private static final byte[] MAGIC = "APKDELTA".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT = 1;
+
+    private static final int OP_END = 0;
+    private static final int OP_LITERAL = 1;
+    private static final int OP_COPY_RAW = 2;
+    private static final int OP_RECOMPRESS = 3;
+    private static final int OP_DIFF = 4;
+
+    private static final int DIFF_END = 0;
+    private static final int DIFF_INSERT = 1;
+    private static final int DIFF_COPY = 2;
+
+    private static final int STORED = -1; // compression level recorded for STORED entries
+    private static final int BLOCK_SIZE = 16; // granularity of the DEX diff
+    private static final int HASH_MULTIPLIER = 0x01000193;
+    private static final long MAX_DIFF_ENTRY_BYTES = 64L * 1024 * 1024;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int MAX_ZIP_COMMENT = 0xFFFF;
+
+    private ApkDelta() {
+    }
+
+    /** What a delta is made of. */
+    public static class Result {
+        public final long deltaBytes;
+        public final int copiedEntries;
+        public final int recompressedEntries;
+        public final int diffedEntries;
+        public final int literalEntries;
+        public final long literalBytes;
+
+        Result(long deltaBytes, int copiedEntries, int recompressedEntries, int diffedEntries,
+               int literalEntries, long literalBytes) {
+            this.deltaBytes = deltaBytes;
+            this.copiedEntries = copiedEntries;
+            this.recompressedEntries = recompressedEntries;
+            this.diffedEntries = diffedEntries;
+            this.literalEntries = literalEntries;
+            this.literalBytes = literalBytes;
+        }
+
+        @Override
+        public String toString() {
+            return deltaBytes / 1024 + " KiB: " + copiedEntries + " copied, " + recompressedEntries
+                    + " recompressed, " + diffedEntries + " diffed, " + literalEntries + " literal entries, "
+                    + literalBytes / 1024 + " KiB literal";
+        }
+    }
+
+    /** Location and CRCs of one entry's data, from the central directory. */
+    private static class EntryData {
+        final String name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        long dataOffset;
+
+        EntryData(String name, int method, long crc, long compressedSize, long size) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Writes the delta that turns {@code oldApk} into {@code newApk} to {@code deltaFile}.
+     * {@code profile} is the one {@code newApk} was written with; it tells which compression level
+     * to try when re-deflating an entry.
+     */
+    public static Result create(File oldApk, File newApk, File deltaFile, OutputProfile profile,
+                                ParallelDeflater deflater) throws IOException {
+        long start = System.nanoTime();
+        Map<String, EntryData> oldEntries = new HashMap<>();
+        try (RandomAccessFile oldFile = new RandomAccessFile(oldApk, "r")) {
+            for (EntryData entry : readEntries(oldFile)) {
+                oldEntries.put(entry.name, entry);
+            }
+        }
+        int copied = 0;
+        int recompressed = 0;
+        int diffed = 0;
+        int literal = 0;
+        long literalBytes = 0;
+
+        try (RandomAccessFile newFile = new RandomAccessFile(newApk, "r");
+             RandomAccessFile oldFile = new RandomAccessFile(oldApk, "r");
+             ZipFile oldZip = new ZipFile(oldApk);
+             OutputStream fileOut = new FileOutputStream(deltaFile)) {
+            fileOut.write(MAGIC);
+            Deflater deltaDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream(fileOut, deltaDeflater, PooledIo.BUFFER_SIZE);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(deflaterOut, PooledIo.BUFFER_SIZE));
+            out.writeInt(FORMAT);
+            out.writeUTF(JobCheckpoints.fingerprint(oldApk));
+            out.writeLong(newFile.length());
+            out.write(PooledIo.digest("delta hash", newApk, newSha256()));
+
+            List<EntryData> newEntries = readEntries(newFile);
+            long position = 0;
+            for (EntryData entry : newEntries) {
+                if (entry.dataOffset > position) {
+                    literalBytes += writeLiteral(out, newFile, position, entry.dataOffset - position);
+                }
+                EntryData oldEntry = oldEntries.get(entry.name);
+                boolean sameContent = oldEntry != null && oldEntry.crc == entry.crc && oldEntry.size == entry.size;
+                if (sameContent && oldEntry.method == entry.method && oldEntry.compressedSize == entry.compressedSize
+                        && rangesEqual(oldFile, oldEntry.dataOffset, newFile, entry.dataOffset, entry.compressedSize)) {
+                    out.writeByte(OP_COPY_RAW);
+                    out.writeLong(oldEntry.dataOffset);
+                    out.writeLong(entry.compressedSize);
+                    copied++;
+                } else if (oldEntry == null || oldEntry.size > MAX_DIFF_ENTRY_BYTES || entry.size > MAX_DIFF_ENTRY_BYTES
+                        || entry.compressedSize > MAX_DIFF_ENTRY_BYTES) {
+                    literalBytes += writeLiteral(out, newFile, entry.dataOffset, entry.compressedSize);
+                    literal++;
+                } else {
+                    // Same content compressed differently, or changed content: rebuild from the old entry
+                    // if encoding the content again reproduces the raw bytes exactly
+                    byte[] raw = readRange(newFile, entry.dataOffset, entry.compressedSize);
+                    long rawCrc = crc32(raw);
+                    int level = entry.method == ZipEntry.STORED ? STORED : profile.compressionLevelFor(entry.name);
+                    byte[] oldContent = readContent(oldZip, oldEntry);
+                    byte[] content = sameContent ? oldContent
+                            : entry.method == ZipEntry.STORED ? raw : inflate(raw, entry.size);
+                    if (!reproduces(content, level, raw, rawCrc, deflater)) {
+                        literalBytes += writeLiteral(out, raw);
+                        literal++;
+                    } else if (sameContent) {
+                        out.writeByte(OP_RECOMPRESS);
+                        out.writeUTF(oldEntry.name);
+                        out.writeInt(level);
+                        out.writeLong(entry.compressedSize);
+                        out.writeInt((int) rawCrc);
+                        recompressed++;
+                    } else {
+                        out.writeByte(OP_DIFF);
+                        out.writeUTF(oldEntry.name);
+                        out.writeInt(level);
+                        out.writeLong(entry.compressedSize);
+                        out.writeInt((int) rawCrc);
+                        out.writeLong(content.length);
+                        writeDiff(oldContent, content, out);
+                        diffed++;
+                    }
+                }
+                position = entry.dataOffset + entry.compressedSize;
+            }
+            if (newFile.length() > position) {
+                literalBytes += writeLiteral(out, newFile, position, newFile.length() - position);
+            }
+            out.writeByte(OP_END);
+            out.flush();
+            deflaterOut.finish();
+            deltaDeflater.end();
+        }
+        Result result = new Result(deltaFile.length(), copied, recompressed, diffed, literal, literalBytes);
+        Log.i(TAG, "Delta " + deltaFile.getName() + " for " + newApk.length() / 1024 + " KiB APK: " + result
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return result;
+    }
+
+    /**
+     * Rebuilds the APK described by {@code deltaFile} from {@code oldApk} into {@code outputApk}.
+     * On any mismatch the output is deleted and an IOException thrown.
+     */
+    public static void apply(File oldApk, File deltaFile, File outputApk, ParallelDeflater deflater) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try (InputStream fileIn = new FileInputStream(deltaFile);
+             RandomAccessFile oldFile = new RandomAccessFile(oldApk, "r");
+             ZipFile oldZip = new ZipFile(oldApk);
+             OutputStream fileOut = new FileOutputStream(outputApk)) {
+            byte[] magic = new byte[MAGIC.length];
+            if (fileIn.read(magic) != magic.length || !Arrays.equals(magic, MAGIC)) {
+                throw new IOException(deltaFile.getName() + " is not an APK delta");
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(fileIn), PooledIo.BUFFER_SIZE));
+            int format = in.readInt();
+            if (format != FORMAT) {
+                throw new IOException("Unsupported delta format " + format);
+            }
+            if (!in.readUTF().equals(JobCheckpoints.fingerprint(oldApk))) {
+                throw new IOException("Delta was made against a different base APK than " + oldApk.getName());
+            }
+            long expectedLength = in.readLong();
+            byte[] expectedSha256 = new byte[32];
+            in.readFully(expectedSha256);
+
+            MessageDigest digest = newSha256();
+            DigestOutputStream out = new DigestOutputStream(
+                    new BufferedOutputStream(fileOut, PooledIo.BUFFER_SIZE), digest);
+            int op;
+            while ((op = in.readUnsignedByte()) != OP_END) {
+                switch (op) {
+                    case OP_LITERAL:
+                        copyStream(in, out, in.readLong());
+                        break;
+                    case OP_COPY_RAW: {
+                        long offset = in.readLong();
+                        long length = in.readLong();
+                        oldFile.seek(offset);
+                        copyStream(new RandomAccessFileInputStream(oldFile), out, length);
+                        break;
+                    }
+                    case OP_RECOMPRESS: {
+                        String oldName = in.readUTF();
+                        int level = in.readInt();
+                        long rawLength = in.readLong();
+                        int rawCrc = in.readInt();
+                        writeEncoded(readContent(oldZip, entryOf(oldZip, oldName)), level, rawLength, rawCrc,
+                                oldName, deflater, out);
+                        break;
+                    }
+                    case OP_DIFF: {
+                        String oldName = in.readUTF();
+                        int level = in.readInt();
+                        long rawLength = in.readLong();
+                        int rawCrc = in.readInt();
+                        long contentLength = in.readLong();
+                        byte[] content = applyDiff(readContent(oldZip, entryOf(oldZip, oldName)), contentLength, in);
+                        writeEncoded(content, level, rawLength, rawCrc, oldName, deflater, out);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Corrupt delta: unknown op " + op);
+                }
+            }
+            out.flush();
+            if (outputApk.length() != expectedLength || !MessageDigest.isEqual(digest.digest(), expectedSha256)) {
+                throw new IOException("Rebuilt APK does not match the delta's checksum");
+            }
+            ok = true;
+        } catch (EOFException e) {
+            throw new IOException("Delta " + deltaFile.getName() + " is truncated", e);
+        } finally {
+            if (!ok && outputApk.exists() && !outputApk.delete()) {
+                Log.w(TAG, "Failed to delete " + outputApk.getAbsolutePath());
+            }
+        }
+        Log.i(TAG, "Rebuilt " + outputApk.getName() + " (" + outputApk.length() / 1024 + " KiB) from "
+                + deltaFile.getName() + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static ZipEntry entryOf(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("Base APK has no entry " + name);
+        }
+        return entry;
+    }
+
+    /** Writes {@code content} compressed like the original entry and checks the result. */
+    private static void writeEncoded(byte[] content, int level, long rawLength, int rawCrc, String name,
+                                     ParallelDeflater deflater, OutputStream out) throws IOException {
+        CRC32 crc = new CRC32();
+        CountingStream counter = new CountingStream(out);
+        encode(content, level, deflater, new CheckedOutputStream(counter, crc));
+        if (counter.count != rawLength || (int) crc.getValue() != rawCrc) {
+            throw new IOException("Re-compressing " + name + " did not reproduce the patched APK's bytes");
+        }
+    }
+
+    private static void encode(byte[] content, int level, ParallelDeflater deflater, OutputStream out)
+            throws IOException {
+        if (level == STORED) {
+            out.write(content);
+        } else {
+            deflater.deflate(new ByteArrayInputStream(content), out, level);
+        }
+    }
+
+    /** Whether encoding {@code content} at {@code level} gives exactly {@code raw}. */
+    private static boolean reproduces(byte[] content, int level, byte[] raw, long rawCrc, ParallelDeflater deflater)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        CountingStream counter = new CountingStream(null);
+        encode(content, level, deflater, new CheckedOutputStream(counter, crc));
+        return counter.count == raw.length && crc.getValue() == rawCrc;
+    }
+
+    /**
+     * Encodes {@code target} as copies from {@code base} and inserted bytes. Every
+     * {@link #BLOCK_SIZE}-aligned block of the base is indexed by a rolling hash; the target is
+     * scanned byte by byte and each hit is extended as far as the bytes agree in both directions.
+     */
+    static void writeDiff(byte[] base, byte[] target, DataOutputStream out) throws IOException {
+        int blocks = base.length / BLOCK_SIZE;
+        int tableSize = Integer.highestOneBit(Math.max(16, blocks * 2)) << 1;
+        int mask = tableSize - 1;
+        int[] tableHashes = new int[tableSize];
+        int[] tableOffsets = new int[tableSize];
+        Arrays.fill(tableOffsets, -1);
+        for (int block = 0; block < blocks; block++) {
+            int offset = block * BLOCK_SIZE;
+            int hash = hash(base, offset);
+            int slot = mix(hash) & mask;
+            while (tableOffsets[slot] != -1 && tableHashes[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            if (tableOffsets[slot] == -1) { // first occurrence wins
+                tableHashes[slot] = hash;
+                tableOffsets[slot] = offset;
+            }
+        }
+
+        int highPower = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            highPower *= HASH_MULTIPLIER;
+        }
+        int literalStart = 0;
+        int position = 0;
+        int hash = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+        while (position + BLOCK_SIZE <= target.length) {
+            int match = -1;
+            int slot = mix(hash) & mask;
+            while (tableOffsets[slot] != -1) {
+                if (tableHashes[slot] == hash && regionsEqual(base, tableOffsets[slot], target, position, BLOCK_SIZE)) {
+                    match = tableOffsets[slot];
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (match < 0) {
+                if (position + BLOCK_SIZE < target.length) {
+                    hash = (hash - (target[position] & 0xFF) * highPower) * HASH_MULTIPLIER
+                            + (target[position + BLOCK_SIZE] & 0xFF);
+                }
+                position++;
+                continue;
+            }
+            int length = BLOCK_SIZE;
+            while (match + length < base.length && position + length < target.length
+                    && base[match + length] == target[position + length]) {
+                length++;
+            }
+            while (position > literalStart && match > 0 && base[match - 1] == target[position - 1]) {
+                match--;
+                position--;
+                length++;
+            }
+            writeInsert(out, target, literalStart, position - literalStart);
+            out.writeByte(DIFF_COPY);
+            out.writeInt(match);
+            out.writeInt(length);
+            position += length;
+            literalStart = position;
+            if (position + BLOCK_SIZE <= target.length) {
+                hash = hash(target, position);
+            }
+        }
+        writeInsert(out, target, literalStart, target.length - literalStart);
+        out.writeByte(DIFF_END);
+    }
+
+    private static byte[] applyDiff(byte[] base, long targetLength, DataInputStream in) throws IOException {
+        if (targetLength > MAX_DIFF_ENTRY_BYTES) {
+            throw new IOException("Corrupt delta: diff target of " + targetLength + " bytes");
+        }
+        byte[] target = new byte[(int) targetLength];
+        int position = 0;
+        int op;
+        while ((op = in.readUnsignedByte()) != DIFF_END) {
+            if (op == DIFF_INSERT) {
+                int length = in.readInt();
+                checkRange(position, length, target.length);
+                in.readFully(target, position, length);
+                position += length;
+            } else if (op == DIFF_COPY) {
+                int offset = in.readInt();
+                int length = in.readInt();
+                checkRange(position, length, target.length);
+                checkRange(offset, length, base.length);
+                System.arraycopy(base, offset, target, position, length);
+                position += length;
+            } else {
+                throw new IOException("Corrupt delta: unknown diff op " + op);
+            }
+        }
+        if (position != target.length) {
+            throw new IOException("Corrupt delta: diff produced " + position + " of " + target.length + " bytes");
+        }
+        return target;
+    }
+
+    private static void checkRange(int offset, int length, int limit) throws IOException {
+        if (offset < 0 || length < 0 || offset > limit - length) {
+            throw new IOException("Corrupt delta: range " + offset + "+" + length + " outside " + limit);
+        }
+    }
+
+    private static void writeInsert(DataOutputStream out, byte[] bytes, int offset, int length) throws IOException {
+        if (length > 0) {
+            out.writeByte(DIFF_INSERT);
+            out.writeInt(length);
+            out.write(bytes, offset, length);
+        }
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            hash = hash * HASH_MULTIPLIER + (bytes[offset + i] & 0xFF);
+        }
+        return hash;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionsEqual(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long writeLiteral(DataOutputStream out, byte[] raw) throws IOException {
+        out.writeByte(OP_LITERAL);
+        out.writeLong(raw.length);
+        out.write(raw);
+        return raw.length;
+    }
+
+    private static long writeLiteral(DataOutputStream out, RandomAccessFile file, long offset, long length)
+            throws IOException {
+        out.writeByte(OP_LITERAL);
+        out.writeLong(length);
+        file.seek(offset);
+        copyStream(new RandomAccessFileInputStream(file), out, length);
+        return length;
+    }
+
+    private static boolean rangesEqual(RandomAccessFile a, long aOffset, RandomAccessFile b, long bOffset, long length)
+            throws IOException {
+        byte[] aBuffer = PooledIo.acquireArray();
+        byte[] bBuffer = PooledIo.acquireArray();
+        try {
+            for (long done = 0; done < length; ) {
+                int chunk = (int) Math.min(aBuffer.length, length - done);
+                a.seek(aOffset + done);
+                a.readFully(aBuffer, 0, chunk);
+                b.seek(bOffset + done);
+                b.readFully(bBuffer, 0, chunk);
+                if (!regionsEqual(aBuffer, 0, bBuffer, 0, chunk)) {
+                    return false;
+                }
+                done += chunk;
+            }
+            return true;
+        } finally {
+            PooledIo.releaseArray(aBuffer);
+            PooledIo.releaseArray(bBuffer);
+        }
+    }
+
+    private static void copyStream(InputStream in, OutputStream out, long length) throws IOException {
+        long start = System.nanoTime();
+        byte[] buffer = PooledIo.acquireArray();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            PooledIo.releaseArray(buffer);
+            PooledIo.record("delta", length, start);
+        }
+    }
+
+    /**
+     * Reads the central directory and resolves where each entry's data starts, sorted by position.
+     */
+    private static List<EntryData> readEntries(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        int tailSize = (int) Math.min(length, EOCD_MIN_SIZE + MAX_ZIP_COMMENT);
+        byte[] tail = readRange(file, length - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_MIN_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("No ZIP end of central directory found");
+        }
+        int count = readShort(tail, eocd + 10);
+        long directorySize = readInt(tail, eocd + 12) & 0xFFFFFFFFL;
+        long directoryOffset = readInt(tail, eocd + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL || directoryOffset + directorySize > length) {
+            throw new IOException("ZIP64 or damaged central directory not supported");
+        }
+        byte[] directory = readRange(file, directoryOffset, directorySize);
+
+        List<EntryData> entries = new ArrayList<>(count);
+        int position = 0;
+        byte[] localHeader = new byte[30];
+        for (int i = 0; i < count; i++) {
+            if (position + 46 > directory.length || readInt(directory, position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Damaged central directory");
+            }
+            int nameLength = readShort(directory, position + 28);
+            int extraLength = readShort(directory, position + 30);
+            int commentLength = readShort(directory, position + 32);
+            String name = new String(directory, position + 46, nameLength, StandardCharsets.UTF_8);
+            EntryData entry = new EntryData(name, readShort(directory, position + 10),
+                    readInt(directory, position + 16) & 0xFFFFFFFFL,
+                    readInt(directory, position + 20) & 0xFFFFFFFFL,
+                    readInt(directory, position + 24) & 0xFFFFFFFFL);
+            long localOffset = readInt(directory, position + 42) & 0xFFFFFFFFL;
+            file.seek(localOffset);
+            file.readFully(localHeader);
+            if (readInt(localHeader, 0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("Damaged local header of " + name);
+            }
+            entry.dataOffset = localOffset + 30 + readShort(localHeader, 26) + readShort(localHeader, 28);
+            entries.add(entry);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        Collections.sort(entries, Comparator.comparingLong(entry -> entry.dataOffset));
+        return entries;
+    }
+
+    private static byte[] readContent(ZipFile zip, EntryData entry) throws IOException {
+        return readContent(zip, entryOf(zip, entry.name));
+    }
+
+    private static byte[] readContent(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            return PooledIo.readFully("delta", in, entry.getSize());
+        }
+    }
+
+    private static byte[] inflate(byte[] raw, long size) throws IOException {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(raw),
+                new Inflater(true))) {
+            return PooledIo.readFully("delta", in, size);
+        }
+    }
+
+    private static byte[] readRange(RandomAccessFile file, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Range of " + length + " bytes too large");
+        }
+        byte[] bytes = new byte[(int) length];
+        file.seek(offset);
+        file.readFully(bytes);
+        return bytes;
+    }
+
+    private static long crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /** Counts what goes through; with a null target it only counts. */
+    private static class CountingStream extends FilterOutputStream {
+        long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (out != null) {
+                out.write(b);
+            }
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out != null) {
+                out.write(b, off, len);
+            }
+            count += len;
+        }
+    }
+
+    /** Reads a RandomAccessFile from its current position without closing it. */
+    private static class RandomAccessFileInputStream extends InputStream {
+        private final RandomAccessFile file;
+
+        RandomAccessFileInputStream(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return file.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return file.read(b, off, len);
+        }
+    }
+}
@@ -6,32 +6,49 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.android.apksig.ApkSigner;
+import com.android.apksig.util.DataSinks;
+import com.android.apksig.util.DataSources;
 
 import org.jf.baksmali.Baksmali;
 import org.jf.baksmali.BaksmaliOptions;
 import org.jf.dexlib2.DexFileFactory;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
 import org.jf.smali.Smali;
 import org.jf.smali.SmaliOptions;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -41,9 +58,9 @@ public class ApkProcessor {
     private final Context context;
 
     // Hardcoded values for modification
-    private static final String TARGET_CLASS_PATH = "com/applisto/appcloner/classes/DefaultProvider";
-    private static final String TARGET_METHOD_SIGNATURE = ".method public onCreate(Landroid/content/Context;)Z";
-    private static final String REPLACEMENT_METHOD_SMALI =
+    static final String TARGET_CLASS_PATH = "com/applisto/appcloner/classes/DefaultProvider";
+    static final String TARGET_METHOD_SIGNATURE = ".method public onCreate(Landroid/content/Context;)Z";
+    static final String REPLACEMENT_METHOD_SMALI =
         ".method public onCreate(Landroid/content/Context;)Z\n" +
         "    .registers 3\n" +
         "\n" +
@@ -72,171 +89,783 @@ public class ApkProcessor {
         "    return v0\n" +
         ".end method";
 
+    // Identifies the patch in the patched-DEX cache; changes whenever the target or replacement changes
+    private static final String PATCH_ID = computePatchId(TARGET_CLASS_PATH, TARGET_METHOD_SIGNATURE, REPLACEMENT_METHOD_SMALI);
+
+    // Stages of a single-APK job that survive a killed process, see JobCheckpoints
+    private static final String CHECKPOINT_LOCATED_DEX = "located_dex";
+    private static final String CHECKPOINT_PATCHED_DEX = "patched_dex";
+    private static final String CHECKPOINT_UNSIGNED_APK = "unsigned_apk";
+
+    // Compressed smali kept in memory at most by the whole-DEX round trip, the rest spills to disk
+    private static final long SMALI_TREE_MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+
+    private final PatchedDexCache patchedDexCache;
+    private final JobCheckpoints jobCheckpoints;
+    private final DexProbeHints dexProbeHints;
+    private final PatchabilityVerifier patchabilityVerifier;
+    private final ResourceGovernor resourceGovernor;
+    private final ComputeScheduler computeScheduler;
+    private final WorkspaceJanitor workspaceJanitor;
+    // Where per-job Chrome trace files go; null disables the export (Trace sections are always emitted)
+    private volatile File traceOutputDirectory;
+    // Layout of written APKs; read once per job
+    private volatile OutputProfile outputProfile = OutputProfile.COMPATIBLE;
+    // Whether single-APK jobs also write a delta from the input next to the output
+    private volatile boolean deltaOutputEnabled;
+
     public ApkProcessor(Context context) {
         this.context = context;
+        this.patchedDexCache = new PatchedDexCache(new File(context.getCacheDir(), "patched_dex_cache"));
+        this.jobCheckpoints = new JobCheckpoints(new File(context.getFilesDir(), "job_checkpoints"));
+        this.dexProbeHints = new DexProbeHints(context);
+        this.patchabilityVerifier = new PatchabilityVerifier(TARGET_CLASS_PATH, TARGET_METHOD_SIGNATURE);
+        this.resourceGovernor = new ResourceGovernor(context);
+        this.computeScheduler = ComputeScheduler.getInstance(context);
+        this.workspaceJanitor = WorkspaceJanitor.getInstance(context);
     }
 
     public interface ProgressListener {
         void onProgress(String status);
     }
 
+    /** A CPU-heavy stage that sizes its own fan-out by the permits it was given. */
+    private interface CpuStage<T> {
+        T run(int permits) throws Exception;
+    }
+
     public static class ProcessingResult {
         public final boolean success;
         public final String message;
         public final File outputFile;
         public final Exception exception;
+        /** Memory plan chosen for the DEX rewrite, or null if no DEX had to be rewritten. */
+        public final ResourceGovernor.ExecutionPlan executionPlan;
+        // Set by processAndSignApk once the job is done
+        private Map<String, Long> stageMillis = Collections.emptyMap();
+        private File deltaFile;
 
         public ProcessingResult(boolean success, String message, File outputFile, Exception exception) {
+            this(success, message, outputFile, exception, null);
+        }
+
+        public ProcessingResult(boolean success, String message, File outputFile, Exception exception,
+                                ResourceGovernor.ExecutionPlan executionPlan) {
             this.success = success;
             this.message = message;
             this.outputFile = outputFile;
             this.exception = exception;
+            this.executionPlan = executionPlan;
+        }
+
+        /** Wall time per pipeline stage in milliseconds, see {@link PipelineTracer#sectionMillis()}. */
+        public Map<String, Long> getStageMillis() {
+            return stageMillis;
+        }
+
+        /**
+         * Delta from the input APK to {@link #outputFile}, see {@link ApkDelta}; null unless
+         * {@link #setDeltaOutputEnabled} was on and the delta could be written.
+         */
+        public File getDeltaFile() {
+            return deltaFile;
+        }
+    }
+
+    /**
+     * Result of the speculative pre-stage run when an input is selected: DEX probe order and the
+     * patchability verdict, so that processing only has to patch and sign. Only valid for the
+     * exact file it was computed from.
+     */
+    public static class PreparedInput {
+        public final File inputFile;
+        public final boolean bundle;
+        /** Verdict for a single APK; null for bundles, whose splits are checked at process time. */
+        public final PatchabilityVerifier.Result verification;
+        final DexProbeHints.HintKey hintKey;
+        private final long length;
+        private final long lastModified;
+
+        PreparedInput(File inputFile, boolean bundle, PatchabilityVerifier.Result verification,
+                      DexProbeHints.HintKey hintKey) {
+            this.inputFile = inputFile;
+            this.bundle = bundle;
+            this.verification = verification;
+            this.hintKey = hintKey;
+            this.length = inputFile.length();
+            this.lastModified = inputFile.lastModified();
+        }
+
+        boolean isValidFor(File file) {
+            return file.equals(inputFile) && file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * Pre-stage for a freshly selected input: opens the archive, builds the DEX probe order, verifies
+     * the target method and warms up the signer. Meant to run speculatively in the background and to
+     * be cancelled through interruption when the selection changes. Returns null for inputs that are
+     * not local files.
+     */
+    public PreparedInput prepareInput(Uri inputApkUri, List<ApkSigner.SignerConfig> signerConfigs) throws Exception {
+        if (!"file".equals(inputApkUri.getScheme()) || inputApkUri.getPath() == null) {
+            return null;
+        }
+        File inputFile = new File(inputApkUri.getPath());
+        PipelineTracer tracer = new PipelineTracer("pre-check " + inputFile.getName());
+
+        try (PipelineTracer.Section jobSection = tracer.section("pre-check")) {
+            try (PipelineTracer.Section section = tracer.section("warm up signer")) {
+                warmUpSigner(signerConfigs);
+            }
+            if (SplitBundle.isBundle(inputFile)) {
+                return new PreparedInput(inputFile, true, null, null);
+            }
+
+            try (PipelineTracer.Section section = tracer.section("verify")) {
+                List<String> sortedDexPaths = getSortedDexFilePaths(inputFile);
+                DexProbeHints.HintKey hintKey = dexProbeHints.keyFor(inputFile, sortedDexPaths.size());
+                sortedDexPaths = dexProbeHints.applyHint(hintKey, sortedDexPaths);
+                PatchabilityVerifier.Result verification = patchabilityVerifier.verifyApk(inputFile, sortedDexPaths);
+                return new PreparedInput(inputFile, false, verification, hintKey);
+            }
+        } finally {
+            exportTrace(tracer, "pre_check");
+        }
+    }
+
+    /**
+     * Runs every engine once on a tiny class so a long-lived caller (see {@link PatchDaemon}) pays for
+     * class loading, Smali's grammar setup, dexlib2's reader and writer and the signer up front
+     * instead of on its first job. Failures are logged; the real jobs report them again.
+     */
+    public void warmUp(List<ApkSigner.SignerConfig> signerConfigs) {
+        warmUpSigner(signerConfigs);
+        File scratchDir = null;
+        try {
+            scratchDir = workspaceJanitor.createWorkspace(WorkspaceJanitor.WORKSPACE_PREFIX + "warmup_");
+            File smaliFile = new File(scratchDir, "WarmUp.smali");
+            try (FileWriter writer = new FileWriter(smaliFile)) {
+                writer.write(".class public L" + TARGET_CLASS_PATH + ";\n"
+                        + ".super Ljava/lang/Object;\n\n"
+                        + ".field private static sCreated:Z\n\n"
+                        + REPLACEMENT_METHOD_SMALI + "\n");
+            }
+            File dexFile = new File(scratchDir, "classes.dex");
+            reassembleSmaliToDex(scratchDir, dexFile, 1);
+            DexBackedDexFile dex = DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault());
+            DexPool dexPool = new DexPool(dex.getOpcodes());
+            for (ClassDef classDef : dex.getClasses()) {
+                dexPool.internClass(classDef);
+            }
+            dexPool.writeTo(new MemoryDataStore());
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Engine warm-up failed", e);
+        } finally {
+            workspaceJanitor.discard(scratchDir);
+        }
+    }
+
+    /**
+     * Signs a one-entry APK in memory with the real keys and the same settings as {@link #signApk},
+     * so apksig's classes, its v1/v2 signing code and the JCA digest and signature implementations
+     * are loaded before the first real signing run.
+     */
+    private void warmUpSigner(List<ApkSigner.SignerConfig> signerConfigs) {
+        try {
+            ByteArrayOutputStream apk = new ByteArrayOutputStream();
+            try (ZipOutputStream zos = new ZipOutputStream(apk)) {
+                zos.putNextEntry(new ZipEntry("classes.dex"));
+                zos.write(new byte[1]);
+                zos.closeEntry();
+            }
+            newSignerBuilder(signerConfigs)
+                    .setInputApk(DataSources.asDataSource(ByteBuffer.wrap(apk.toByteArray())))
+                    .setOutputApk(DataSinks.newInMemoryDataSink())
+                    .build()
+                    .sign();
+        } catch (Exception e) {
+            // Only a warm-up, the signer reports real problems when it runs
+            Log.w(TAG, "Signer warm-up failed", e);
         }
     }
 
     public ProcessingResult processAndSignApk(Uri inputApkUri, File outputFile,
                                               List<ApkSigner.SignerConfig> signerConfigs,
                                               ProgressListener progressListener) {
+        return processAndSignApk(inputApkUri, outputFile, signerConfigs, null, progressListener);
+    }
+
+    /**
+     * Same as {@link #processAndSignApk(Uri, File, List, ProgressListener)}, reusing the result of
+     * {@link #prepareInput} when it is still valid for the input.
+     */
+    public ProcessingResult processAndSignApk(Uri inputApkUri, File outputFile,
+                                              List<ApkSigner.SignerConfig> signerConfigs,
+                                              PreparedInput preparedInput,
+                                              ProgressListener progressListener) {
+        return processAndSignApk(inputApkUri, outputFile, null, signerConfigs, preparedInput, progressListener);
+    }
+
+    /**
+     * Same as {@link #processAndSignApk(Uri, File, List, PreparedInput, ProgressListener)} for an
+     * {@code outputFile} whose own name means nothing to the user, such as a {@code /proc/self/fd}
+     * path into a document. Progress messages show {@code outputName} instead, and the result
+     * carries no output file since the path stops working once the caller closes the descriptor.
+     */
+    public ProcessingResult processAndSignApk(Uri inputApkUri, File outputFile, String outputName,
+                                              List<ApkSigner.SignerConfig> signerConfigs,
+                                              PreparedInput preparedInput,
+                                              ProgressListener progressListener) {
+        PipelineTracer tracer = new PipelineTracer("process " + inputApkUri.getLastPathSegment());
+        ProcessingResult result = processAndSignApk(inputApkUri, outputFile,
+                outputName != null ? outputName : outputFile.getName(), signerConfigs, preparedInput,
+                tracer, progressListener);
+        if (outputName != null && result.outputFile != null) {
+            ProcessingResult withoutPath = new ProcessingResult(result.success, result.message, null,
+                    result.exception, result.executionPlan);
+            withoutPath.deltaFile = result.deltaFile;
+            result = withoutPath;
+        }
+        result.stageMillis = tracer.sectionMillis();
+        return result;
+    }
+
+    private ProcessingResult processAndSignApk(Uri inputApkUri, File outputFile, String outputName,
+                                               List<ApkSigner.SignerConfig> signerConfigs,
+                                               PreparedInput preparedInput, PipelineTracer tracer,
+                                               ProgressListener progressListener) {
         File tempDir = null;
-        File tempUnsignedApk = null;
+        try (PipelineTracer.Section jobSection = tracer.section("job")) {
+            tempDir = workspaceJanitor.createWorkspace(WorkspaceJanitor.WORKSPACE_PREFIX);
 
-        try {
-            tempDir = Files.createTempDirectory("apk_processing_").toFile();
-            tempUnsignedApk = new File(tempDir, "unsigned_modified.apk");
+            File tempInputFile;
+            try (PipelineTracer.Section section = tracer.section("resolve input")) {
+                tempInputFile = resolveInputFile(inputApkUri, new File(tempDir, "input.apk"), progressListener);
+            }
+
+            OutputProfile profile = outputProfile;
+            if (SplitBundle.isBundle(tempInputFile)) {
+                if (deltaOutputEnabled) {
+                    // ApkDelta describes one APK's entries; a bundle would need one per split
+                    progressListener.onProgress("Delta output is not supported for split bundles");
+                    return new ProcessingResult(false, "Delta output is only supported for single APKs, "
+                            + inputApkUri.getLastPathSegment() + " is a split bundle", null, null);
+                }
+                return processAndSignBundle(tempInputFile, outputFile, outputName, signerConfigs, tempDir,
+                        profile, tracer, progressListener);
+            }
+            if (preparedInput != null && !preparedInput.isValidFor(tempInputFile)) {
+                preparedInput = null; // input changed since the pre-stage ran
+            }
+            return patchAndSignApkFile(tempInputFile, outputFile, outputName, signerConfigs, tempDir,
+                    preparedInput, profile, tracer, progressListener);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing APK", e);
+            progressListener.onProgress("Error: " + e.getMessage());
+            return new ProcessingResult(false, "Processing failed: " + e.getMessage(), null, e);
+        } finally {
+            // Only a rename here; the files are deleted in the background
+            try (PipelineTracer.Section section = tracer.section("cleanup")) {
+                workspaceJanitor.discard(tempDir);
+            }
+            exportTrace(tracer, "process");
+        }
+    }
+
+    /**
+     * Patches and signs a single local APK. Intermediate files go below {@code tempDir}, which the
+     * caller owns and cleans up; the results of the expensive stages are moved into the job's
+     * {@link JobCheckpoints} so a re-run after the process was killed picks up where it stopped.
+     */
+    private ProcessingResult patchAndSignApkFile(File tempInputFile, File outputFile, String outputName,
+                                                 List<ApkSigner.SignerConfig> signerConfigs,
+                                                 File tempDir, PreparedInput preparedInput, OutputProfile profile,
+                                                 PipelineTracer tracer, ProgressListener progressListener)
+            throws Exception {
+        JobCheckpoints.Job checkpoint;
+        try (PipelineTracer.Section section = tracer.section("open checkpoints")) {
+            checkpoint = jobCheckpoints.open(tempInputFile, PATCH_ID, profile.layoutKey());
+        }
+        ResourceGovernor.ExecutionPlan executionPlan = null;
+
+        File unsignedApk = checkpoint.getFile(CHECKPOINT_UNSIGNED_APK);
+        if (unsignedApk != null) {
+            progressListener.onProgress("Resuming from checkpoint: unsigned APK already built");
+        } else {
+            String patchedDexEntryPath = checkpoint.getValue(CHECKPOINT_PATCHED_DEX);
+            File patchedDexFile = patchedDexEntryPath != null ? checkpoint.getFile(CHECKPOINT_PATCHED_DEX) : null;
+            if (patchedDexFile != null) {
+                progressListener.onProgress("Resuming from checkpoint: patched " + patchedDexEntryPath);
+            } else {
+                patchedDexEntryPath = checkpoint.getValue(CHECKPOINT_LOCATED_DEX);
+                DexProbeHints.HintKey hintKey = null;
+                if (patchedDexEntryPath != null) {
+                    progressListener.onProgress("Resuming from checkpoint: method is in " + patchedDexEntryPath);
+                } else {
+                    VerifiedTarget target = verifyTarget(tempInputFile, preparedInput, tracer, progressListener);
+                    PatchabilityVerifier.Result verification = target.verification;
+                    hintKey = target.hintKey;
+                    if (!verification.isPatchable()) {
+                        progressListener.onProgress("Not patchable: " + verification.message);
+                        return new ProcessingResult(false, verification.message, null, null);
+                    }
+                    progressListener.onProgress(verification.message);
+                    patchedDexEntryPath = verification.dexEntryPath;
+                    checkpoint.recordValue(CHECKPOINT_LOCATED_DEX, patchedDexEntryPath);
+                }
+
+                // Only the DEX that holds the method needs to go through the patch step
+                PatchedDex patchedDex = patchDex(tempInputFile, patchedDexEntryPath, tempDir, tracer, progressListener);
+                if (patchedDex == null) {
+                    return new ProcessingResult(false, "Target method not found in any DEX file, or modification failed.", null, null);
+                }
+                executionPlan = patchedDex.executionPlan;
+                patchedDexFile = checkpoint.recordFile(CHECKPOINT_PATCHED_DEX, patchedDexEntryPath, patchedDex.file);
+                // Only a DEX that was actually patched becomes the first probe for the next run
+                dexProbeHints.recordHit(hintKey, patchedDexEntryPath);
+            }
+
+            progressListener.onProgress("Updating APK with modified " + patchedDexEntryPath);
+            unsignedApk = new File(tempDir, "unsigned_modified.apk");
+            try (PipelineTracer.Section section = tracer.section("update apk");
+                 ParallelDeflater deflater = new ParallelDeflater(computeScheduler.cpuExecutor(),
+                         Runtime.getRuntime().availableProcessors())) {
+                updateApkWithFile(tempInputFile, patchedDexFile, patchedDexEntryPath, unsignedApk, profile, deflater);
+            }
+            unsignedApk = checkpoint.recordFile(CHECKPOINT_UNSIGNED_APK, null, unsignedApk);
+        }
 
-            progressListener.onProgress("Copying input APK");
-            File tempInputFile = copyUriToFile(inputApkUri, new File(tempDir, "input.apk"));
+        progressListener.onProgress("Signing modified APK");
+        File signerInput = unsignedApk;
+        runWithCpuPermits(1, permits -> {
+            try (PipelineTracer.Section section = tracer.section("sign")) {
+                signApk(signerInput, outputFile, signerConfigs);
+            }
+            return null;
+        });
+        checkpoint.finish();
+
+        ProcessingResult result = new ProcessingResult(true, "Successfully modified and signed APK", outputFile,
+                null, executionPlan);
+        if (deltaOutputEnabled) {
+            progressListener.onProgress("Writing delta against the input APK");
+            result.deltaFile = writeDelta(tempInputFile, outputFile, profile, tracer);
+        }
+        progressListener.onProgress("APK processing complete: " + outputName);
+        return result;
+    }
+
+    /**
+     * Writes the {@link ApkDelta} from {@code inputApk} to {@code outputApk} next to the output.
+     * The delta is an extra; if it fails the job still succeeds, just without one.
+     */
+    private File writeDelta(File inputApk, File outputApk, OutputProfile profile, PipelineTracer tracer) {
+        File deltaFile = new File(outputApk.getPath() + ApkDelta.FILE_SUFFIX);
+        try (PipelineTracer.Section section = tracer.section("delta");
+             ParallelDeflater deflater = new ParallelDeflater(computeScheduler.cpuExecutor(),
+                     Runtime.getRuntime().availableProcessors())) {
+            ApkDelta.create(inputApk, outputApk, deltaFile, profile, deflater);
+            return deltaFile;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write delta for " + outputApk.getName(), e);
+            if (deltaFile.exists() && !deltaFile.delete()) {
+                Log.w(TAG, "Could not delete partial delta " + deltaFile.getAbsolutePath());
+            }
+            return null;
+        }
+    }
+
+    private static class VerifiedTarget {
+        final PatchabilityVerifier.Result verification;
+        /** Key to record the DEX under once it is patched, null if the APK could not be identified. */
+        final DexProbeHints.HintKey hintKey;
+
+        VerifiedTarget(PatchabilityVerifier.Result verification, DexProbeHints.HintKey hintKey) {
+            this.verification = verification;
+            this.hintKey = hintKey;
+        }
+    }
+
+    /**
+     * Resolves the target method through the DEX tables, probing the DEX that held it last time
+     * first, or takes the pre-check's verdict.
+     */
+    private VerifiedTarget verifyTarget(File tempInputFile, PreparedInput preparedInput,
+                                                     PipelineTracer tracer, ProgressListener progressListener)
+            throws Exception {
+        DexProbeHints.HintKey hintKey;
+        PatchabilityVerifier.Result verification;
+        if (preparedInput != null && preparedInput.verification != null) {
+            progressListener.onProgress("Using pre-check result for " + tempInputFile.getName());
+            hintKey = preparedInput.hintKey;
+            verification = preparedInput.verification;
+        } else {
+            try (PipelineTracer.Section section = tracer.section("verify")) {
+                progressListener.onProgress("Getting sorted DEX file list (highest to lowest)");
+                List<String> sortedDexPaths = getSortedDexFilePaths(tempInputFile);
+
+                // Probe the DEX that held the class last time for this app first, if we have seen it before
+                hintKey = dexProbeHints.keyFor(tempInputFile, sortedDexPaths.size());
+                sortedDexPaths = dexProbeHints.applyHint(hintKey, sortedDexPaths);
+
+                // Resolve the exact method through the DEX tables before extracting or rewriting anything
+                progressListener.onProgress("Verifying target method is present");
+                verification = patchabilityVerifier.verifyApk(tempInputFile, sortedDexPaths);
+            }
+        }
+        return new VerifiedTarget(verification, hintKey);
+    }
+
+    /**
+     * Extracts {@code dexEntryPath} below {@code tempDir} and patches the target method in it, or
+     * restores an earlier result from the patched DEX cache. Returns null if the method could not be
+     * patched.
+     */
+    private PatchedDex patchDex(File tempInputFile, String dexEntryPath, File tempDir, PipelineTracer tracer,
+                                ProgressListener progressListener) throws Exception {
+        try (PipelineTracer.Section attemptSection = tracer.section("dex attempt " + dexEntryPath)) {
+            progressListener.onProgress("Attempting to find method in: " + dexEntryPath);
+
+            // Create a dedicated temporary directory for this DEX attempt to isolate files
+            File dexAttemptTempDir = new File(tempDir, "dex_attempt_" + new File(dexEntryPath).getName().replace(".dex", ""));
+            workspaceJanitor.discard(dexAttemptTempDir); // Clean up from previous potential partial run
+            if (!dexAttemptTempDir.mkdirs()) {
+                throw new IOException("Failed to create temp dir for DEX attempt: " + dexAttemptTempDir.getAbsolutePath());
+            }
+
+            ZipEntry dexEntry = getZipEntry(tempInputFile, dexEntryPath);
+            // The same injected runtime DEX shows up in many APKs; CRC and size tell from the central
+            // directory alone whether an earlier patch result may exist
+            boolean cacheCandidate = patchedDexCache.hasCandidate(dexEntry.getCrc(), dexEntry.getSize(), PATCH_ID);
+
+            // Hashed while extracting, in the same pass: a candidate needs the hash to be confirmed,
+            // and a miss needs it to store the result once patched
+            MessageDigest sourceDigest = MessageDigest.getInstance("SHA-256");
+            File extractedDex;
+            try (PipelineTracer.Section section = tracer.section("extract " + dexEntryPath)) {
+                extractedDex = extractFileFromApk(tempInputFile, dexEntryPath, dexAttemptTempDir, sourceDigest);
+            }
+            // extractedDex is now, e.g., tempDir/dex_attempt_classes/classes.dex
+            String sourceDexSha256 = PatchedDexCache.toHex(sourceDigest.digest());
 
-            progressListener.onProgress("Getting sorted DEX file list (highest to lowest)");
-            List<String> sortedDexPaths = getSortedDexFilePaths(tempInputFile);
+            if (cacheCandidate && patchedDexCache.restore(dexEntry.getCrc(), dexEntry.getSize(), sourceDexSha256,
+                                                          PATCH_ID, extractedDex)) {
+                progressListener.onProgress("Reusing cached patched " + dexEntryPath);
+                return new PatchedDex(extractedDex, null);
+            }
+
+            progressListener.onProgress("Modifying " + dexEntryPath);
+            ResourceGovernor.ExecutionPlan executionPlan = resourceGovernor.planFor(extractedDex.length());
+            boolean modified = modifyMethodInDex(
+                extractedDex, // This file will be modified in-place if successful
+                TARGET_CLASS_PATH,
+                TARGET_METHOD_SIGNATURE,
+                REPLACEMENT_METHOD_SMALI,
+                executionPlan,
+                tracer,
+                progressListener
+            );
+            if (!modified) {
+                progressListener.onProgress("Method not found or modification failed in: " + dexEntryPath);
+                workspaceJanitor.discard(dexAttemptTempDir);
+                return null;
+            }
+            progressListener.onProgress("Method found and modified in: " + dexEntryPath);
+            patchedDexCache.store(dexEntry.getCrc(), dexEntry.getSize(), sourceDexSha256, PATCH_ID, extractedDex);
+            // The attempt dir stays; the top-level tempDir cleanup removes it
+            return new PatchedDex(extractedDex, executionPlan);
+        }
+    }
 
-            File successfullyModifiedDexFile = null;
-            String successfullyModifiedDexEntryPath = null;
-            boolean overallModificationSuccess = false;
+    private static class PatchedDex {
+        final File file;
+        /** Memory plan of the rewrite, null if the result came from the cache. */
+        final ResourceGovernor.ExecutionPlan executionPlan;
 
-            for (String currentDexPath : sortedDexPaths) {
-                progressListener.onProgress("Attempting to find method in: " + currentDexPath);
+        PatchedDex(File file, ResourceGovernor.ExecutionPlan executionPlan) {
+            this.file = file;
+            this.executionPlan = executionPlan;
+        }
+    }
 
-                // Create a dedicated temporary directory for this DEX attempt to isolate files
-                File dexAttemptTempDir = new File(tempDir, "dex_attempt_" + new File(currentDexPath).getName().replace(".dex", ""));
-                if (dexAttemptTempDir.exists()) { // Clean up from previous potential partial run
-                    deleteDirectory(dexAttemptTempDir);
+    /**
+     * Handles split bundles (.apks/.xapk): the split that holds the target class is found through the
+     * DEX index and patched, every other split is re-signed with the same signer concurrently. Signing
+     * copies the entries of untouched splits raw, only the signature changes, unless the profile has
+     * to lay them out anew (see {@link #needsRelayout}).
+     *
+     * The base split gets the full {@code profile}; the others get {@link OutputProfile#forSplit()}.
+     */
+    private ProcessingResult processAndSignBundle(File bundleFile, File outputFile, String outputName,
+                                                  List<ApkSigner.SignerConfig> signerConfigs,
+                                                  File tempDir, OutputProfile profile, PipelineTracer tracer,
+                                                  ProgressListener progressListener) throws Exception {
+        SplitBundle bundle = SplitBundle.open(bundleFile);
+        progressListener.onProgress("Extracting " + bundle.getSplitEntries().size() + " split APKs");
+        File splitsDir = new File(tempDir, "splits");
+        if (!splitsDir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + splitsDir.getAbsolutePath());
+        }
+        Map<String, File> splits;
+        try (PipelineTracer.Section section = tracer.section("extract splits")) {
+            splits = bundle.extractSplits(splitsDir);
+        }
+
+        String baseSplit = findBaseSplit(splits);
+        if (baseSplit == null && profile.disableNativeLibExtraction) {
+            Log.w(TAG, "No base split in " + bundleFile.getName() + ", extractNativeLibs is left alone");
+        }
+
+        progressListener.onProgress("Locating the split that holds the target method");
+        String targetSplit = null;
+        PatchabilityVerifier.Result bestResult = null;
+        try (PipelineTracer.Section locateSection = tracer.section("locate target split")) {
+            for (Map.Entry<String, File> split : splits.entrySet()) {
+                List<String> dexPaths;
+                try {
+                    dexPaths = getSortedDexFilePaths(split.getValue());
+                } catch (IOException e) {
+                    continue; // config splits carry resources or native libs only
                 }
-                if (!dexAttemptTempDir.mkdirs()) {
-                    Log.w(TAG, "Failed to create temp dir for DEX attempt: " + dexAttemptTempDir.getAbsolutePath() + ". Skipping this DEX.");
-                    progressListener.onProgress("Skipping " + currentDexPath + " (failed to create temp dir)");
-                    continue;
+                PatchabilityVerifier.Result result = patchabilityVerifier.verifyApk(split.getValue(), dexPaths);
+                if (result.isPatchable()) {
+                    targetSplit = split.getKey();
+                    break;
+                }
+                if (bestResult == null || (bestResult.dexEntryPath == null && result.dexEntryPath != null)) {
+                    bestResult = result;
                 }
+            }
+        }
+        if (targetSplit == null) {
+            String message = bestResult != null ? bestResult.message : "No split APK in the bundle contains DEX code";
+            return new ProcessingResult(false, message, null, null);
+        }
+        progressListener.onProgress("Target method found in split " + targetSplit);
 
-                File extractedDexForThisAttempt = extractFileFromApk(tempInputFile, currentDexPath, dexAttemptTempDir);
-                // extractedDexForThisAttempt is now, e.g., tempDir/dex_attempt_classes/classes.dex
-
-                progressListener.onProgress("Modifying " + currentDexPath);
-                boolean currentDexModificationSuccess = modifyMethodInDex(
-                    extractedDexForThisAttempt, // This file will be modified in-place if successful
-                    TARGET_CLASS_PATH,
-                    TARGET_METHOD_SIGNATURE,
-                    REPLACEMENT_METHOD_SMALI,
-                    progressListener
-                );
-
-                if (currentDexModificationSuccess) {
-                    progressListener.onProgress("Method found and modified in: " + currentDexPath);
-                    successfullyModifiedDexFile = extractedDexForThisAttempt;
-                    successfullyModifiedDexEntryPath = currentDexPath;
-                    overallModificationSuccess = true;
-                    // Do NOT delete dexAttemptTempDir here; its content (successfullyModifiedDexFile) is needed.
-                    // It will be cleaned by the top-level tempDir cleanup in the finally block.
-                    break; // Found and modified, stop searching
-                } else {
-                    progressListener.onProgress("Method not found or modification failed in: " + currentDexPath + ". Trying next DEX if available.");
-                    // Clean up the temporary directory for this failed attempt as it's no longer needed
-                    deleteDirectory(dexAttemptTempDir);
+        File signedDir = new File(tempDir, "signed");
+        File relaidDir = new File(tempDir, "relaid");
+        File targetSplitTempDir = new File(tempDir, "target_split");
+        if (!signedDir.mkdirs() || !relaidDir.mkdirs() || !targetSplitTempDir.mkdirs()) {
+            throw new IOException("Failed to create bundle work directories in " + tempDir.getAbsolutePath());
+        }
+
+        Map<String, File> signedSplits = new LinkedHashMap<>();
+        for (Map.Entry<String, File> split : splits.entrySet()) {
+            signedSplits.put(split.getKey(), new File(signedDir, split.getValue().getName()));
+        }
+
+        // Untouched splits are laid out and signed on the shared CPU workers, one permit each
+        List<Future<?>> signingJobs = new ArrayList<>();
+        ProcessingResult targetResult;
+        try {
+            for (Map.Entry<String, File> split : splits.entrySet()) {
+                if (split.getKey().equals(targetSplit)) {
+                    continue;
                 }
+                OutputProfile splitProfile = split.getKey().equals(baseSplit) ? profile : profile.forSplit();
+                signingJobs.add(submitUntouchedSplit(computeScheduler, split.getKey(), split.getValue(),
+                        relaidDir, signedSplits.get(split.getKey()), splitProfile, signerConfigs, tracer));
             }
 
-            if (!overallModificationSuccess) {
-                return new ProcessingResult(false, "Target method not found in any DEX file, or modification failed.", null, null);
+            // Patch the target split on this thread while the others are being signed
+            File signedTarget = signedSplits.get(targetSplit);
+            targetResult = patchAndSignApkFile(splits.get(targetSplit), signedTarget, signedTarget.getName(),
+                    signerConfigs, targetSplitTempDir, null,
+                    targetSplit.equals(baseSplit) ? profile : profile.forSplit(), tracer, progressListener);
+            if (!targetResult.success) {
+                return targetResult;
             }
 
-            progressListener.onProgress("Updating APK with modified " + successfullyModifiedDexEntryPath);
-            updateApkWithFile(tempInputFile, successfullyModifiedDexFile, successfullyModifiedDexEntryPath, tempUnsignedApk);
+            progressListener.onProgress("Waiting for " + signingJobs.size() + " untouched splits to be re-signed");
+            try (PipelineTracer.Section section = tracer.section("wait for splits")) {
+                for (Future<?> job : signingJobs) {
+                    try {
+                        job.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : e;
+                    }
+                }
+            }
+        } finally {
+            for (Future<?> job : signingJobs) {
+                job.cancel(true); // no-op for finished jobs, stops the rest on failure
+            }
+        }
 
-            progressListener.onProgress("Signing modified APK");
-            signApk(tempUnsignedApk, outputFile, signerConfigs);
+        progressListener.onProgress("Writing output bundle " + outputName);
+        try (PipelineTracer.Section section = tracer.section("write bundle")) {
+            bundle.write(signedSplits, outputFile);
+        }
 
-            progressListener.onProgress("APK processing complete: " + outputFile.getName());
-            return new ProcessingResult(true, "Successfully modified and signed APK", outputFile, null);
+        progressListener.onProgress("Bundle processing complete: " + outputName);
+        return new ProcessingResult(true, "Successfully modified " + targetSplit + " and signed "
+                + splits.size() + " split APKs", outputFile, null, targetResult.executionPlan);
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing APK", e);
-            progressListener.onProgress("Error: " + e.getMessage());
-            return new ProcessingResult(false, "Processing failed: " + e.getMessage(), null, e);
-        } finally {
-            if (tempDir != null && tempDir.exists()) {
-                deleteDirectory(tempDir);
+    /**
+     * Lays out (if {@link #needsRelayout} says so) and signs an untouched split as one CPU task on
+     * {@code scheduler}. The relayout deflates on that task itself: handing its blocks to the CPU
+     * executor while the task holds a permit would hang once every permit is held by such a task.
+     */
+    static Future<?> submitUntouchedSplit(ComputeScheduler scheduler, String splitKey, File splitApk,
+                                          File relaidDir, File signedSplit, OutputProfile profile,
+                                          List<ApkSigner.SignerConfig> signerConfigs, PipelineTracer tracer) {
+        return scheduler.submitCpu(() -> {
+            File signerInput = splitApk;
+            if (needsRelayout(splitApk, profile)) {
+                File relaid = new File(relaidDir, splitApk.getName());
+                try (PipelineTracer.Section section = tracer.section("lay out split " + splitKey);
+                     ParallelDeflater deflater = new ParallelDeflater(Runnable::run, 1)) {
+                    updateApkWithFile(splitApk, null, null, relaid, profile, deflater);
+                }
+                signerInput = relaid;
+            }
+            try (PipelineTracer.Section section = tracer.section("sign split " + splitKey)) {
+                signApk(signerInput, signedSplit, signerConfigs);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Returns the key of the split whose manifest names no split, or null if the bundle has none or
+     * none of the manifests could be read.
+     */
+    private static String findBaseSplit(Map<String, File> splits) {
+        for (Map.Entry<String, File> split : splits.entrySet()) {
+            try (ZipFile zipFile = new ZipFile(split.getValue())) {
+                if (BinaryManifest.read(zipFile).splitName == null) {
+                    return split.getKey();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read the manifest of split " + split.getKey(), e);
             }
         }
+        return null;
     }
 
     /**
-     * Gets all DEX file paths from the APK, sorted by number in descending order
-     * (e.g., classes4.dex, classes3.dex, classes2.dex, classes.dex).
+     * Whether an untouched split has to go through {@link #updateApkWithFile} before signing: its
+     * manifest needs the extractNativeLibs edit, or it carries DEX files or native libraries the
+     * profile wants stored and page-aligned. Signing alone keeps the entries as they are.
      */
-    private List<String> getSortedDexFilePaths(File apkFile) throws IOException {
-        try (ZipFile zipFile = new ZipFile(apkFile)) {
-            List<String> dexFiles = new ArrayList<>();
+    private static boolean needsRelayout(File splitApk, OutputProfile profile) throws IOException {
+        if (profile.disableNativeLibExtraction) {
+            return true;
+        }
+        if (!profile.storeCodeUncompressed) {
+            return false;
+        }
+        try (ZipFile zipFile = new ZipFile(splitApk)) {
             Enumeration<? extends ZipEntry> entries = zipFile.entries();
-
             while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String name = entry.getName();
-                if (name.matches("classes\\d*\\.dex")) { // Matches classes.dex, classes2.dex etc.
-                    dexFiles.add(name);
+                if (profile.storedAlignmentFor(entries.nextElement().getName()) == OutputProfile.PAGE_ALIGNMENT) {
+                    return true;
                 }
             }
+        }
+        return false;
+    }
 
-            if (dexFiles.isEmpty()) {
-                throw new IOException("No DEX files found in APK");
-            }
+    /**
+     * Dry run over a directory tree: reports for every APK whether the target method is present and
+     * patchable, without extracting or modifying anything. The report is written as JSON or CSV
+     * depending on {@code reportFile}'s extension.
+     */
+    public List<ApkScanner.ScanEntry> scanForPatchability(File directory, File reportFile,
+                                                          ProgressListener progressListener) throws IOException {
+        ApkScanner scanner = new ApkScanner(patchabilityVerifier, computeScheduler);
+        List<ApkScanner.ScanEntry> entries = scanner.scanDirectory(directory, progressListener);
+        ApkScanner.writeReport(entries, reportFile);
+        progressListener.onProgress("Scan report written to " + reportFile.getName());
+        return entries;
+    }
 
-            // Sort DEX files by number in descending order (highest to lowest)
-            Collections.sort(dexFiles, new Comparator<String>() {
-                @Override
-                public int compare(String file1, String file2) {
-                    Pattern pattern = Pattern.compile("classes(\\d*)\\.dex");
-                    Matcher m1 = pattern.matcher(file1);
-                    Matcher m2 = pattern.matcher(file2);
+    /**
+     * Gets all DEX file paths from the APK, sorted by number in descending order
+     * (e.g., classes4.dex, classes3.dex, classes2.dex, classes.dex).
+     */
+    static List<String> getSortedDexFilePaths(File apkFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(apkFile)) {
+            return getSortedDexFilePaths(zipFile);
+        }
+    }
 
-                    int num1 = 0; // classes.dex (no number) will be treated as 0 or 1
-                    int num2 = 0;
+    /**
+     * Same as {@link #getSortedDexFilePaths(File)} for an APK the caller already has open.
+     */
+    static List<String> getSortedDexFilePaths(ZipFile zipFile) throws IOException {
+        List<String> dexFiles = new ArrayList<>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (name.matches("classes\\d*\\.dex")) { // Matches classes.dex, classes2.dex etc.
+                dexFiles.add(name);
+            }
+        }
+
+        if (dexFiles.isEmpty()) {
+            throw new IOException("No DEX files found in APK");
+        }
 
-                    if (m1.matches()) {
-                        String numStr = m1.group(1);
-                        if (numStr.isEmpty()) { // classes.dex
-                            num1 = 1; // Typically classes.dex is effectively classes1.dex
-                        } else {
-                            num1 = Integer.parseInt(numStr);
-                        }
+        // Sort DEX files by number in descending order (highest to lowest)
+        Collections.sort(dexFiles, new Comparator<String>() {
+            @Override
+            public int compare(String file1, String file2) {
+                Pattern pattern = Pattern.compile("classes(\\d*)\\.dex");
+                Matcher m1 = pattern.matcher(file1);
+                Matcher m2 = pattern.matcher(file2);
+
+                int num1 = 0; // classes.dex (no number) will be treated as 0 or 1
+                int num2 = 0;
+
+                if (m1.matches()) {
+                    String numStr = m1.group(1);
+                    if (numStr.isEmpty()) { // classes.dex
+                        num1 = 1; // Typically classes.dex is effectively classes1.dex
+                    } else {
+                        num1 = Integer.parseInt(numStr);
                     }
-                    if (m2.matches()) {
-                        String numStr = m2.group(1);
-                        if (numStr.isEmpty()) { // classes.dex
-                            num2 = 1;
-                        } else {
-                            num2 = Integer.parseInt(numStr);
-                        }
+                }
+                if (m2.matches()) {
+                    String numStr = m2.group(1);
+                    if (numStr.isEmpty()) { // classes.dex
+                        num2 = 1;
+                    } else {
+                        num2 = Integer.parseInt(numStr);
                     }
-                    return Integer.compare(num2, num1); // Descending order (reversed parameters)
                 }
-            });
+                return Integer.compare(num2, num1); // Descending order (reversed parameters)
+            }
+        });
 
-            Log.d(TAG, "Sorted DEX files (highest to lowest): " + dexFiles);
-            return dexFiles;
+        Log.d(TAG, "Sorted DEX files (highest to lowest): " + dexFiles);
+        return dexFiles;
+    }
+
+    /**
+     * Returns the central directory record of an entry (CRC, sizes, method) without reading its data.
+     */
+    private ZipEntry getZipEntry(File apkFile, String entryPath) throws IOException {
+        try (ZipFile zipFile = new ZipFile(apkFile)) {
+            ZipEntry entry = zipFile.getEntry(entryPath);
+            if (entry == null) {
+                throw new IOException("Entry not found in APK: " + entryPath);
+            }
+            return entry;
         }
     }
 
-    private File extractFileFromApk(File apkFile, String entryPath, File destDir) throws IOException {
+    /**
+     * Extracts an entry, optionally feeding the extracted bytes into {@code digest} on the way.
+     */
+    private File extractFileFromApk(File apkFile, String entryPath, File destDir, MessageDigest digest) throws IOException {
         File extractedFile = new File(destDir, new File(entryPath).getName());
 
         try (ZipFile zipFile = new ZipFile(apkFile);
@@ -247,37 +876,94 @@ public class ApkProcessor {
                 throw new IOException("Entry not found in APK: " + entryPath);
             }
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
-            }
+            PooledIo.copy("extract entry", is, fos, digest);
         }
         return extractedFile;
     }
 
     private boolean modifyMethodInDex(File dexFile, String targetClassPath, String targetMethodSignature,
-                                    String replacementSmali, ProgressListener progressListener) throws IOException {
+                                    String replacementSmali, ResourceGovernor.ExecutionPlan plan,
+                                    PipelineTracer tracer, ProgressListener progressListener) throws IOException {
+        // Fast path: the built-in replacement is small enough to be written straight over the
+        // original code_item, which skips the whole baksmali/smali round trip below.
+        if (targetMethodSignature.equals(TARGET_METHOD_SIGNATURE) && replacementSmali.equals(REPLACEMENT_METHOD_SMALI)) {
+            progressListener.onProgress("Trying in-place patch of " + dexFile.getName());
+            boolean patchedInPlace;
+            try (PipelineTracer.Section section = tracer.section("patch in place")) {
+                patchedInPlace = DexInPlacePatcher.tryPatchInPlace(dexFile, targetClassPath);
+            }
+            if (patchedInPlace) {
+                progressListener.onProgress(dexFile.getName() + " patched in place.");
+                return true;
+            }
+            Log.i(TAG, "In-place patch not applicable to " + dexFile.getName() + ", falling back to Smali round trip");
+        }
+
+        String targetClassType = "L" + targetClassPath.replace('.', '/') + ";";
+        BaksmaliOptions options = new BaksmaliOptions();
+        options.deodex = false;
+        // Consider options.apiLevel if you know the target API, otherwise default is used.
+
+        File modifiedDexFile = new File(dexFile.getParentFile(), "modified_" + dexFile.getName());
+        boolean rewritten = plan.rewriteScope == ResourceGovernor.RewriteScope.SINGLE_CLASS
+                ? rewriteSingleClass(dexFile, targetClassPath, targetClassType, targetMethodSignature,
+                        replacementSmali, options, modifiedDexFile, plan, tracer, progressListener)
+                : rewriteWholeDex(dexFile, targetClassType, targetMethodSignature, replacementSmali, options,
+                        modifiedDexFile, plan, tracer, progressListener);
+        if (!rewritten) {
+            return false;
+        }
+
+        // Replace the original extracted DEX with the modified one
+        if (!dexFile.delete()) {
+            Log.w(TAG, "Could not delete original extracted DEX file: " + dexFile.getAbsolutePath());
+            // Try to proceed, rename might still work if OS handles it.
+        }
+        if (!modifiedDexFile.renameTo(dexFile)) {
+            // If rename fails, try copying and then deleting source
+            try {
+                PooledIo.copyFile("replace dex", modifiedDexFile, dexFile);
+                if (!modifiedDexFile.delete()) {
+                    Log.w(TAG, "Could not delete temporary modified DEX file after copy: " + modifiedDexFile.getAbsolutePath());
+                }
+            } catch (IOException ioe) {
+                Log.e(TAG, "Failed to replace original DEX with modified version using copy: " + dexFile.getName(), ioe);
+                throw new IOException("Failed to replace original DEX with modified version: " + dexFile.getName(), ioe);
+            }
+        }
+        progressListener.onProgress(dexFile.getName() + " successfully modified.");
+        return true;
+    }
+
+    /**
+     * Single-class mode: disassembles only the target class to disk, patches it and merges it back
+     * into the otherwise untouched DEX.
+     */
+    private boolean rewriteSingleClass(File dexFile, String targetClassPath, String targetClassType,
+                                       String targetMethodSignature, String replacementSmali,
+                                       BaksmaliOptions options, File modifiedDexFile,
+                                       ResourceGovernor.ExecutionPlan plan, PipelineTracer tracer,
+                                       ProgressListener progressListener) throws IOException {
         // Smali output directory will be created inside dexFile's parent directory (which is a dex_attempt_... dir)
         File smaliDir = new File(dexFile.getParentFile(), "smali_output");
-        if (smaliDir.exists()) { // Clean up if it exists from a failed prior step (shouldn't happen with dexAttemptTempDir logic)
-            deleteDirectory(smaliDir);
-        }
+        workspaceJanitor.discard(smaliDir); // Clean up if it exists from a failed prior step (shouldn't happen with dexAttemptTempDir logic)
         if (!smaliDir.mkdirs()) {
             progressListener.onProgress("Failed to create smali output directory: " + smaliDir.getAbsolutePath());
             Log.e(TAG, "Failed to create smali output directory: " + smaliDir.getAbsolutePath());
             return false;
         }
 
-        progressListener.onProgress("Disassembling " + dexFile.getName() + " to Smali in " + smaliDir.getName());
-        BaksmaliOptions options = new BaksmaliOptions();
-        options.deodex = false;
-        // Consider options.apiLevel if you know the target API, otherwise default is used.
-
+        progressListener.onProgress("Disassembling " + dexFile.getName() + " to Smali in " + smaliDir.getName()
+                + " (" + plan + ")");
+        DexBackedDexFile dexBackedDexFile;
         try {
-            DexBackedDexFile dexBackedDexFile = DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault());
-            // Using Runtime.getRuntime().availableProcessors() for job count can be more adaptive
-            Baksmali.disassembleDexFile(dexBackedDexFile, smaliDir, Runtime.getRuntime().availableProcessors(), options);
+            dexBackedDexFile = DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault());
+            runWithCpuPermits(1, permits -> {
+                try (PipelineTracer.Section section = tracer.section("baksmali x" + permits)) {
+                    return Baksmali.disassembleDexFile(dexBackedDexFile, smaliDir, permits, options,
+                            Collections.singletonList(targetClassType));
+                }
+            });
         } catch (Exception e) {
             Log.e(TAG, "Error disassembling DEX " + dexFile.getName(), e);
             progressListener.onProgress("Error disassembling " + dexFile.getName() + ": " + e.getMessage());
@@ -304,35 +990,91 @@ public class ApkProcessor {
         }
         progressListener.onProgress("Method replaced successfully in " + classSmaliFile.getName());
 
-        File modifiedDexFile = new File(dexFile.getParentFile(), "modified_" + dexFile.getName());
         progressListener.onProgress("Reassembling Smali to " + modifiedDexFile.getName());
         try {
-            reassembleSmaliToDex(smaliDir, modifiedDexFile);
+            runWithCpuPermits(1, permits -> {
+                try (PipelineTracer.Section section = tracer.section("merge class")) {
+                    mergeClassIntoDex(dexBackedDexFile, targetClassType, classSmaliFile, modifiedDexFile,
+                            plan.intermediates == ResourceGovernor.Intermediates.IN_MEMORY);
+                }
+                return null;
+            });
         } catch (Exception e) {
             Log.e(TAG, "Error reassembling Smali for " + dexFile.getName(), e);
             progressListener.onProgress("Error reassembling Smali: " + e.getMessage());
             return false; // Reassembly failed
         }
+        return true;
+    }
 
+    /**
+     * Whole-DEX mode: disassembles every class into a {@link SmaliSourceTree}, patches the target
+     * class's entry and assembles the tree back, without a file per class on disk. The tree keeps
+     * as much compressed text in memory as the plan leaves headroom for and spills the rest into
+     * one file next to the DEX.
+     */
+    private boolean rewriteWholeDex(File dexFile, String targetClassType, String targetMethodSignature,
+                                    String replacementSmali, BaksmaliOptions options, File modifiedDexFile,
+                                    ResourceGovernor.ExecutionPlan plan, PipelineTracer tracer,
+                                    ProgressListener progressListener) throws IOException {
+        long memoryLimit = Math.max(0, Math.min(SMALI_TREE_MAX_MEMORY_BYTES,
+                plan.heapBudgetBytes - plan.estimatedPeakBytes));
+        File spillFile = new File(dexFile.getParentFile(), "smali_spill.bin");
+        try (SmaliSourceTree sourceTree = new SmaliSourceTree(spillFile, memoryLimit)) {
+            progressListener.onProgress("Disassembling " + dexFile.getName() + " to Smali in memory (" + plan + ")");
+            try {
+                DexBackedDexFile dexBackedDexFile = DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault());
+                runWithCpuPermits(plan.parallelism, permits -> {
+                    try (PipelineTracer.Section section = tracer.section("baksmali x" + permits)) {
+                        SmaliSourceTree.disassemble(dexBackedDexFile, options, permits, sourceTree);
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                Log.e(TAG, "Error disassembling DEX " + dexFile.getName(), e);
+                progressListener.onProgress("Error disassembling " + dexFile.getName() + ": " + e.getMessage());
+                return false;
+            }
+            Log.d(TAG, sourceTree.size() + " classes of " + dexFile.getName() + " disassembled, "
+                    + sourceTree.getMemoryBytes() / 1024 + " KiB in memory, "
+                    + sourceTree.getSpilledBytes() / 1024 + " KiB spilled");
+
+            String classSmali = sourceTree.get(targetClassType);
+            if (classSmali == null) {
+                // This is expected if the class isn't in this particular DEX file.
+                Log.i(TAG, "Target class " + targetClassType + " not found in " + dexFile.getName());
+                progressListener.onProgress("Target class not found in " + dexFile.getName());
+                return false;
+            }
+            progressListener.onProgress("Found target class: " + targetClassType);
+
+            String patchedSmali = replaceMethodInSmali(classSmali, targetClassType, targetMethodSignature,
+                    replacementSmali);
+            if (patchedSmali == null) {
+                // This is expected if the method isn't in this class (or class found in this DEX).
+                Log.i(TAG, "Target method '" + targetMethodSignature + "' not found in " + targetClassType);
+                progressListener.onProgress("Target method not found in class " + targetClassType);
+                return false;
+            }
+            sourceTree.put(targetClassType, patchedSmali);
+            progressListener.onProgress("Method replaced successfully in " + targetClassType);
 
-        // Replace the original extracted DEX with the modified one
-        if (!dexFile.delete()) {
-            Log.w(TAG, "Could not delete original extracted DEX file: " + dexFile.getAbsolutePath());
-            // Try to proceed, rename might still work if OS handles it.
-        }
-        if (!modifiedDexFile.renameTo(dexFile)) {
-            // If rename fails, try copying and then deleting source
+            progressListener.onProgress("Reassembling Smali to " + modifiedDexFile.getName());
             try {
-                Files.copy(modifiedDexFile.toPath(), dexFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                if (!modifiedDexFile.delete()) {
-                    Log.w(TAG, "Could not delete temporary modified DEX file after copy: " + modifiedDexFile.getAbsolutePath());
+                boolean assembled = runWithCpuPermits(plan.parallelism, permits -> {
+                    try (PipelineTracer.Section section = tracer.section("smali x" + permits)) {
+                        return sourceTree.assemble(modifiedDexFile, permits);
+                    }
+                });
+                if (!assembled) {
+                    throw new IOException("Smali reported syntax errors");
                 }
-            } catch (IOException ioe) {
-                Log.e(TAG, "Failed to replace original DEX with modified version using copy: " + dexFile.getName(), ioe);
-                throw new IOException("Failed to replace original DEX with modified version: " + dexFile.getName(), ioe);
+            } catch (Exception e) {
+                Log.e(TAG, "Error reassembling Smali for " + dexFile.getName(), e);
+                progressListener.onProgress("Error reassembling Smali: " + e.getMessage());
+                return false; // Reassembly failed
             }
         }
-        progressListener.onProgress(dexFile.getName() + " successfully modified.");
         return true;
     }
 
@@ -345,10 +1087,32 @@ public class ApkProcessor {
      * @return true if the method was found and replaced, false otherwise.
      * @throws IOException If an I/O error occurs.
      */
-    private boolean replaceMethodInSmaliFile(File smaliFile, String methodSignatureToFind,
-                                             String fullReplacementMethodSmali) throws IOException {
+    static boolean replaceMethodInSmaliFile(File smaliFile, String methodSignatureToFind,
+                                            String fullReplacementMethodSmali) throws IOException {
+        String source = new String(Files.readAllBytes(smaliFile.toPath()), StandardCharsets.UTF_8);
+        String patched = replaceMethodInSmali(source, smaliFile.getName(), methodSignatureToFind,
+                fullReplacementMethodSmali);
+        if (patched == null) {
+            return false;
+        }
+        Files.write(smaliFile.toPath(), patched.getBytes(StandardCharsets.UTF_8));
+        Log.i(TAG, "Method '" + methodSignatureToFind + "' replaced in " + smaliFile.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Replaces a method in Smali source text.
+     *
+     * @param source                 The Smali source of a class.
+     * @param sourceName             Name of the class or file, for logging.
+     * @param methodSignatureToFind The exact starting line of the method signature (e.g., ".method public final foo()V").
+     * @param fullReplacementMethodSmali The complete Smali code for the new method, including its own .method and .end method lines.
+     * @return the modified source, or null if the method was not found.
+     */
+    static String replaceMethodInSmali(String source, String sourceName, String methodSignatureToFind,
+                                       String fullReplacementMethodSmali) throws IOException {
         List<String> originalLines = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(smaliFile))) {
+        try (BufferedReader reader = new BufferedReader(new StringReader(source))) {
             String line;
             while ((line = reader.readLine()) != null) {
                 originalLines.add(line);
@@ -369,10 +1133,10 @@ public class ApkProcessor {
         }
 
         if (methodStartIndex == -1 || methodEndIndex == -1) {
-            Log.w(TAG, "Target method block not fully found in " + smaliFile.getName() +
+            Log.w(TAG, "Target method block not fully found in " + sourceName +
                        ". Signature: '" + methodSignatureToFind +
                        "'. Start index: " + methodStartIndex + ", End index: " + methodEndIndex);
-            return false;
+            return null;
         }
 
         // Determine the indentation of the original method's signature line
@@ -406,34 +1170,130 @@ public class ApkProcessor {
         // Add lines after the target method
         newFileLines.addAll(originalLines.subList(methodEndIndex + 1, originalLines.size()));
 
-        // Write the modified content back to the file
-        try (FileWriter writer = new FileWriter(smaliFile)) {
-            for (int i = 0; i < newFileLines.size(); i++) {
-                writer.write(newFileLines.get(i));
-                if (i < newFileLines.size() - 1 || !newFileLines.get(i).isEmpty()) { // Avoid double newline at EOF if last line was empty
-                    writer.write(System.lineSeparator());
-                }
+        StringBuilder patched = new StringBuilder(source.length() + fullReplacementMethodSmali.length());
+        for (int i = 0; i < newFileLines.size(); i++) {
+            patched.append(newFileLines.get(i));
+            if (i < newFileLines.size() - 1 || !newFileLines.get(i).isEmpty()) { // Avoid double newline at EOF if last line was empty
+                patched.append(System.lineSeparator());
             }
         }
-        Log.i(TAG, "Method '" + methodSignatureToFind + "' replaced in " + smaliFile.getAbsolutePath());
-        return true;
+        return patched.toString();
+    }
+
+
+    /**
+     * Sets how APKs of the following jobs are laid out, see {@link OutputProfile}.
+     */
+    public void setOutputProfile(OutputProfile profile) {
+        this.outputProfile = profile;
+    }
+
+    /**
+     * Enables writing an {@link ApkDelta} ({@code <output>}{@value ApkDelta#FILE_SUFFIX}) from the
+     * input to the output of following single-APK jobs, for devices that already have the input.
+     * Split bundles fail while it is on rather than succeed without a delta.
+     */
+    public void setDeltaOutputEnabled(boolean enabled) {
+        this.deltaOutputEnabled = enabled;
+    }
+
+    /**
+     * Enables writing a Chrome trace-event JSON file per job into {@code directory}; null disables it.
+     */
+    public void setTraceOutputDirectory(File directory) {
+        this.traceOutputDirectory = directory;
     }
 
+    private void exportTrace(PipelineTracer tracer, String jobKind) {
+        File directory = traceOutputDirectory;
+        if (directory == null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create trace directory " + directory.getAbsolutePath());
+            return;
+        }
+        try {
+            tracer.writeChromeTrace(new File(directory, jobKind + "_" + System.currentTimeMillis() + ".json"));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write trace for " + jobKind, e);
+        }
+    }
 
-    private void reassembleSmaliToDex(File smaliDir, File outputDexFile) throws IOException {
+    /**
+     * Runs a stage under CPU permits from the shared scheduler, asking for up to {@code wanted}.
+     */
+    private <T> T runWithCpuPermits(int wanted, CpuStage<T> stage) throws Exception {
+        int permits = computeScheduler.acquireCpuPermits(wanted);
+        try {
+            return stage.run(permits);
+        } finally {
+            computeScheduler.releaseCpuPermits(permits);
+        }
+    }
+
+    static void reassembleSmaliToDex(File smaliDir, File outputDexFile, int jobs) throws IOException {
         SmaliOptions options = new SmaliOptions();
         options.outputDexFile = outputDexFile.getAbsolutePath();
+        options.jobs = jobs;
         // Consider options.apiLevel if needed
         Smali.assemble(options, smaliDir.getAbsolutePath());
     }
 
-    private void updateApkWithFile(File originalApk, File fileToAddOrReplace, String entryPathInApk, File outputApk)
+    /**
+     * Assembles a single class and writes {@code originalDex} back out with that class swapped in.
+     * Every other class is copied from the lazily parsed original, so no Smali trees are built for them.
+     */
+    static void mergeClassIntoDex(DexBackedDexFile originalDex, String classType, File classSmaliFile,
+                                  File outputDexFile, boolean inMemory) throws IOException {
+        File classDexFile = new File(outputDexFile.getParentFile(), "single_class.dex");
+        SmaliOptions options = new SmaliOptions();
+        options.outputDexFile = classDexFile.getAbsolutePath();
+        if (!Smali.assemble(options, classSmaliFile.getAbsolutePath())) {
+            throw new IOException("Failed to assemble " + classSmaliFile.getName());
+        }
+
+        ClassDef replacement = null;
+        for (ClassDef classDef : DexFileFactory.loadDexFile(classDexFile, Opcodes.getDefault()).getClasses()) {
+            if (classDef.getType().equals(classType)) {
+                replacement = classDef;
+            }
+        }
+        if (replacement == null) {
+            throw new IOException("Assembled class " + classType + " not found in " + classDexFile.getName());
+        }
+
+        DexPool dexPool = new DexPool(originalDex.getOpcodes());
+        for (ClassDef classDef : originalDex.getClasses()) {
+            dexPool.internClass(classDef.getType().equals(classType) ? replacement : classDef);
+        }
+        if (inMemory) {
+            MemoryDataStore dataStore = new MemoryDataStore(Math.min(Integer.MAX_VALUE - 8,
+                    originalDex.getBuffer().getBuf().length + 64 * 1024));
+            dexPool.writeTo(dataStore);
+            try (OutputStream os = new FileOutputStream(outputDexFile)) {
+                os.write(dataStore.getBuffer(), 0, dataStore.getSize());
+            }
+        } else {
+            dexPool.writeTo(new FileDataStore(outputDexFile));
+        }
+        if (!classDexFile.delete()) {
+            Log.w(TAG, "Could not delete " + classDexFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Rewrites {@code originalApk} into {@code outputApk} laid out as {@code profile} says, with the
+     * entry {@code entryPathInApk} replaced by {@code fileToAddOrReplace}. Both may be null to only
+     * lay the APK out anew. Deflated entries go through {@code deflater}.
+     */
+    private static void updateApkWithFile(File originalApk, File fileToAddOrReplace, String entryPathInApk,
+                                          File outputApk, OutputProfile profile, ParallelDeflater deflater)
             throws IOException {
         try (ZipFile zipFile = new ZipFile(originalApk);
-             ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(outputApk))) {
+             AlignedZipWriter writer = new AlignedZipWriter(outputApk, deflater)) {
 
             Enumeration<? extends ZipEntry> entries = zipFile.entries();
-            byte[] buffer = new byte[8192];
 
             while (entries.hasMoreElements()) {
                 ZipEntry entry = entries.nextElement();
@@ -451,84 +1311,100 @@ public class ApkProcessor {
                     continue;
                 }
 
-                ZipEntry newEntry = new ZipEntry(name);
-                // Preserve original entry's method (e.g. DEFLATED or STORED)
-                // and other relevant fields if necessary, though often not critical for APKs.
-                // For simplicity, we just copy content, ZipOutputStream usually defaults to DEFLATED.
-                // If preserving compression method is critical: newEntry.setMethod(entry.getMethod());
-                // if (entry.getMethod() == ZipEntry.STORED) { newEntry.setCompressedSize(entry.getSize()); newEntry.setSize(entry.getSize()); newEntry.setCrc(entry.getCrc()); }
-
-                zos.putNextEntry(newEntry);
-                try (InputStream is = zipFile.getInputStream(entry)) {
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        zos.write(buffer, 0, bytesRead);
+                if (profile.disableNativeLibExtraction && name.equals(BinaryManifest.ENTRY_NAME)) {
+                    byte[] manifest;
+                    try (InputStream is = zipFile.getInputStream(entry)) {
+                        manifest = PooledIo.readFully("repack", is, entry.getSize());
+                    }
+                    Log.d(TAG, "Setting extractNativeLibs=false in " + name);
+                    writer.writeDeflated(name, new ByteArrayInputStream(
+                            BinaryManifestEditor.setExtractNativeLibs(manifest, false)),
+                            profile.compressionLevelFor(name));
+                    continue;
+                }
+
+                // Code the profile wants mapped from the APK is STORED aligned, everything else deflated
+                int alignment = profile.storedAlignmentFor(name);
+                if (alignment > 0 && entry.getSize() >= 0 && entry.getCrc() >= 0) {
+                    try (InputStream is = zipFile.getInputStream(entry)) {
+                        writer.writeStored(name, entry.getSize(), entry.getCrc(), alignment, is);
+                    }
+                } else {
+                    try (InputStream is = zipFile.getInputStream(entry)) {
+                        writer.writeDeflated(name, is, profile.compressionLevelFor(name));
                     }
                 }
-                zos.closeEntry();
+            }
+
+            if (fileToAddOrReplace == null) {
+                return;
             }
 
             // Add the new/modified file
             Log.d(TAG, "Adding/replacing " + entryPathInApk + " with " + fileToAddOrReplace.getName() + " (" + fileToAddOrReplace.length() + " bytes)");
-            ZipEntry newFileEntry = new ZipEntry(entryPathInApk);
-            // If original entry was STORED, this new one should also be.
-            // For .dex files, they are often STORED. Check original entry if available.
-            // For simplicity, allow ZipOutputStream to decide or default to DEFLATED.
-            zos.putNextEntry(newFileEntry);
-            try (FileInputStream fis = new FileInputStream(fileToAddOrReplace)) {
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    zos.write(buffer, 0, bytesRead);
+            int alignment = profile.storedAlignmentFor(entryPathInApk);
+            if (alignment > 0) {
+                long crc = PooledIo.checksum("repack", fileToAddOrReplace, new CRC32());
+                try (FileInputStream fis = new FileInputStream(fileToAddOrReplace)) {
+                    writer.writeStored(entryPathInApk, fileToAddOrReplace.length(), crc, alignment, fis);
+                }
+            } else {
+                try (FileInputStream fis = new FileInputStream(fileToAddOrReplace)) {
+                    writer.writeDeflated(entryPathInApk, fis, profile.compressionLevelFor(entryPathInApk));
                 }
             }
-            zos.closeEntry();
         }
     }
 
+    /**
+     * Returns a local file for the input APK. file:// URIs are read in place since the input is
+     * never modified; anything else is copied to {@code destinationFile} first.
+     */
+    private File resolveInputFile(Uri uri, File destinationFile, ProgressListener progressListener) throws IOException {
+        if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+            File file = new File(uri.getPath());
+            if (file.canRead()) {
+                return file;
+            }
+        }
+        progressListener.onProgress("Copying input APK");
+        return copyUriToFile(uri, destinationFile);
+    }
+
     private File copyUriToFile(Uri uri, File destinationFile) throws IOException {
         try (InputStream is = context.getContentResolver().openInputStream(uri);
              OutputStream os = new FileOutputStream(destinationFile)) {
             if (is == null) {
                 throw new IOException("Failed to open input stream for URI: " + uri);
             }
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                os.write(buffer, 0, bytesRead);
-            }
+            PooledIo.copy("copy input", is, os);
         }
         return destinationFile;
     }
 
-    private void signApk(File inputApk, File outputApk, List<ApkSigner.SignerConfig> signerConfigs)
+    private static void signApk(File inputApk, File outputApk, List<ApkSigner.SignerConfig> signerConfigs)
             throws Exception {
-        ApkSigner.Builder apkSignerBuilder = new ApkSigner.Builder(signerConfigs)
+        ApkSigner.Builder apkSignerBuilder = newSignerBuilder(signerConfigs)
                 .setInputApk(inputApk)
-                .setOutputApk(outputApk)
-                // Consider making minSdkVersion configurable or deriving it from the APK manifest
-                .setMinSdkVersion(21); // Example: Android 5.0. Adjust as needed.
+                .setOutputApk(outputApk);
 
         apkSignerBuilder.build().sign();
     }
 
-    private void deleteDirectory(File directory) {
-        if (directory == null || !directory.exists()) {
-            return;
-        }
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    deleteDirectory(file);
-                } else {
-                    if (!file.delete()) {
-                        Log.w(TAG, "Failed to delete file: " + file.getAbsolutePath());
-                    }
-                }
-            }
-        }
-        if (!directory.delete()) {
-            Log.w(TAG, "Failed to delete directory: " + directory.getAbsolutePath());
+    private static ApkSigner.Builder newSignerBuilder(List<ApkSigner.SignerConfig> signerConfigs) {
+        return new ApkSigner.Builder(signerConfigs)
+                // Consider making minSdkVersion configurable or deriving it from the APK manifest
+                .setMinSdkVersion(21); // Example: Android 5.0. Adjust as needed.
+    }
+
+    private static String computePatchId(String targetClassPath, String targetMethodSignature, String replacementSmali) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update((targetClassPath + "\n" + targetMethodSignature + "\n" + replacementSmali)
+                    .getBytes(StandardCharsets.UTF_8));
+            return PatchedDexCache.toHex(sha1.digest()).substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
         }
     }
 }
@@ -0,0 +1,224 @@
+package com.modifier.app;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+/**
+ * Dry-run scanner that reports which APKs in a directory tree contain a patchable target method.
+ *
+ * Each APK is inspected through its zip central directory, its binary manifest and the DEX
+ * class/method tables only; nothing is extracted to disk or disassembled. APKs are scanned in
+ * parallel on the shared {@link ComputeScheduler}, with the number of APKs in flight capped so
+ * that the in-memory DEX files fit in the heap.
+ */
+public class ApkScanner {
+    private static final String TAG = "ApkScanner";
+
+    // Rough upper bound of heap needed by one worker holding a large DEX in memory
+    private static final long BYTES_PER_WORKER = 64L * 1024 * 1024;
+
+    private final PatchabilityVerifier verifier;
+    private final ComputeScheduler scheduler;
+    private final int parallelism;
+
+    public static class ScanEntry {
+        public final String apkPath;
+        public String packageName;
+        public long versionCode;
+        public String versionName;
+        /** DEX entry holding the target class, or null. */
+        public String dexEntryPath;
+        public PatchabilityVerifier.Verdict verdict;
+        public long scanTimeMs;
+        /** Set if the APK could not be read at all. */
+        public String error;
+
+        public ScanEntry(String apkPath) {
+            this.apkPath = apkPath;
+        }
+
+        public boolean isMethodMatched() {
+            return verdict == PatchabilityVerifier.Verdict.PATCHABLE;
+        }
+    }
+
+    public ApkScanner(PatchabilityVerifier verifier, ComputeScheduler scheduler) {
+        this(verifier, scheduler, defaultParallelism());
+    }
+
+    public ApkScanner(PatchabilityVerifier verifier, ComputeScheduler scheduler, int parallelism) {
+        this.verifier = verifier;
+        this.scheduler = scheduler;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    private static int defaultParallelism() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int byMemory = (int) Math.max(1, Runtime.getRuntime().maxMemory() / BYTES_PER_WORKER / 2);
+        return Math.min(cores, byMemory);
+    }
+
+    /**
+     * Scans every .apk below {@code directory} and returns one entry per APK, sorted by path.
+     */
+    public List<ScanEntry> scanDirectory(File directory, ApkProcessor.ProgressListener progressListener)
+            throws IOException {
+        List<File> apkFiles = new ArrayList<>();
+        collectApkFiles(directory, apkFiles);
+        progressListener.onProgress("Scanning " + apkFiles.size() + " APKs, up to " + parallelism + " at a time");
+
+        List<ScanEntry> results = new ArrayList<>(apkFiles.size());
+        List<Future<ScanEntry>> submitted = new ArrayList<>(apkFiles.size());
+        try {
+            // The scheduler decides how many run at once; this only bounds how many DEX files are in memory
+            CompletionService<ScanEntry> completionService = new ExecutorCompletionService<>(scheduler.cpuExecutor());
+            int next = 0;
+            for (; next < Math.min(parallelism, apkFiles.size()); next++) {
+                File apkFile = apkFiles.get(next);
+                submitted.add(completionService.submit(() -> scanApk(apkFile)));
+            }
+            for (int i = 0; i < apkFiles.size(); i++) {
+                ScanEntry entry = completionService.take().get();
+                if (next < apkFiles.size()) {
+                    File apkFile = apkFiles.get(next++);
+                    submitted.add(completionService.submit(() -> scanApk(apkFile)));
+                }
+                results.add(entry);
+                progressListener.onProgress("Scanned " + (i + 1) + "/" + apkFiles.size() + ": "
+                        + new File(entry.apkPath).getName() + " -> " + (entry.error != null ? "error" : entry.verdict));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Scan interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Scan failed", e.getCause());
+        } finally {
+            for (Future<ScanEntry> future : submitted) {
+                future.cancel(true);
+            }
+        }
+
+        Collections.sort(results, (e1, e2) -> e1.apkPath.compareTo(e2.apkPath));
+        return results;
+    }
+
+    /**
+     * Scans a single APK. Errors are recorded in the entry instead of being thrown, so one broken
+     * file does not abort a scan over thousands.
+     */
+    public ScanEntry scanApk(File apkFile) {
+        ScanEntry entry = new ScanEntry(apkFile.getAbsolutePath());
+        long start = System.nanoTime();
+        try {
+            // Manifest, entry list and DEX tables all come from one open of the central directory
+            try (ZipFile zipFile = new ZipFile(apkFile)) {
+                BinaryManifest manifest = BinaryManifest.read(zipFile);
+                entry.packageName = manifest.packageName;
+                entry.versionCode = manifest.versionCode;
+                entry.versionName = manifest.versionName;
+                List<String> dexPaths = ApkProcessor.getSortedDexFilePaths(zipFile);
+                PatchabilityVerifier.Result result = verifier.verifyApk(zipFile, dexPaths);
+                entry.verdict = result.verdict;
+                entry.dexEntryPath = result.dexEntryPath;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to scan " + apkFile.getAbsolutePath(), e);
+            entry.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+        entry.scanTimeMs = (System.nanoTime() - start) / 1_000_000;
+        return entry;
+    }
+
+    private static void collectApkFiles(File directory, List<File> out) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectApkFiles(file, out);
+            } else if (file.getName().toLowerCase(Locale.ROOT).endsWith(".apk")) {
+                out.add(file);
+            }
+        }
+    }
+
+    /**
+     * Writes the report as JSON if {@code reportFile} ends in .json, CSV otherwise.
+     */
+    public static void writeReport(List<ScanEntry> entries, File reportFile) throws IOException {
+        try (Writer writer = new FileWriter(reportFile)) {
+            if (reportFile.getName().toLowerCase(Locale.ROOT).endsWith(".json")) {
+                writer.write(toJson(entries));
+            } else {
+                writeCsv(entries, writer);
+            }
+        }
+    }
+
+    private static void writeCsv(List<ScanEntry> entries, Writer writer) throws IOException {
+        writer.write("apk,package,version_code,version_name,dex,verdict,method_matched,scan_time_ms,error\n");
+        for (ScanEntry entry : entries) {
+            writer.write(csv(entry.apkPath) + ","
+                    + csv(entry.packageName) + ","
+                    + entry.versionCode + ","
+                    + csv(entry.versionName) + ","
+                    + csv(entry.dexEntryPath) + ","
+                    + (entry.verdict != null ? entry.verdict.name() : "") + ","
+                    + entry.isMethodMatched() + ","
+                    + entry.scanTimeMs + ","
+                    + csv(entry.error) + "\n");
+        }
+    }
+
+    private static String toJson(List<ScanEntry> entries) throws IOException {
+        try {
+            JSONArray array = new JSONArray();
+            for (ScanEntry entry : entries) {
+                JSONObject object = new JSONObject();
+                object.put("apk", entry.apkPath);
+                object.put("package", entry.packageName != null ? entry.packageName : JSONObject.NULL);
+                object.put("versionCode", entry.versionCode);
+                object.put("versionName", entry.versionName != null ? entry.versionName : JSONObject.NULL);
+                object.put("dex", entry.dexEntryPath != null ? entry.dexEntryPath : JSONObject.NULL);
+                object.put("verdict", entry.verdict != null ? entry.verdict.name() : JSONObject.NULL);
+                object.put("methodMatched", entry.isMethodMatched());
+                object.put("scanTimeMs", entry.scanTimeMs);
+                if (entry.error != null) {
+                    object.put("error", entry.error);
+                }
+                array.put(object);
+            }
+            return array.toString(2);
+        } catch (JSONException e) {
+            throw new IOException("Failed to build JSON report", e);
+        }
+    }
+
+    private static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
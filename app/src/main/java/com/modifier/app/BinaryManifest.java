@@ -0,0 +1,237 @@
+package com.modifier.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Minimal reader for the binary (AXML) AndroidManifest.xml inside an APK.
+ *
+ * Only the attributes we need are pulled out: package, versionCode, versionName, split and the
+ * application's label, icon and extractNativeLibs. Attributes are matched by their framework
+ * resource id first, so obfuscated manifests with stripped attribute names still work.
+ */
+public class BinaryManifest {
+    public static final String ENTRY_NAME = "AndroidManifest.xml";
+
+    // Chunk types
+    private static final int CHUNK_STRING_POOL = 0x0001;
+    private static final int CHUNK_XML = 0x0003;
+    private static final int CHUNK_RESOURCE_MAP = 0x0180;
+    private static final int CHUNK_START_ELEMENT = 0x0102;
+
+    // Typed value data types
+    private static final int TYPE_REFERENCE = 0x01;
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_INT_DEC = 0x10;
+    private static final int TYPE_INT_HEX = 0x11;
+    private static final int TYPE_INT_BOOLEAN = 0x12;
+
+    // android.R.attr ids
+    private static final int ATTR_LABEL = 0x01010001;
+    private static final int ATTR_ICON = 0x01010002;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_VERSION_NAME = 0x0101021c;
+    private static final int ATTR_EXTRACT_NATIVE_LIBS = 0x010104ea;
+
+    private static final int UTF8_FLAG = 1 << 8;
+
+    public String packageName;
+    public long versionCode;
+    public String versionName;
+    /** Name of the split this APK is, or null for a base APK. */
+    public String splitName;
+    /** Literal application label, or null if the label is a resource reference. */
+    public String label;
+    /** Resource id of the application label, or 0. */
+    public int labelResId;
+    /** Resource id of the application icon, or 0. */
+    public int iconResId;
+    /** Value of application android:extractNativeLibs, or null if absent. */
+    public Boolean extractNativeLibs;
+
+    /**
+     * Reads and parses the manifest entry of an open APK. Only that single entry is inflated.
+     */
+    public static BinaryManifest read(ZipFile zipFile) throws IOException {
+        ZipEntry entry = zipFile.getEntry(ENTRY_NAME);
+        if (entry == null) {
+            throw new IOException("APK has no " + ENTRY_NAME);
+        }
+        try (InputStream is = zipFile.getInputStream(entry)) {
+            return parse(PooledIo.readFully("read entry", is, entry.getSize()));
+        }
+    }
+
+    public static BinaryManifest parse(byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < 8 || (buf.getShort(0) & 0xFFFF) != CHUNK_XML) {
+            throw new IOException("Not a binary XML manifest");
+        }
+
+        BinaryManifest manifest = new BinaryManifest();
+        String[] strings = new String[0];
+        int[] resourceIds = new int[0];
+        int offset = buf.getShort(2) & 0xFFFF;
+
+        while (offset + 8 <= data.length) {
+            int type = buf.getShort(offset) & 0xFFFF;
+            int headerSize = buf.getShort(offset + 2) & 0xFFFF;
+            int size = buf.getInt(offset + 4);
+            if (size < 8 || offset + size > data.length) {
+                throw new IOException("Corrupt chunk at offset " + offset);
+            }
+
+            if (type == CHUNK_STRING_POOL) {
+                strings = readStringPool(buf, offset);
+            } else if (type == CHUNK_RESOURCE_MAP) {
+                resourceIds = new int[(size - headerSize) / 4];
+                for (int i = 0; i < resourceIds.length; i++) {
+                    resourceIds[i] = buf.getInt(offset + headerSize + i * 4);
+                }
+            } else if (type == CHUNK_START_ELEMENT) {
+                String elementName = stringAt(strings, buf.getInt(offset + 20));
+                if ("manifest".equals(elementName) || "application".equals(elementName)) {
+                    readAttributes(manifest, elementName, buf, offset, strings, resourceIds);
+                }
+                if ("application".equals(elementName)) {
+                    break; // everything we need lives on <manifest> and <application>
+                }
+            }
+            offset += size;
+        }
+
+        if (manifest.packageName == null) {
+            throw new IOException("Manifest has no package attribute");
+        }
+        return manifest;
+    }
+
+    private static void readAttributes(BinaryManifest manifest, String elementName, ByteBuffer buf, int offset,
+                                       String[] strings, int[] resourceIds) {
+        int attributeStart = buf.getShort(offset + 24) & 0xFFFF;
+        int attributeSize = buf.getShort(offset + 26) & 0xFFFF;
+        int attributeCount = buf.getShort(offset + 28) & 0xFFFF;
+        // Attribute offsets are relative to the start of the element extension (after the 16 byte node header)
+        int first = offset + 16 + attributeStart;
+
+        for (int i = 0; i < attributeCount; i++) {
+            int attr = first + i * attributeSize;
+            int nameIndex = buf.getInt(attr + 4);
+            int rawValue = buf.getInt(attr + 8);
+            int dataType = buf.get(attr + 15) & 0xFF;
+            int data = buf.getInt(attr + 16);
+            int resId = nameIndex >= 0 && nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+            String name = stringAt(strings, nameIndex);
+
+            if ("manifest".equals(elementName)) {
+                if (resId == 0 && "package".equals(name)) {
+                    manifest.packageName = stringAt(strings, rawValue);
+                } else if (resId == ATTR_VERSION_CODE || (resId == 0 && "versionCode".equals(name))) {
+                    if (dataType == TYPE_INT_DEC || dataType == TYPE_INT_HEX) {
+                        manifest.versionCode = data & 0xFFFFFFFFL;
+                    } else if (dataType == TYPE_STRING) {
+                        manifest.versionCode = parseLongOrZero(stringAt(strings, rawValue));
+                    }
+                } else if (resId == ATTR_VERSION_NAME || (resId == 0 && "versionName".equals(name))) {
+                    manifest.versionName = dataType == TYPE_STRING ? stringAt(strings, rawValue) : null;
+                } else if (resId == 0 && "split".equals(name)) {
+                    manifest.splitName = stringAt(strings, rawValue);
+                }
+            } else {
+                if (resId == ATTR_LABEL || (resId == 0 && "label".equals(name))) {
+                    if (dataType == TYPE_STRING) {
+                        manifest.label = stringAt(strings, rawValue);
+                    } else if (dataType == TYPE_REFERENCE) {
+                        manifest.labelResId = data;
+                    }
+                } else if (resId == ATTR_ICON || (resId == 0 && "icon".equals(name))) {
+                    if (dataType == TYPE_REFERENCE) {
+                        manifest.iconResId = data;
+                    }
+                } else if (resId == ATTR_EXTRACT_NATIVE_LIBS || (resId == 0 && "extractNativeLibs".equals(name))) {
+                    if (dataType == TYPE_INT_BOOLEAN) {
+                        manifest.extractNativeLibs = data != 0;
+                    }
+                }
+            }
+        }
+    }
+
+    private static String[] readStringPool(ByteBuffer buf, int offset) {
+        String[] strings = new String[buf.getInt(offset + 8)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readPoolString(buf, offset, i);
+        }
+        return strings;
+    }
+
+    /**
+     * Decodes a single string of the string pool chunk at {@code offset}, or returns null if the
+     * index is out of range. Used directly for large pools where only a few strings are needed.
+     */
+    static String readPoolString(ByteBuffer buf, int offset, int index) {
+        int stringCount = buf.getInt(offset + 8);
+        if (index < 0 || index >= stringCount) {
+            return null;
+        }
+        int flags = buf.getInt(offset + 16);
+        int stringsStart = buf.getInt(offset + 20);
+        int headerSize = buf.getShort(offset + 2) & 0xFFFF;
+        int stringOffset = offset + stringsStart + buf.getInt(offset + headerSize + index * 4);
+        return (flags & UTF8_FLAG) != 0 ? readUtf8(buf, stringOffset) : readUtf16(buf, stringOffset);
+    }
+
+    private static String readUtf8(ByteBuffer buf, int offset) {
+        // Character count, then byte count; each is one byte, or two with the high bit set
+        int pos = offset;
+        if ((buf.get(pos) & 0x80) != 0) {
+            pos += 2;
+        } else {
+            pos += 1;
+        }
+        int byteLength = buf.get(pos) & 0xFF;
+        if ((byteLength & 0x80) != 0) {
+            byteLength = ((byteLength & 0x7F) << 8) | (buf.get(pos + 1) & 0xFF);
+            pos += 2;
+        } else {
+            pos += 1;
+        }
+        byte[] bytes = new byte[byteLength];
+        for (int i = 0; i < byteLength; i++) {
+            bytes[i] = buf.get(pos + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readUtf16(ByteBuffer buf, int offset) {
+        int pos = offset;
+        int length = buf.getShort(pos) & 0xFFFF;
+        pos += 2;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7FFF) << 16) | (buf.getShort(pos) & 0xFFFF);
+            pos += 2;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buf.getChar(pos + i * 2);
+        }
+        return new String(chars);
+    }
+
+    private static String stringAt(String[] strings, int index) {
+        return index >= 0 && index < strings.length ? strings[index] : null;
+    }
+
+    private static long parseLongOrZero(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.modifier.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rewrites application attributes in a binary (AXML) AndroidManifest.xml without a full XML round
+ * trip. An existing attribute is changed in place; a missing one is inserted into the element, with
+ * its name added to the string pool and resource map and every string reference after it renumbered.
+ */
+public class BinaryManifestEditor {
+    // Chunk types
+    private static final int CHUNK_STRING_POOL = 0x0001;
+    private static final int CHUNK_XML = 0x0003;
+    private static final int CHUNK_RESOURCE_MAP = 0x0180;
+    private static final int CHUNK_START_NAMESPACE = 0x0100;
+    private static final int CHUNK_END_NAMESPACE = 0x0101;
+    private static final int CHUNK_START_ELEMENT = 0x0102;
+    private static final int CHUNK_END_ELEMENT = 0x0103;
+    private static final int CHUNK_CDATA = 0x0104;
+
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_INT_BOOLEAN = 0x12;
+    private static final int ATTR_EXTRACT_NATIVE_LIBS = 0x010104ea;
+    private static final int UTF8_FLAG = 1 << 8;
+    private static final int NO_STRING = -1;
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    private BinaryManifestEditor() {
+    }
+
+    /**
+     * Returns a copy of {@code manifest} with application android:extractNativeLibs set to
+     * {@code value}.
+     */
+    public static byte[] setExtractNativeLibs(byte[] manifest, boolean value) throws IOException {
+        return setApplicationBoolean(manifest, ATTR_EXTRACT_NATIVE_LIBS, "extractNativeLibs", value);
+    }
+
+    private static byte[] setApplicationBoolean(byte[] data, int attrResId, String attrName, boolean value)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < 8 || (buf.getShort(0) & 0xFFFF) != CHUNK_XML) {
+            throw new IOException("Not a binary XML manifest");
+        }
+
+        int stringPool = -1;
+        int resourceMap = -1;
+        int application = -1;
+        int offset = buf.getShort(2) & 0xFFFF;
+        while (offset + 8 <= data.length) {
+            int type = buf.getShort(offset) & 0xFFFF;
+            int size = buf.getInt(offset + 4);
+            if (size < 8 || offset + size > data.length) {
+                throw new IOException("Corrupt chunk at offset " + offset);
+            }
+            if (type == CHUNK_STRING_POOL && stringPool < 0) {
+                stringPool = offset;
+            } else if (type == CHUNK_RESOURCE_MAP && resourceMap < 0) {
+                resourceMap = offset;
+            } else if (type == CHUNK_START_ELEMENT && application < 0 && stringPool >= 0
+                    && "application".equals(BinaryManifest.readPoolString(buf, stringPool, buf.getInt(offset + 20)))) {
+                application = offset;
+            }
+            offset += size;
+        }
+        if (stringPool < 0 || resourceMap < 0 || application < 0) {
+            throw new IOException("Manifest has no string pool, resource map or application element");
+        }
+
+        int[] resourceIds = new int[(buf.getInt(resourceMap + 4) - (buf.getShort(resourceMap + 2) & 0xFFFF)) / 4];
+        for (int i = 0; i < resourceIds.length; i++) {
+            resourceIds[i] = buf.getInt(resourceMap + (buf.getShort(resourceMap + 2) & 0xFFFF) + i * 4);
+        }
+
+        // Attribute already there: flip its value, nothing moves
+        int attributeStart = buf.getShort(application + 24) & 0xFFFF;
+        int attributeSize = buf.getShort(application + 26) & 0xFFFF;
+        int attributeCount = buf.getShort(application + 28) & 0xFFFF;
+        int firstAttribute = application + 16 + attributeStart;
+        for (int i = 0; i < attributeCount; i++) {
+            int attr = firstAttribute + i * attributeSize;
+            int nameIndex = buf.getInt(attr + 4);
+            int resId = nameIndex >= 0 && nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+            if (resId == attrResId
+                    || (resId == 0 && attrName.equals(BinaryManifest.readPoolString(buf, stringPool, nameIndex)))) {
+                byte[] edited = data.clone();
+                writeBooleanAttributeValue(ByteBuffer.wrap(edited).order(ByteOrder.LITTLE_ENDIAN), attr, value);
+                return edited;
+            }
+        }
+
+        return insertApplicationBoolean(buf, stringPool, resourceMap, resourceIds, application, attrResId, attrName,
+                value);
+    }
+
+    private static void writeBooleanAttributeValue(ByteBuffer buf, int attr, boolean value) {
+        buf.putInt(attr + 8, NO_STRING); // raw value
+        buf.putShort(attr + 12, (short) 8);
+        buf.put(attr + 14, (byte) 0);
+        buf.put(attr + 15, (byte) TYPE_INT_BOOLEAN);
+        buf.putInt(attr + 16, value ? 0xFFFFFFFF : 0);
+    }
+
+    private static byte[] insertApplicationBoolean(ByteBuffer buf, int stringPool, int resourceMap, int[] resourceIds,
+                                                   int application, int attrResId, String attrName, boolean value)
+            throws IOException {
+        int stringCount = buf.getInt(stringPool + 8);
+        if (buf.getInt(stringPool + 12) != 0) {
+            throw new IOException("Manifest string pool has styles");
+        }
+        String[] strings = new String[stringCount];
+        int namespaceIndex = NO_STRING;
+        int nameIndex = NO_STRING;
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = BinaryManifest.readPoolString(buf, stringPool, i);
+            if (namespaceIndex == NO_STRING && ANDROID_NAMESPACE.equals(strings[i])) {
+                namespaceIndex = i;
+            }
+            if (nameIndex == NO_STRING && i < resourceIds.length && resourceIds[i] == attrResId) {
+                nameIndex = i;
+            }
+        }
+        if (namespaceIndex == NO_STRING) {
+            throw new IOException("Manifest does not declare the android namespace");
+        }
+
+        // A new attribute name has to sit right after the resource-mapped strings to get an id
+        int insertedString = NO_STRING;
+        if (nameIndex == NO_STRING) {
+            insertedString = resourceIds.length;
+            nameIndex = insertedString;
+            if (namespaceIndex >= insertedString) {
+                namespaceIndex++;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(buf.capacity() + 256);
+        int headerSize = buf.getShort(2) & 0xFFFF;
+        out.write(buf.array(), 0, headerSize);
+        int offset = headerSize;
+        while (offset + 8 <= buf.capacity()) {
+            int type = buf.getShort(offset) & 0xFFFF;
+            int size = buf.getInt(offset + 4);
+            byte[] chunk = new byte[size];
+            System.arraycopy(buf.array(), offset, chunk, 0, size);
+            ByteBuffer chunkBuf = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (offset == stringPool && insertedString != NO_STRING) {
+                chunk = rebuildStringPool(chunkBuf, strings, insertedString, attrName);
+            } else if (offset == resourceMap && insertedString != NO_STRING) {
+                ByteBuffer grown = ByteBuffer.allocate(size + 4).order(ByteOrder.LITTLE_ENDIAN);
+                grown.put(chunk);
+                grown.putInt(attrResId);
+                grown.putInt(4, size + 4);
+                chunk = grown.array();
+            } else if (isNode(type)) {
+                if (insertedString != NO_STRING) {
+                    shiftStringReferences(chunkBuf, type, insertedString);
+                }
+                if (offset == application) {
+                    chunk = insertAttribute(chunkBuf, resourceIds, insertedString, namespaceIndex, nameIndex,
+                            attrResId, value);
+                }
+            }
+            out.write(chunk, 0, chunk.length);
+            offset += size;
+        }
+
+        byte[] edited = out.toByteArray();
+        ByteBuffer.wrap(edited).order(ByteOrder.LITTLE_ENDIAN).putInt(4, edited.length);
+        return edited;
+    }
+
+    private static boolean isNode(int type) {
+        return type == CHUNK_START_NAMESPACE || type == CHUNK_END_NAMESPACE || type == CHUNK_START_ELEMENT
+                || type == CHUNK_END_ELEMENT || type == CHUNK_CDATA;
+    }
+
+    /**
+     * Renumbers every string reference of a node chunk for a string inserted at {@code inserted}.
+     */
+    private static void shiftStringReferences(ByteBuffer node, int type, int inserted) {
+        shift(node, 12, inserted); // comment
+        switch (type) {
+            case CHUNK_START_NAMESPACE:
+            case CHUNK_END_NAMESPACE:
+            case CHUNK_END_ELEMENT:
+                shift(node, 16, inserted); // prefix / namespace
+                shift(node, 20, inserted); // uri / name
+                break;
+            case CHUNK_CDATA:
+                shift(node, 16, inserted);
+                if ((node.get(23) & 0xFF) == TYPE_STRING) {
+                    shift(node, 24, inserted);
+                }
+                break;
+            case CHUNK_START_ELEMENT:
+                shift(node, 16, inserted);
+                shift(node, 20, inserted);
+                int attributeSize = node.getShort(26) & 0xFFFF;
+                int attributeCount = node.getShort(28) & 0xFFFF;
+                int first = 16 + (node.getShort(24) & 0xFFFF);
+                for (int i = 0; i < attributeCount; i++) {
+                    int attr = first + i * attributeSize;
+                    shift(node, attr, inserted);
+                    shift(node, attr + 4, inserted);
+                    shift(node, attr + 8, inserted);
+                    if ((node.get(attr + 15) & 0xFF) == TYPE_STRING) {
+                        shift(node, attr + 16, inserted);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void shift(ByteBuffer node, int position, int inserted) {
+        int ref = node.getInt(position);
+        if (ref != NO_STRING && ref >= inserted) {
+            node.putInt(position, ref + 1);
+        }
+    }
+
+    /**
+     * Returns the element chunk with a boolean attribute added, keeping attributes ordered by
+     * resource id the way aapt2 writes them.
+     */
+    private static byte[] insertAttribute(ByteBuffer element, int[] resourceIds, int insertedString,
+                                          int namespaceIndex, int nameIndex, int attrResId, boolean value) {
+        int attributeStart = element.getShort(24) & 0xFFFF;
+        int attributeSize = element.getShort(26) & 0xFFFF;
+        int attributeCount = element.getShort(28) & 0xFFFF;
+        int first = 16 + attributeStart;
+
+        int position = attributeCount;
+        for (int i = 0; i < attributeCount; i++) {
+            int attrName = element.getInt(first + i * attributeSize + 4);
+            // Names were renumbered already; undo that to look up their resource id
+            int originalName = insertedString != NO_STRING && attrName > insertedString ? attrName - 1 : attrName;
+            int resId = originalName >= 0 && originalName < resourceIds.length ? resourceIds[originalName] : 0;
+            if (resId == 0 || (resId & 0xFFFFFFFFL) > (attrResId & 0xFFFFFFFFL)) {
+                position = i;
+                break;
+            }
+        }
+
+        int size = element.capacity();
+        int insertAt = first + position * attributeSize;
+        ByteBuffer grown = ByteBuffer.allocate(size + attributeSize).order(ByteOrder.LITTLE_ENDIAN);
+        grown.put(element.array(), 0, insertAt);
+        grown.putInt(namespaceIndex);
+        grown.putInt(nameIndex);
+        grown.position(insertAt + attributeSize);
+        grown.put(element.array(), insertAt, size - insertAt);
+        writeBooleanAttributeValue(grown, insertAt, value);
+
+        grown.putInt(4, size + attributeSize);
+        grown.putShort(28, (short) (attributeCount + 1));
+        // id/class/style attribute indices are 1-based, 0 meaning none
+        for (int field = 30; field <= 34; field += 2) {
+            int index = grown.getShort(field) & 0xFFFF;
+            if (index > position) {
+                grown.putShort(field, (short) (index + 1));
+            }
+        }
+        return grown.array();
+    }
+
+    /**
+     * Re-encodes the pool with {@code newString} inserted at {@code index}, in the pool's own encoding.
+     */
+    private static byte[] rebuildStringPool(ByteBuffer pool, String[] strings, int index, String newString) {
+        int headerSize = pool.getShort(2) & 0xFFFF;
+        int flags = pool.getInt(16);
+        boolean utf8 = (flags & UTF8_FLAG) != 0;
+        int count = strings.length + 1;
+
+        ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            String s = i < index ? strings[i] : i == index ? newString : strings[i - 1];
+            offsets[i] = stringData.size();
+            encodeString(stringData, s != null ? s : "", utf8);
+        }
+        while (stringData.size() % 4 != 0) {
+            stringData.write(0);
+        }
+
+        int stringsStart = headerSize + count * 4;
+        ByteBuffer rebuilt = ByteBuffer.allocate(stringsStart + stringData.size()).order(ByteOrder.LITTLE_ENDIAN);
+        rebuilt.put(pool.array(), 0, headerSize);
+        rebuilt.putInt(4, rebuilt.capacity());
+        rebuilt.putInt(8, count);
+        rebuilt.putInt(12, 0); // no styles
+        rebuilt.putInt(20, stringsStart);
+        rebuilt.putInt(24, 0);
+        rebuilt.position(headerSize);
+        for (int stringOffset : offsets) {
+            rebuilt.putInt(stringOffset);
+        }
+        rebuilt.put(stringData.toByteArray());
+        return rebuilt.array();
+    }
+
+    private static void encodeString(ByteArrayOutputStream out, String s, boolean utf8) {
+        if (utf8) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeUtf8Length(out, s.length());
+            writeUtf8Length(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            out.write(0);
+        } else {
+            int length = s.length();
+            if (length > 0x7FFF) {
+                writeChar(out, 0x8000 | (length >>> 16));
+            }
+            writeChar(out, length & 0xFFFF);
+            for (int i = 0; i < length; i++) {
+                writeChar(out, s.charAt(i));
+            }
+            writeChar(out, 0);
+        }
+    }
+
+    private static void writeUtf8Length(ByteArrayOutputStream out, int length) {
+        if (length > 0x7F) {
+            out.write(0x80 | (length >>> 8));
+        }
+        out.write(length & 0xFF);
+    }
+
+    private static void writeChar(ByteArrayOutputStream out, int c) {
+        out.write(c & 0xFF);
+        out.write((c >>> 8) & 0xFF);
+    }
+}
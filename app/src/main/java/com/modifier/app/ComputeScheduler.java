@@ -0,0 +1,331 @@
+package com.modifier.app;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns every worker thread of the app and hands out CPU permits to the pipeline stages.
+ *
+ * There are two kinds of work:
+ * <ul>
+ *     <li>Serial queues for orchestration (a processing job, a pre-check). They hold no permits,
+ *     since they mostly wait on I/O or on CPU work they started themselves.</li>
+ *     <li>CPU work, either submitted through {@link #cpuExecutor()} (one permit per task) or run
+ *     in place after {@link #acquireCpuPermits(int)} for stages that fan out internally, like Baksmali.</li>
+ * </ul>
+ * The number of permits follows the device state: it drops as the thermal status rises and is
+ * halved in battery saver, so long batch runs back off before the kernel throttles them.
+ */
+public class ComputeScheduler {
+    private static final String TAG = "ComputeScheduler";
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private static ComputeScheduler instance;
+
+    private final int cores;
+    private final ThreadPoolExecutor workerPool;
+    private final Executor cpuExecutor = this::executeCpu;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Runnable> cpuQueue = new ArrayDeque<>();
+    private int allowedPermits;
+    private int permitsInUse;
+    private int thermalStatus;
+    private boolean powerSaveMode;
+
+    // Utilization accounting, guarded by lock
+    private long completedCpuTasks;
+    private long busyPermitNanos;
+    private long capacityPermitNanos;
+    private long lastAccountingNanos = System.nanoTime();
+
+    public static synchronized ComputeScheduler getInstance(Context context) {
+        if (instance == null) {
+            instance = new ComputeScheduler(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ComputeScheduler(Context context) {
+        this(Runtime.getRuntime().availableProcessors());
+        registerPowerSignals(context);
+    }
+
+    /**
+     * A scheduler with a fixed number of permits that does not follow the device state, for tests.
+     */
+    ComputeScheduler(int permits) {
+        cores = Math.max(1, permits);
+        allowedPermits = cores;
+        AtomicInteger threadCount = new AtomicInteger();
+        workerPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }, "compute-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private void registerPowerSignals(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null) {
+            return;
+        }
+        powerSaveMode = powerManager.isPowerSaveMode();
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                synchronized (lock) {
+                    powerSaveMode = powerManager.isPowerSaveMode();
+                    updateAllowedPermitsLocked();
+                }
+            }
+        }, new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            thermalStatus = powerManager.getCurrentThermalStatus();
+            powerManager.addThermalStatusListener(status -> {
+                synchronized (lock) {
+                    thermalStatus = status;
+                    updateAllowedPermitsLocked();
+                }
+            });
+        }
+        synchronized (lock) {
+            updateAllowedPermitsLocked();
+        }
+    }
+
+    private void updateAllowedPermitsLocked() {
+        int allowed = cores;
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            allowed = 1;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            allowed = Math.min(2, cores);
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            allowed = cores / 2;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_LIGHT) {
+            allowed = cores - 1;
+        }
+        if (powerSaveMode) {
+            allowed = Math.min(allowed, cores / 2);
+        }
+        allowed = Math.max(1, allowed);
+        if (allowed != allowedPermits) {
+            Log.i(TAG, "CPU permits " + allowedPermits + " -> " + allowed
+                    + " (thermal status " + thermalStatus + ", power save " + powerSaveMode + ")");
+            accountLocked();
+            allowedPermits = allowed;
+            lock.notifyAll();
+            dispatchLocked();
+        }
+    }
+
+    /**
+     * Executor for CPU-bound tasks. Each task holds one permit while it runs; tasks beyond the
+     * current permit count wait in a FIFO queue.
+     */
+    public Executor cpuExecutor() {
+        return cpuExecutor;
+    }
+
+    public <T> Future<T> submitCpu(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        executeCpu(task);
+        return task;
+    }
+
+    private void executeCpu(Runnable task) {
+        synchronized (lock) {
+            cpuQueue.add(task);
+            dispatchLocked();
+        }
+    }
+
+    private void dispatchLocked() {
+        while (!cpuQueue.isEmpty() && permitsInUse < allowedPermits) {
+            Runnable task = cpuQueue.poll();
+            accountLocked();
+            permitsInUse++;
+            workerPool.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (lock) {
+                        completedCpuTasks++;
+                    }
+                    releaseCpuPermits(1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Blocks until at least one permit is free and takes up to {@code wanted} of them. The caller
+     * sizes its own fan-out by the returned count and must hand them back with
+     * {@link #releaseCpuPermits(int)}.
+     */
+    public int acquireCpuPermits(int wanted) throws InterruptedException {
+        synchronized (lock) {
+            while (permitsInUse >= allowedPermits) {
+                lock.wait();
+            }
+            int granted = Math.max(1, Math.min(wanted, allowedPermits - permitsInUse));
+            accountLocked();
+            permitsInUse += granted;
+            return granted;
+        }
+    }
+
+    public void releaseCpuPermits(int permits) {
+        synchronized (lock) {
+            accountLocked();
+            permitsInUse -= permits;
+            lock.notifyAll();
+            dispatchLocked();
+        }
+    }
+
+    private void accountLocked() {
+        long now = System.nanoTime();
+        long elapsed = now - lastAccountingNanos;
+        busyPermitNanos += elapsed * Math.min(permitsInUse, allowedPermits);
+        capacityPermitNanos += elapsed * allowedPermits;
+        lastAccountingNanos = now;
+    }
+
+    /**
+     * Serial queue for orchestration work, backed by the shared worker threads.
+     */
+    public SerialQueue newSerialQueue(String name) {
+        return new SerialQueue(name);
+    }
+
+    public Stats getStats() {
+        synchronized (lock) {
+            accountLocked();
+            double utilization = capacityPermitNanos == 0 ? 0 : (double) busyPermitNanos / capacityPermitNanos;
+            return new Stats(allowedPermits, permitsInUse, cpuQueue.size(), completedCpuTasks,
+                    workerPool.getPoolSize(), utilization, thermalStatus, powerSaveMode);
+        }
+    }
+
+    public static class Stats {
+        public final int allowedPermits;
+        public final int permitsInUse;
+        public final int queueDepth;
+        public final long completedTasks;
+        public final int workerThreads;
+        /** Share of permit-time actually in use since the scheduler was created, 0..1. */
+        public final double utilization;
+        public final int thermalStatus;
+        public final boolean powerSaveMode;
+
+        Stats(int allowedPermits, int permitsInUse, int queueDepth, long completedTasks, int workerThreads,
+              double utilization, int thermalStatus, boolean powerSaveMode) {
+            this.allowedPermits = allowedPermits;
+            this.permitsInUse = permitsInUse;
+            this.queueDepth = queueDepth;
+            this.completedTasks = completedTasks;
+            this.workerThreads = workerThreads;
+            this.utilization = utilization;
+            this.thermalStatus = thermalStatus;
+            this.powerSaveMode = powerSaveMode;
+        }
+
+        @Override
+        public String toString() {
+            return "permits " + permitsInUse + "/" + allowedPermits + ", queued " + queueDepth
+                    + ", completed " + completedTasks + ", threads " + workerThreads
+                    + ", utilization " + Math.round(utilization * 100) + "%"
+                    + ", thermal " + thermalStatus + (powerSaveMode ? ", power save" : "");
+        }
+    }
+
+    public class SerialQueue implements Executor {
+        private final String name;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private Runnable active;
+        private Thread activeThread;
+        private boolean shutdown;
+
+        private SerialQueue(String name) {
+            this.name = name;
+        }
+
+        public <T> Future<T> submit(Callable<T> callable) {
+            FutureTask<T> task = new FutureTask<>(callable);
+            execute(task);
+            return task;
+        }
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            if (shutdown) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            tasks.add(() -> {
+                synchronized (this) {
+                    activeThread = Thread.currentThread();
+                }
+                try {
+                    task.run();
+                } finally {
+                    synchronized (this) {
+                        activeThread = null;
+                        Thread.interrupted(); // don't leak a shutdownNow() interrupt into the next task
+                    }
+                    scheduleNext();
+                }
+            });
+            if (active == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            active = tasks.poll();
+            if (active != null) {
+                workerPool.execute(active);
+            }
+        }
+
+        public synchronized int getQueueDepth() {
+            return tasks.size();
+        }
+
+        /** Stops accepting tasks; queued ones still run. */
+        public synchronized void shutdown() {
+            shutdown = true;
+        }
+
+        /** Stops accepting tasks, drops queued ones and interrupts the running one. */
+        public synchronized void shutdownNow() {
+            shutdown = true;
+            tasks.clear();
+            if (activeThread != null) {
+                activeThread.interrupt();
+            }
+        }
+    }
+}
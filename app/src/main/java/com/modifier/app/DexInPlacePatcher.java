@@ -0,0 +1,366 @@
+package com.modifier.app;
+
+import android.util.Log;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Adler32;
+
+/**
+ * Fast path for the DefaultProvider patch: overwrites the code_item of
+ * {@code onCreate(Landroid/content/Context;)Z} directly inside the DEX bytes when the
+ * replacement fits, then fixes up the header signature and checksum.
+ *
+ * No disassembly, pool rebuild or DEX reserialization happens, so everything outside the
+ * patched code_item and the header stays byte-identical. Whenever the fast path does not
+ * apply (class or pool entries missing, code_item too small or shared), the caller falls
+ * back to the smali round trip.
+ */
+public class DexInPlacePatcher {
+    private static final String TAG = "DexInPlacePatcher";
+
+    private static final String CONTEXT_TYPE = "Landroid/content/Context;";
+
+    // DEX header layout
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int SIGNATURE_OFFSET = 12;
+    private static final int SIGNATURE_DATA_START = 32;
+    private static final int FILE_SIZE_OFFSET = 32;
+
+    // code_item layout
+    private static final int CODE_ITEM_HEADER_SIZE = 16;
+    private static final int ACC_PUBLIC = 0x1;
+    private static final int ACC_STATIC = 0x8;
+
+    // Registers of the replacement method: v0 is a temp, p0 = v1 (this), p1 = v2 (Context)
+    private static final int REPLACEMENT_REGISTERS = 3;
+    private static final int REPLACEMENT_INS = 2;
+    private static final int REPLACEMENT_OUTS = 3;
+    private static final int REPLACEMENT_CODE_UNITS = 16;
+
+    private DexInPlacePatcher() {
+    }
+
+    /**
+     * Patches {@code dexFile} in place if the fast path applies.
+     *
+     * @return true if the file was patched, false if the caller has to use the smali path.
+     */
+    public static boolean tryPatchInPlace(File dexFile, String targetClassPath) throws IOException {
+        byte[] dex = Files.readAllBytes(dexFile.toPath());
+        if (!patchInPlace(dex, targetClassPath)) {
+            return false;
+        }
+        Files.write(dexFile.toPath(), dex);
+        return true;
+    }
+
+    /**
+     * Patches the DEX image held in {@code dex}. The array is only modified when this
+     * method returns true.
+     */
+    public static boolean patchInPlace(byte[] dex, String targetClassPath) {
+        DexBackedDexFile dexFile;
+        try {
+            dexFile = new DexBackedDexFile(Opcodes.getDefault(), dex);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Not a DEX file dexlib2 can read, skipping in-place patch", e);
+            return false;
+        }
+        if (readInt(dex, FILE_SIZE_OFFSET) != dex.length) {
+            Log.i(TAG, "DEX file_size does not match buffer length, skipping in-place patch");
+            return false;
+        }
+
+        String classType = "L" + targetClassPath + ";";
+        List<String> contextParam = Collections.singletonList(CONTEXT_TYPE);
+        int targetMethodIndex = findMethodIndex(dexFile,
+                new ImmutableMethodReference(classType, "onCreate", contextParam, "Z"));
+        int delegateMethodIndex = findMethodIndex(dexFile,
+                new ImmutableMethodReference(classType, "onCreate", Arrays.asList(CONTEXT_TYPE, CONTEXT_TYPE), "V"));
+        int createdFieldIndex = findFieldIndex(dexFile,
+                new ImmutableFieldReference(classType, "sCreated", "Z"));
+
+        // The replacement references these ids through 16-bit operands (21c/35c formats)
+        if (targetMethodIndex < 0 || delegateMethodIndex < 0 || createdFieldIndex < 0
+                || delegateMethodIndex > 0xFFFF || createdFieldIndex > 0xFFFF) {
+            Log.i(TAG, "Method or field ids needed by the replacement are missing from this DEX");
+            return false;
+        }
+
+        int classDataOffset = findClassDataOffset(dexFile, dex, classType);
+        if (classDataOffset <= 0) {
+            Log.i(TAG, "Class " + classType + " has no class_data in this DEX");
+            return false;
+        }
+
+        int[] codeOffsets = new int[1];
+        if (!findVirtualMethodCode(dex, classDataOffset, targetMethodIndex, codeOffsets)) {
+            Log.i(TAG, "Target method is not a public virtual method with code in " + classType);
+            return false;
+        }
+        int codeOffset = codeOffsets[0];
+
+        if (countCodeItemReferences(dexFile, dex, codeOffset) != 1) {
+            Log.i(TAG, "code_item at 0x" + Integer.toHexString(codeOffset) + " is shared, skipping in-place patch");
+            return false;
+        }
+
+        int insSize = readUShort(dex, codeOffset + 2);
+        if (insSize != REPLACEMENT_INS) {
+            Log.i(TAG, "Unexpected ins_size " + insSize + " for target method");
+            return false;
+        }
+
+        int codeItemEnd = getCodeItemEnd(dex, codeOffset);
+        int availableUnits = (codeItemEnd - codeOffset - CODE_ITEM_HEADER_SIZE) / 2;
+        if (availableUnits < REPLACEMENT_CODE_UNITS) {
+            Log.i(TAG, "Replacement needs " + REPLACEMENT_CODE_UNITS + " code units, code_item only has room for "
+                    + availableUnits);
+            return false;
+        }
+
+        int[] insns = encodeReplacement(createdFieldIndex, delegateMethodIndex);
+
+        // Rewrite the code_item header. tries_size drops to 0 and insns_size grows to cover the old
+        // tries/handlers area, so the item keeps its exact byte length and the next item stays put.
+        writeShort(dex, codeOffset, REPLACEMENT_REGISTERS);
+        writeShort(dex, codeOffset + 4, REPLACEMENT_OUTS);
+        writeShort(dex, codeOffset + 6, 0);
+        writeInt(dex, codeOffset + 8, 0); // old debug info refers to old addresses
+        writeInt(dex, codeOffset + 12, availableUnits);
+
+        int insnsOffset = codeOffset + CODE_ITEM_HEADER_SIZE;
+        for (int i = 0; i < insns.length; i++) {
+            writeShort(dex, insnsOffset + i * 2, insns[i]);
+        }
+        // NOP-pad (0x0000) the rest of the instructions plus any trailing padding byte
+        Arrays.fill(dex, insnsOffset + insns.length * 2, codeItemEnd, (byte) 0);
+
+        updateSignatureAndChecksum(dex);
+        Log.i(TAG, "Patched " + classType + "->onCreate in place at code_item 0x" + Integer.toHexString(codeOffset)
+                + " (" + availableUnits + " code units)");
+        return true;
+    }
+
+    /**
+     * Encodes {@link ApkProcessor}'s replacement onCreate(Context)Z body. Keep in sync with
+     * REPLACEMENT_METHOD_SMALI.
+     */
+    private static int[] encodeReplacement(int createdFieldIndex, int delegateMethodIndex) {
+        return new int[] {
+                0x0238, 0x000e,                     // 0x0: if-eqz p1, :cond_e
+                0x0063, createdFieldIndex,          // 0x2: sget-boolean v0, sCreated:Z
+                0x0039, 0x0008,                     // 0x4: if-nez v0, :cond_c
+                0x1012,                             // 0x6: const/4 v0, 0x1
+                0x006a, createdFieldIndex,          // 0x7: sput-boolean v0, sCreated:Z
+                0x306e, delegateMethodIndex, 0x0221, // 0x9: invoke-virtual {p0, p1, p1}, onCreate(Context;Context)V
+                0x1012,                             // 0xc: const/4 v0, 0x1
+                0x000f,                             // 0xd: return v0
+                0x0012,                             // 0xe: const/4 v0, 0x0
+                0x000f                              // 0xf: return v0
+        };
+    }
+
+    private static int findMethodIndex(DexBackedDexFile dexFile, MethodReference reference) {
+        List<? extends MethodReference> methods = dexFile.getMethodSection();
+        for (int i = 0; i < methods.size(); i++) {
+            if (reference.equals(methods.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int findFieldIndex(DexBackedDexFile dexFile, FieldReference reference) {
+        List<? extends FieldReference> fields = dexFile.getFieldSection();
+        for (int i = 0; i < fields.size(); i++) {
+            if (reference.equals(fields.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int findClassDataOffset(DexBackedDexFile dexFile, byte[] dex, String classType) {
+        DexBackedDexFile.IndexedSection<?> classes = dexFile.getClassSection();
+        for (int i = 0; i < classes.size(); i++) {
+            int classDefOffset = classes.getOffset(i);
+            int typeIndex = readInt(dex, classDefOffset);
+            if (classType.equals(dexFile.getTypeSection().get(typeIndex))) {
+                return readInt(dex, classDefOffset + 24); // class_data_off
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Walks a class_data_item looking for the virtual method {@code methodIndex}.
+     * On success stores its code_off in {@code codeOffsetOut[0]}.
+     */
+    private static boolean findVirtualMethodCode(byte[] dex, int classDataOffset, int methodIndex, int[] codeOffsetOut) {
+        int[] pos = {classDataOffset};
+        int staticFields = readUleb128(dex, pos);
+        int instanceFields = readUleb128(dex, pos);
+        int directMethods = readUleb128(dex, pos);
+        int virtualMethods = readUleb128(dex, pos);
+
+        for (int i = 0; i < (staticFields + instanceFields) * 2; i++) {
+            readUleb128(dex, pos);
+        }
+        for (int i = 0; i < directMethods * 3; i++) {
+            readUleb128(dex, pos);
+        }
+
+        int currentIndex = 0;
+        for (int i = 0; i < virtualMethods; i++) {
+            currentIndex += readUleb128(dex, pos);
+            int accessFlags = readUleb128(dex, pos);
+            int codeOffset = readUleb128(dex, pos);
+            if (currentIndex == methodIndex) {
+                if ((accessFlags & ACC_PUBLIC) == 0 || (accessFlags & ACC_STATIC) != 0 || codeOffset == 0) {
+                    return false;
+                }
+                codeOffsetOut[0] = codeOffset;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts how many methods in the DEX point at {@code codeOffset}. Some dexers deduplicate
+     * identical code_items, and patching a shared one would change unrelated methods too.
+     */
+    private static int countCodeItemReferences(DexBackedDexFile dexFile, byte[] dex, int codeOffset) {
+        int references = 0;
+        DexBackedDexFile.IndexedSection<?> classes = dexFile.getClassSection();
+        for (int c = 0; c < classes.size(); c++) {
+            int classDataOffset = readInt(dex, classes.getOffset(c) + 24);
+            if (classDataOffset == 0) {
+                continue;
+            }
+            int[] pos = {classDataOffset};
+            int staticFields = readUleb128(dex, pos);
+            int instanceFields = readUleb128(dex, pos);
+            int methods = readUleb128(dex, pos) + readUleb128(dex, pos);
+            for (int i = 0; i < (staticFields + instanceFields) * 2; i++) {
+                readUleb128(dex, pos);
+            }
+            for (int i = 0; i < methods; i++) {
+                readUleb128(dex, pos); // method_idx_diff
+                readUleb128(dex, pos); // access_flags
+                if (readUleb128(dex, pos) == codeOffset) {
+                    references++;
+                }
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Returns the offset just past a code_item, including its tries and encoded handlers.
+     */
+    private static int getCodeItemEnd(byte[] dex, int codeOffset) {
+        int triesSize = readUShort(dex, codeOffset + 6);
+        long insnsSize = readInt(dex, codeOffset + 12) & 0xFFFFFFFFL;
+        int end = (int) (codeOffset + CODE_ITEM_HEADER_SIZE + insnsSize * 2);
+        if (triesSize == 0) {
+            return end;
+        }
+        if ((end & 3) != 0) {
+            end += 2; // padding before try_item[] when insns_size is odd
+        }
+        end += triesSize * 8;
+
+        int[] pos = {end};
+        int handlerListSize = readUleb128(dex, pos);
+        for (int i = 0; i < handlerListSize; i++) {
+            int size = readSleb128(dex, pos);
+            for (int j = 0; j < Math.abs(size); j++) {
+                readUleb128(dex, pos); // type_idx
+                readUleb128(dex, pos); // addr
+            }
+            if (size <= 0) {
+                readUleb128(dex, pos); // catch_all_addr
+            }
+        }
+        return pos[0];
+    }
+
+    private static void updateSignatureAndChecksum(byte[] dex) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(dex, SIGNATURE_DATA_START, dex.length - SIGNATURE_DATA_START);
+            byte[] signature = sha1.digest();
+            System.arraycopy(signature, 0, dex, SIGNATURE_OFFSET, signature.length);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+
+        Adler32 adler32 = new Adler32();
+        adler32.update(dex, SIGNATURE_OFFSET, dex.length - SIGNATURE_OFFSET);
+        writeInt(dex, CHECKSUM_OFFSET, (int) adler32.getValue());
+    }
+
+    private static int readUShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8)
+                | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static int readUleb128(byte[] data, int[] pos) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xFF;
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        return result;
+    }
+
+    private static int readSleb128(byte[] data, int[] pos) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xFF;
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        if (shift < 32 && (b & 0x40) != 0) {
+            result |= -1 << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+package com.modifier.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers which DEX entry held the target class for a given APK so the next run of the same
+ * APK family probes that entry first.
+ *
+ * Hints are keyed by package name, version code and DEX count. A package-level hint (keyed by
+ * package name and DEX count only) is kept as well, so a new version of a known app still gets
+ * a good first guess.
+ */
+public class DexProbeHints {
+    private static final String TAG = "DexProbeHints";
+    private static final String PREFS_NAME = "dex_probe_hints";
+
+    private final Context context;
+    private final SharedPreferences prefs;
+
+    public DexProbeHints(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Identifies an APK for hint lookups. Returns null if the manifest could not be parsed,
+     * in which case hints are simply not used.
+     */
+    public HintKey keyFor(File apkFile, int dexCount) {
+        PackageInfo info = getPackageArchiveInfo(context.getPackageManager(), apkFile.getAbsolutePath());
+        if (info == null || info.packageName == null) {
+            Log.i(TAG, "Could not read package info from " + apkFile.getName() + ", probing in default order");
+            return null;
+        }
+        return new HintKey(info.packageName, getVersionCode(info), dexCount);
+    }
+
+    @SuppressWarnings("deprecation") // int-flags overload is the only one before API 33
+    private static PackageInfo getPackageArchiveInfo(PackageManager packageManager, String path) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return packageManager.getPackageArchiveInfo(path, PackageManager.PackageInfoFlags.of(0));
+        }
+        return packageManager.getPackageArchiveInfo(path, 0);
+    }
+
+    @SuppressWarnings("deprecation") // versionCode is the only field before API 28
+    private static long getVersionCode(PackageInfo info) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? info.getLongVersionCode() : info.versionCode;
+    }
+
+    /**
+     * Returns {@code defaultOrder} with the hinted entry (if any) moved to the front.
+     * The relative order of all other entries is preserved.
+     */
+    public List<String> applyHint(HintKey key, List<String> defaultOrder) {
+        if (key == null) {
+            return defaultOrder;
+        }
+        String hinted = prefs.getString(key.exactKey(), null);
+        if (hinted == null) {
+            hinted = prefs.getString(key.packageKey(), null);
+        }
+        if (hinted == null || !defaultOrder.contains(hinted) || defaultOrder.get(0).equals(hinted)) {
+            return defaultOrder;
+        }
+        List<String> ordered = new ArrayList<>(defaultOrder.size());
+        ordered.add(hinted);
+        for (String entry : defaultOrder) {
+            if (!entry.equals(hinted)) {
+                ordered.add(entry);
+            }
+        }
+        Log.d(TAG, "Probe order for " + key + " using hint " + hinted + ": " + ordered);
+        return ordered;
+    }
+
+    /**
+     * Records the entry that actually contained the target class.
+     */
+    public void recordHit(HintKey key, String dexEntryPath) {
+        if (key == null) {
+            return;
+        }
+        prefs.edit()
+                .putString(key.exactKey(), dexEntryPath)
+                .putString(key.packageKey(), dexEntryPath)
+                .apply();
+    }
+
+    public static class HintKey {
+        public final String packageName;
+        public final long versionCode;
+        public final int dexCount;
+
+        public HintKey(String packageName, long versionCode, int dexCount) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.dexCount = dexCount;
+        }
+
+        String exactKey() {
+            return packageName + ":" + versionCode + ":" + dexCount;
+        }
+
+        String packageKey() {
+            return packageName + ":*:" + dexCount;
+        }
+
+        @Override
+        public String toString() {
+            return exactKey();
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.modifier.app;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Durable checkpoints of single-APK jobs, so a job killed in the middle (typically by the OS while
+ * the app is in the background) resumes from its last finished expensive stage instead of from zero.
+ *
+ * A job is identified by the fingerprint of its input APK (SHA-256 over the file length and the
+ * ZIP central directory, which holds every entry's CRC and sizes) together with the patch id and
+ * the output profile's layout key, compression levels included. Its directory holds {@code manifest.json}, recording those inputs and, per
+ * finished stage, a value and/or a file with its SHA-256. Files and the manifest are synced and
+ * renamed into place, so after a kill a stage is either fully there or not at all. A stage is only
+ * used if its file still hashes to the recorded value.
+ *
+ * Checkpoints live in the app's files dir, outside the per-job temp dir the processor deletes.
+ * A job's checkpoints are removed when it succeeds; abandoned ones expire after {@link #MAX_AGE_MILLIS}.
+ */
+public class JobCheckpoints {
+    private static final String TAG = "JobCheckpoints";
+    private static final int MANIFEST_FORMAT = 1;
+    private static final String MANIFEST_NAME = "manifest.json";
+    static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int MAX_ZIP_COMMENT = 0xFFFF;
+
+    private final File rootDir;
+
+    public JobCheckpoints(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    /**
+     * Opens the checkpoints of the job that patches {@code inputApk} with {@code patchId} and lays it
+     * out as the profile whose {@link OutputProfile#layoutKey()} is {@code profileKey}. Never fails:
+     * if the input cannot be fingerprinted, the returned job simply records and restores nothing.
+     * The job's directory is created with its first checkpoint.
+     */
+    public Job open(File inputApk, String patchId, String profileKey) {
+        pruneExpired();
+        try {
+            String fingerprint = fingerprint(inputApk);
+            String jobKey = sha256Hex((fingerprint + "|" + patchId + "|" + profileKey).getBytes(StandardCharsets.UTF_8))
+                    .substring(0, 32);
+            return new Job(new File(rootDir, jobKey), fingerprint, patchId, profileKey);
+        } catch (IOException e) {
+            Log.w(TAG, "Checkpoints disabled for " + inputApk.getName(), e);
+            return new Job(null, null, patchId, profileKey);
+        }
+    }
+
+    private void pruneExpired() {
+        File[] jobDirs = rootDir.listFiles();
+        if (jobDirs == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        for (File jobDir : jobDirs) {
+            if (jobDir.lastModified() < cutoff) {
+                Log.d(TAG, "Removing expired checkpoints " + jobDir.getName());
+                deleteRecursively(jobDir);
+            }
+        }
+    }
+
+    /** Checkpoints of one job. Methods are meant to be called from the job's thread. */
+    public static class Job {
+        private final File jobDir;
+        private final String inputFingerprint;
+        private final String patchId;
+        private final String profileKey;
+        private JSONObject stages;
+
+        private Job(File jobDir, String inputFingerprint, String patchId, String profileKey) {
+            this.jobDir = jobDir;
+            this.inputFingerprint = inputFingerprint;
+            this.patchId = patchId;
+            this.profileKey = profileKey;
+            this.stages = jobDir == null ? new JSONObject() : loadStages();
+        }
+
+        private JSONObject loadStages() {
+            File manifestFile = new File(jobDir, MANIFEST_NAME);
+            if (!manifestFile.isFile()) {
+                return new JSONObject();
+            }
+            try {
+                JSONObject manifest = new JSONObject(new String(Files.readAllBytes(manifestFile.toPath()),
+                        StandardCharsets.UTF_8));
+                if (manifest.optInt("format") != MANIFEST_FORMAT
+                        || !inputFingerprint.equals(manifest.optString("inputFingerprint"))
+                        || !patchId.equals(manifest.optString("patchId"))
+                        || !profileKey.equals(manifest.optString("profile"))) {
+                    Log.w(TAG, "Checkpoint manifest in " + jobDir.getName() + " does not match this job, discarding");
+                    return new JSONObject();
+                }
+                JSONObject stages = manifest.optJSONObject("stages");
+                return stages != null ? stages : new JSONObject();
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Unreadable checkpoint manifest in " + jobDir.getName() + ", discarding", e);
+                return new JSONObject();
+            }
+        }
+
+        /** Returns the value recorded with {@code stage}, or null if the stage has not finished. */
+        public String getValue(String stage) {
+            JSONObject entry = stages.optJSONObject(stage);
+            return entry != null ? entry.optString("value", null) : null;
+        }
+
+        /**
+         * Returns the file recorded with {@code stage} if it is still intact, otherwise null. A
+         * damaged file is dropped from the manifest.
+         */
+        public File getFile(String stage) {
+            JSONObject entry = stages.optJSONObject(stage);
+            if (entry == null || jobDir == null) {
+                return null;
+            }
+            File file = new File(jobDir, entry.optString("file"));
+            try {
+                if (file.isFile() && sha256Hex(file).equals(entry.optString("sha256"))) {
+                    return file;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to verify checkpoint " + file.getName(), e);
+            }
+            Log.w(TAG, "Checkpoint " + stage + " is damaged, redoing the stage");
+            stages.remove(stage);
+            return null;
+        }
+
+        /** Records that {@code stage} finished with {@code value}. */
+        public void recordValue(String stage, String value) {
+            record(stage, value, null);
+        }
+
+        /**
+         * Records that {@code stage} finished with {@code file} and {@code value} (may be null).
+         * The file is moved into the checkpoint directory; the returned file is where it is now
+         * and what the job should go on with. Without checkpoints {@code file} itself is returned.
+         */
+        public File recordFile(String stage, String value, File file) {
+            if (jobDir == null) {
+                return file;
+            }
+            File stored = new File(jobDir, stage + "_" + file.getName());
+            File partial = new File(jobDir, stored.getName() + ".partial");
+            File current = file;
+            try {
+                ensureJobDir();
+                if (file.renameTo(partial)) {
+                    current = partial;
+                } else {
+                    PooledIo.copyFile("checkpoint", file, partial);
+                }
+                sync(partial);
+                if (!partial.renameTo(stored)) {
+                    throw new IOException("Failed to move " + partial.getName() + " into place");
+                }
+                record(stage, value, stored);
+                return stored;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to checkpoint " + stage, e);
+                return current;
+            }
+        }
+
+        private void record(String stage, String value, File file) {
+            if (jobDir == null) {
+                return;
+            }
+            try {
+                JSONObject entry = new JSONObject();
+                entry.putOpt("value", value);
+                if (file != null) {
+                    entry.put("file", file.getName());
+                    entry.put("sha256", sha256Hex(file));
+                }
+                entry.put("recordedAt", System.currentTimeMillis());
+                stages.put(stage, entry);
+                writeManifest();
+                Log.d(TAG, "Checkpoint " + stage + " recorded in " + jobDir.getName());
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Failed to record checkpoint " + stage, e);
+            }
+        }
+
+        private void writeManifest() throws IOException, JSONException {
+            ensureJobDir();
+            JSONObject manifest = new JSONObject();
+            manifest.put("format", MANIFEST_FORMAT);
+            manifest.put("inputFingerprint", inputFingerprint);
+            manifest.put("patchId", patchId);
+            manifest.put("profile", profileKey);
+            manifest.put("stages", stages);
+            File partial = new File(jobDir, MANIFEST_NAME + ".partial");
+            try (FileOutputStream fos = new FileOutputStream(partial)) {
+                fos.write(manifest.toString(2).getBytes(StandardCharsets.UTF_8));
+                fos.getFD().sync();
+            }
+            if (!partial.renameTo(new File(jobDir, MANIFEST_NAME))) {
+                throw new IOException("Failed to move checkpoint manifest into place");
+            }
+        }
+
+        private void ensureJobDir() throws IOException {
+            if (!jobDir.isDirectory() && !jobDir.mkdirs()) {
+                throw new IOException("Failed to create " + jobDir.getAbsolutePath());
+            }
+        }
+
+        /** The job finished; its checkpoints are no longer needed. */
+        public void finish() {
+            if (jobDir != null) {
+                deleteRecursively(jobDir);
+            }
+            stages = new JSONObject();
+        }
+    }
+
+    /**
+     * Fingerprint of an APK: SHA-256 over its length and its ZIP central directory. Much cheaper
+     * than hashing the whole file, and any change of an entry's content changes the entry's CRC.
+     */
+    static String fingerprint(File zipFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(zipFile, "r")) {
+            long length = file.length();
+            int tailSize = (int) Math.min(length, EOCD_MIN_SIZE + MAX_ZIP_COMMENT);
+            byte[] tail = new byte[tailSize];
+            file.seek(length - tailSize);
+            file.readFully(tail);
+            for (int i = tailSize - EOCD_MIN_SIZE; i >= 0; i--) {
+                if (readInt(tail, i) == EOCD_SIGNATURE) {
+                    long centralDirectorySize = readInt(tail, i + 12) & 0xFFFFFFFFL;
+                    long centralDirectoryOffset = readInt(tail, i + 16) & 0xFFFFFFFFL;
+                    if (centralDirectoryOffset + centralDirectorySize > length) {
+                        break;
+                    }
+                    MessageDigest digest = newSha256();
+                    digest.update(Long.toString(length).getBytes(StandardCharsets.US_ASCII));
+                    byte[] buffer = new byte[8192];
+                    file.seek(centralDirectoryOffset);
+                    long remaining = centralDirectorySize;
+                    while (remaining > 0) {
+                        int chunk = (int) Math.min(buffer.length, remaining);
+                        file.readFully(buffer, 0, chunk);
+                        digest.update(buffer, 0, chunk);
+                        remaining -= chunk;
+                    }
+                    return PatchedDexCache.toHex(digest.digest());
+                }
+            }
+        }
+        throw new IOException(zipFile.getName() + " has no readable ZIP central directory");
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static void sync(File file) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            fos.getFD().sync();
+        }
+    }
+
+    private static String sha256Hex(File file) throws IOException {
+        return PatchedDexCache.toHex(PooledIo.digest("hash checkpoint", file, newSha256()));
+    }
+
+    private static String sha256Hex(byte[] bytes) {
+        return PatchedDexCache.toHex(newSha256().digest(bytes));
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            Log.w(TAG, "Failed to delete " + file.getAbsolutePath());
+        }
+    }
+}
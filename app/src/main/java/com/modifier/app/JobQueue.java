@@ -0,0 +1,708 @@
+package com.modifier.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import com.android.apksig.ApkSigner;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Process-wide queue of APK processing jobs that outlives activities. Jobs are persisted in
+ * {@code files/job_queue.json} in the background after every state change and run by priority (higher first, then in
+ * order of submission), at most {@link #setMaxConcurrentJobs} at a time. While any job is queued or
+ * running, {@link JobQueueService} keeps the process in the foreground.
+ *
+ * A job that was running when the process died is queued again on the next start and picks up
+ * from its {@link JobCheckpoints}; one that keeps dying is failed after {@link #MAX_ATTEMPTS} tries.
+ * Results stay in {@code files/job_outputs} until the UI saves them and {@link #remove}s the job, or
+ * are written straight into the destination document the job was submitted with.
+ *
+ * The UI only observes: {@link Listener#onJobChanged} is called on the main thread with a snapshot
+ * of the job, and once for every job when a listener is added, so an activity recreated after a
+ * configuration change catches up on what it missed.
+ */
+public class JobQueue {
+    private static final String TAG = "JobQueue";
+    private static final String QUEUE_FILE_NAME = "job_queue.json";
+    private static final String OUTPUT_DIR_NAME = "job_outputs";
+    private static final int FORMAT = 1;
+    static final int MAX_ATTEMPTS = 3;
+    static final long MAX_FINISHED_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED,
+        CANCELLED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    /** Receives job updates. */
+    public interface Listener {
+        /** A job was added or changed state; called on the main thread. */
+        void onJobChanged(Job job);
+
+        /** Progress of a running job; called on the job's thread, so coalesce before drawing. */
+        void onJobProgress(String jobId, String status);
+    }
+
+    /** Snapshot of a job. */
+    public static class Job {
+        public final String id;
+        public final Uri input;
+        /** Document the result is written to, or null if the result is kept for the UI to save. */
+        public final Uri destination;
+        public final String profileName;
+        public final int priority;
+        final long sequence;
+        public final long createdAtMillis;
+        State state = State.QUEUED;
+        int attempts;
+        /** The kept result once SUCCEEDED without a destination. */
+        File outputFile;
+        String message;
+        long finishedAtMillis;
+
+        Job(String id, Uri input, Uri destination, String profileName, int priority, long sequence,
+            long createdAtMillis) {
+            this.id = id;
+            this.input = input;
+            this.destination = destination;
+            this.profileName = profileName;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.createdAtMillis = createdAtMillis;
+        }
+
+        Job copy() {
+            Job copy = new Job(id, input, destination, profileName, priority, sequence, createdAtMillis);
+            copy.state = state;
+            copy.attempts = attempts;
+            copy.outputFile = outputFile;
+            copy.message = message;
+            copy.finishedAtMillis = finishedAtMillis;
+            return copy;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public File getOutputFile() {
+            return outputFile;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /** Whether the dispatcher would pick this job before {@code other}. */
+        boolean runsBefore(Job other) {
+            return priority != other.priority ? priority > other.priority : sequence < other.sequence;
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("id", id)
+                    .put("input", input.toString())
+                    .putOpt("destination", destination != null ? destination.toString() : null)
+                    .put("profile", profileName)
+                    .put("priority", priority)
+                    .put("sequence", sequence)
+                    .put("createdAt", createdAtMillis)
+                    .put("state", state.name())
+                    .put("attempts", attempts)
+                    .putOpt("output", outputFile != null ? outputFile.getAbsolutePath() : null)
+                    .putOpt("message", message)
+                    .put("finishedAt", finishedAtMillis);
+        }
+
+        static Job fromJson(JSONObject json) throws JSONException {
+            String destination = json.optString("destination", null);
+            Job job = new Job(json.getString("id"), Uri.parse(json.getString("input")),
+                    destination != null ? Uri.parse(destination) : null, json.getString("profile"),
+                    json.optInt("priority", PRIORITY_NORMAL), json.getLong("sequence"), json.optLong("createdAt"));
+            job.state = State.valueOf(json.getString("state"));
+            job.attempts = json.optInt("attempts");
+            String output = json.optString("output", null);
+            job.outputFile = output != null ? new File(output) : null;
+            job.message = json.optString("message", null);
+            job.finishedAtMillis = json.optLong("finishedAt");
+            return job;
+        }
+
+        @Override
+        public String toString() {
+            return id + " " + state + " (priority " + priority + ", " + profileName + ")";
+        }
+    }
+
+    private static JobQueue instance;
+
+    private final Context context;
+    private final File queueFile;
+    private final File outputDir;
+    private final ComputeScheduler scheduler;
+    // Writes the queue file in order, off the threads that change the queue (enqueue runs on the UI thread)
+    private final ComputeScheduler.SerialQueue persistQueue;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final Map<String, ComputeScheduler.SerialQueue> runningWorkers = new HashMap<>();
+    // Pre-check results for jobs submitted in this process; not persisted
+    private final Map<String, Future<ApkProcessor.PreparedInput>> preChecks = new HashMap<>();
+    private long nextSequence;
+    private int maxConcurrentJobs = 1;
+    private List<ApkSigner.SignerConfig> signerConfigs;
+    // Latest queue state not yet written, null when the file is up to date; guarded by persistLock
+    private final Object persistLock = new Object();
+    private String pendingState;
+
+    public static synchronized JobQueue getInstance(Context context) {
+        if (instance == null) {
+            instance = new JobQueue(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private JobQueue(Context context) {
+        this.context = context;
+        this.queueFile = new File(context.getFilesDir(), QUEUE_FILE_NAME);
+        this.outputDir = new File(context.getFilesDir(), OUTPUT_DIR_NAME);
+        this.scheduler = ComputeScheduler.getInstance(context);
+        this.persistQueue = scheduler.newSerialQueue("job-queue-persist");
+        synchronized (this) {
+            load();
+            if (hasActiveJobs()) {
+                Log.i(TAG, "Resuming " + jobs.size() + " persisted jobs");
+                startService();
+                dispatchLocked();
+            }
+        }
+    }
+
+    /**
+     * Queues a job that patches and signs {@code input} with {@code profile}. With a
+     * {@code destination} document (the app needs lasting write access to it) the result is
+     * written there; otherwise it is kept until the UI saves it. {@code preCheck} may be the
+     * pending {@link ApkProcessor#prepareInput} of the input, or null.
+     *
+     * @return the job's id
+     */
+    public synchronized String enqueue(Uri input, Uri destination, OutputProfile profile, int priority,
+                                       Future<ApkProcessor.PreparedInput> preCheck) {
+        long sequence = nextSequence++;
+        Job job = new Job("job-" + sequence, input, destination, profile.name, priority, sequence,
+                System.currentTimeMillis());
+        jobs.put(job.id, job);
+        if (preCheck != null) {
+            preChecks.put(job.id, preCheck);
+        }
+        Log.i(TAG, "Queued " + job + ": " + input);
+        persistLocked();
+        notifyChanged(job);
+        startService();
+        dispatchLocked();
+        return job.id;
+    }
+
+    /**
+     * Cancels a queued or running job; a running one is interrupted and stops at its next
+     * interruptible step. Returns false if the job is unknown or already finished.
+     */
+    public synchronized boolean cancel(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null || job.state.isFinished()) {
+            return false;
+        }
+        boolean running = job.state == State.RUNNING;
+        finishLocked(job, State.CANCELLED, null, "Cancelled");
+        if (running) {
+            ComputeScheduler.SerialQueue worker = runningWorkers.get(jobId);
+            if (worker != null) {
+                worker.shutdownNow();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets a finished job and deletes its kept result; the UI calls this once it has saved or
+     * dismissed the result. Returns false if the job is still queued or running.
+     */
+    public synchronized boolean remove(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null) {
+            return true;
+        }
+        if (!job.state.isFinished()) {
+            return false;
+        }
+        jobs.remove(jobId);
+        deleteOutput(job.outputFile);
+        persistLocked();
+        return true;
+    }
+
+    public synchronized Job get(String jobId) {
+        Job job = jobs.get(jobId);
+        return job != null ? job.copy() : null;
+    }
+
+    /** Snapshots of all jobs in submission order. */
+    public synchronized List<Job> getJobs() {
+        List<Job> snapshot = new ArrayList<>(jobs.size());
+        for (Job job : jobs.values()) {
+            snapshot.add(job.copy());
+        }
+        return snapshot;
+    }
+
+    /** The most recently submitted job that has not been removed, or null. */
+    public synchronized Job getLatestJob() {
+        Job latest = null;
+        for (Job job : jobs.values()) {
+            latest = job;
+        }
+        return latest != null ? latest.copy() : null;
+    }
+
+    public synchronized boolean hasActiveJobs() {
+        for (Job job : jobs.values()) {
+            if (!job.state.isFinished()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Number of jobs waiting to run. */
+    public synchronized int getQueuedCount() {
+        int queued = 0;
+        for (Job job : jobs.values()) {
+            if (job.state == State.QUEUED) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    public synchronized int getRunningCount() {
+        return runningWorkers.size();
+    }
+
+    /**
+     * How many jobs run side by side. Each job already fans out over the CPU permits, so more
+     * than one mainly helps batches of small APKs that spend their time on I/O.
+     */
+    public synchronized void setMaxConcurrentJobs(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("At least one job must be able to run, got " + max);
+        }
+        maxConcurrentJobs = max;
+        persistLocked();
+        dispatchLocked();
+    }
+
+    /** Adds a listener and replays the current state of every job to it. */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        List<Job> snapshot = getJobs();
+        mainThreadHandler.post(() -> {
+            if (listeners.contains(listener)) {
+                for (Job job : snapshot) {
+                    listener.onJobChanged(job);
+                }
+            }
+        });
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void dispatchLocked() {
+        while (runningWorkers.size() < maxConcurrentJobs) {
+            Job next = null;
+            for (Job job : jobs.values()) {
+                if (job.state == State.QUEUED && (next == null || job.runsBefore(next))) {
+                    next = job;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            next.state = State.RUNNING;
+            next.attempts++;
+            // A serial queue per job only costs a slot on the shared workers, and gives cancel() a thread to interrupt
+            ComputeScheduler.SerialQueue worker = scheduler.newSerialQueue(next.id);
+            runningWorkers.put(next.id, worker);
+            Job started = next.copy();
+            Future<ApkProcessor.PreparedInput> preCheck = preChecks.remove(next.id);
+            worker.execute(() -> run(started, preCheck));
+            worker.shutdown();
+            Log.i(TAG, "Started " + next + ", attempt " + next.attempts);
+            persistLocked();
+            notifyChanged(next);
+        }
+    }
+
+    private void run(Job job, Future<ApkProcessor.PreparedInput> preCheck) {
+        File localOutput = new File(outputDir, job.id + ".apk");
+        ParcelFileDescriptor destinationDescriptor = null;
+        ApkProcessor.ProcessingResult result;
+        try {
+            OutputProfile profile = OutputProfile.forName(job.profileName);
+            if (profile == null) {
+                throw new IOException("Unknown output profile " + job.profileName);
+            }
+            if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                throw new IOException("Could not create " + outputDir.getAbsolutePath());
+            }
+            ApkProcessor apkProcessor = new ApkProcessor(context);
+            apkProcessor.setOutputProfile(profile);
+            if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+                // Debug builds keep a Chrome trace of every job in the app's external files dir
+                apkProcessor.setTraceOutputDirectory(context.getExternalFilesDir("traces"));
+            }
+
+            File outputTarget = localOutput;
+            String outputName = null;
+            if (job.destination != null) {
+                destinationDescriptor = openRegularFileDescriptor(job.destination);
+                if (destinationDescriptor != null) {
+                    // The descriptor stays open for the whole job, so this path refers to the destination file
+                    outputTarget = new File("/proc/self/fd/" + destinationDescriptor.getFd());
+                    outputName = displayName(job.destination);
+                }
+            }
+            Log.i(TAG, "Processing " + job.id + " -> " + (destinationDescriptor != null ? job.destination : outputTarget));
+            // Only patching and signing are left when the pre-check already ran for this input
+            result = apkProcessor.processAndSignApk(job.input, outputTarget, outputName, signerConfigs(),
+                    awaitPreCheck(preCheck), status -> notifyProgress(job.id, status));
+
+            if (result.success && job.destination != null && destinationDescriptor == null) {
+                // Destination is not a plain file, copy the output into it
+                notifyProgress(job.id, "Saving result");
+                copyFileToUri(context, localOutput, job.destination);
+                deleteOutput(localOutput);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Job " + job.id + " failed", e);
+            result = new ApkProcessor.ProcessingResult(false, "Setup Error: " + e.getMessage(), null, e);
+        } finally {
+            if (destinationDescriptor != null) {
+                try {
+                    destinationDescriptor.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close destination descriptor", e);
+                }
+            }
+        }
+
+        Log.d(TAG, "Scheduler after " + job.id + ": " + scheduler.getStats());
+        synchronized (this) {
+            runningWorkers.remove(job.id);
+            Job current = jobs.get(job.id);
+            if (current == null || current.state != State.RUNNING) {
+                // Cancelled (or removed) while running; its output is not wanted
+                deleteOutput(localOutput);
+            } else if (result.success) {
+                finishLocked(current, State.SUCCEEDED, job.destination == null ? localOutput : null, result.message);
+            } else {
+                deleteOutput(localOutput);
+                finishLocked(current, State.FAILED, null, result.message);
+            }
+            if (current != null && current.state != State.SUCCEEDED && job.destination != null) {
+                deleteDestinationDocument(job.destination);
+            }
+            dispatchLocked();
+        }
+    }
+
+    private void finishLocked(Job job, State state, File outputFile, String message) {
+        job.state = state;
+        job.outputFile = outputFile;
+        job.message = message;
+        job.finishedAtMillis = System.currentTimeMillis();
+        preChecks.remove(job.id);
+        Log.i(TAG, "Finished " + job + ": " + message);
+        persistLocked();
+        notifyChanged(job);
+    }
+
+    /**
+     * Waits for the pre-check on the job's thread. Returns null when there is none or it was
+     * cancelled or failed, in which case processing does the checks itself.
+     */
+    private static ApkProcessor.PreparedInput awaitPreCheck(Future<ApkProcessor.PreparedInput> future) {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (CancellationException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private synchronized List<ApkSigner.SignerConfig> signerConfigs() throws Exception {
+        if (signerConfigs == null) {
+            signerConfigs = SigningKeys.loadDebugSigner(context);
+        }
+        return signerConfigs;
+    }
+
+    private void notifyChanged(Job job) {
+        Job snapshot = job.copy();
+        mainThreadHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onJobChanged(snapshot);
+            }
+        });
+    }
+
+    private void notifyProgress(String jobId, String status) {
+        for (Listener listener : listeners) {
+            listener.onJobProgress(jobId, status);
+        }
+    }
+
+    private void startService() {
+        try {
+            ContextCompat.startForegroundService(context, new Intent(context, JobQueueService.class));
+        } catch (RuntimeException e) {
+            // Not allowed from the background on newer releases; jobs still run while the process lives
+            Log.w(TAG, "Could not start job queue service", e);
+        }
+    }
+
+    /**
+     * Opens a destination document for writing if it is backed by a regular file, which is what the
+     * signer needs to write into it directly. Returns null for anything else (pipes, sockets), and
+     * also when the file cannot be reopened through {@code /proc/self/fd}, which some providers'
+     * SELinux labels forbid; the job then writes a local output and copies it over instead.
+     */
+    private ParcelFileDescriptor openRegularFileDescriptor(Uri uri) {
+        try {
+            // Truncating, a job that is run again must not leave the tail of an earlier attempt behind
+            ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "rwt");
+            if (descriptor == null) {
+                return null;
+            }
+            if (OsConstants.S_ISREG(Os.fstat(descriptor.getFileDescriptor()).st_mode)) {
+                try (RandomAccessFile reopened = new RandomAccessFile("/proc/self/fd/" + descriptor.getFd(), "rw")) {
+                    return descriptor;
+                } catch (IOException e) {
+                    Log.w(TAG, "Destination cannot be reopened through /proc: " + uri, e);
+                }
+            }
+            descriptor.close();
+        } catch (IOException | ErrnoException | SecurityException e) {
+            Log.w(TAG, "Destination cannot be written directly: " + uri, e);
+        }
+        return null;
+    }
+
+    /**
+     * Name of a document as far as its URI tells, for progress messages.
+     */
+    private static String displayName(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if (name != null && name.contains("/")) {
+            name = name.substring(name.lastIndexOf('/') + 1);
+        }
+        return name != null ? name : uri.toString();
+    }
+
+    /**
+     * Copies a file into a content URI through file channels, which lets the kernel move the data
+     * (sendfile) instead of pumping it through a Java buffer.
+     */
+    static void copyFileToUri(Context context, File source, Uri destinationUri) throws IOException {
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(destinationUri, "wt");
+        if (descriptor == null) {
+            throw new IOException("Failed to open output file descriptor");
+        }
+        try (FileChannel out = new ParcelFileDescriptor.AutoCloseOutputStream(descriptor).getChannel();
+             FileChannel in = new FileInputStream(source).getChannel()) {
+            PooledIo.transfer("save", in, out);
+        }
+    }
+
+    private void deleteDestinationDocument(Uri uri) {
+        try {
+            if (!DocumentsContract.deleteDocument(context.getContentResolver(), uri)) {
+                Log.w(TAG, "Failed to delete destination document after failed processing: " + uri);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to delete destination document after failed processing: " + uri, e);
+        }
+    }
+
+    private static void deleteOutput(File output) {
+        if (output != null && output.exists() && !output.delete()) {
+            Log.w(TAG, "Failed to delete " + output.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Reads the persisted queue. Jobs that were running are queued again, or failed once they
+     * used up their attempts; finished jobs nobody collected expire, as do outputs no job owns.
+     */
+    private void load() {
+        if (queueFile.isFile()) {
+            try {
+                JSONObject state = new JSONObject(new String(Files.readAllBytes(queueFile.toPath()),
+                        StandardCharsets.UTF_8));
+                if (state.optInt("format") != FORMAT) {
+                    throw new JSONException("Unknown job queue format " + state.optInt("format"));
+                }
+                nextSequence = state.optLong("nextSequence");
+                maxConcurrentJobs = Math.max(1, state.optInt("maxConcurrentJobs", 1));
+                JSONArray persisted = state.optJSONArray("jobs");
+                long cutoff = System.currentTimeMillis() - MAX_FINISHED_AGE_MILLIS;
+                for (int i = 0; persisted != null && i < persisted.length(); i++) {
+                    Job job = Job.fromJson(persisted.getJSONObject(i));
+                    if (job.state == State.RUNNING) {
+                        if (job.attempts >= MAX_ATTEMPTS) {
+                            job.state = State.FAILED;
+                            job.message = "Interrupted " + job.attempts + " times, giving up";
+                            job.finishedAtMillis = System.currentTimeMillis();
+                        } else {
+                            job.state = State.QUEUED;
+                        }
+                    }
+                    if (job.state.isFinished() && job.finishedAtMillis < cutoff) {
+                        Log.d(TAG, "Dropping expired " + job);
+                        deleteOutput(job.outputFile);
+                        continue;
+                    }
+                    jobs.put(job.id, job);
+                }
+            } catch (IOException | JSONException | IllegalArgumentException e) {
+                Log.w(TAG, "Unreadable job queue, starting empty", e);
+                jobs.clear();
+            }
+        }
+
+        Set<File> owned = new HashSet<>();
+        for (Job job : jobs.values()) {
+            if (job.outputFile != null) {
+                owned.add(job.outputFile);
+            }
+        }
+        File[] outputs = outputDir.listFiles();
+        if (outputs != null) {
+            for (File output : outputs) {
+                if (!owned.contains(output)) {
+                    deleteOutput(output);
+                }
+            }
+        }
+        persistLocked();
+    }
+
+    /**
+     * Snapshots the queue and schedules writing it. Only the snapshot is taken under the lock; the
+     * write and its fsync run on {@link #persistQueue}, and changes that come in while a write is
+     * pending are folded into it.
+     */
+    private void persistLocked() {
+        String state;
+        try {
+            JSONArray persisted = new JSONArray();
+            for (Job job : jobs.values()) {
+                persisted.put(job.toJson());
+            }
+            state = new JSONObject()
+                    .put("format", FORMAT)
+                    .put("nextSequence", nextSequence)
+                    .put("maxConcurrentJobs", maxConcurrentJobs)
+                    .put("jobs", persisted)
+                    .toString(2);
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to persist job queue", e);
+            return;
+        }
+        synchronized (persistLock) {
+            boolean writeScheduled = pendingState != null;
+            pendingState = state;
+            if (writeScheduled) {
+                return;
+            }
+        }
+        persistQueue.execute(this::writePendingState);
+    }
+
+    private void writePendingState() {
+        String state;
+        synchronized (persistLock) {
+            state = pendingState;
+            pendingState = null;
+        }
+        if (state == null) {
+            return;
+        }
+        try {
+            File partial = new File(queueFile.getPath() + ".partial");
+            try (FileOutputStream fos = new FileOutputStream(partial)) {
+                fos.write(state.getBytes(StandardCharsets.UTF_8));
+                fos.getFD().sync();
+            }
+            if (!partial.renameTo(queueFile)) {
+                throw new IOException("Failed to move job queue into place");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to persist job queue", e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.modifier.app;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+
+/**
+ * Foreground service that keeps the process alive while the {@link JobQueue} has work, through
+ * configuration changes and while the app is in the background. It holds a partial wake lock so
+ * long batches keep going with the screen off, and stops itself once the queue is idle.
+ *
+ * The queue starts it whenever a job is queued. If the process is killed anyway, the sticky
+ * restart recreates the queue, which picks up its persisted jobs.
+ */
+public class JobQueueService extends Service implements JobQueue.Listener {
+    private static final String CHANNEL_ID = "job_queue";
+    private static final int NOTIFICATION_ID = 2; // 1 is the patch daemon's
+    // Renewed on every job change, so a wedged job cannot hold the CPU awake forever
+    private static final long WAKE_LOCK_TIMEOUT_MILLIS = 30 * 60 * 1000;
+
+    private JobQueue jobQueue;
+    private PowerManager.WakeLock wakeLock;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "com.modifier.app:job-queue");
+        wakeLock.setReferenceCounted(false);
+        jobQueue = JobQueue.getInstance(this);
+        jobQueue.addListener(this);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        updateState();
+        return START_STICKY;
+    }
+
+    @Override
+    public void onJobChanged(JobQueue.Job job) {
+        updateState();
+    }
+
+    @Override
+    public void onJobProgress(String jobId, String status) {
+        // The notification only shows counts
+    }
+
+    private void updateState() {
+        if (!jobQueue.hasActiveJobs()) {
+            removeForegroundNotification();
+            stopSelf();
+            return;
+        }
+        wakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLIS);
+        getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    private void removeForegroundNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            stopForeground(STOP_FOREGROUND_REMOVE);
+        } else {
+            stopForegroundLegacy();
+        }
+    }
+
+    @SuppressWarnings("deprecation") // the int overload needs API 24
+    private void stopForegroundLegacy() {
+        stopForeground(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        jobQueue.removeListener(this);
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = getSystemService(NotificationManager.class);
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.job_queue_channel), NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = newLegacyBuilder();
+        }
+        PendingIntent openApp = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        return builder
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.job_queue_running))
+                .setContentText(getString(R.string.job_queue_counts, jobQueue.getRunningCount(),
+                        jobQueue.getQueuedCount()))
+                .setContentIntent(openApp)
+                .setOngoing(true)
+                .build();
+    }
+
+    @SuppressWarnings("deprecation") // channels need API 26
+    private Notification.Builder newLegacyBuilder() {
+        return new Notification.Builder(this);
+    }
+}
@@ -2,6 +2,7 @@ package com.modifier.app;
 
 import android.Manifest;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.ColorStateList;
 import android.net.Uri;
@@ -11,6 +12,7 @@ import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -24,33 +26,22 @@ import androidx.core.content.ContextCompat;
 import com.android.apksig.ApkSigner;
 import com.google.android.material.card.MaterialCardView;
 import com.google.android.material.snackbar.Snackbar;
+import com.modifier.app.filepicker.FileItem;
 import com.modifier.app.filepicker.FilePickerDialog;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.cert.X509Certificate;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.InterruptedIOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class MainActivity extends AppCompatActivity implements FilePickerDialog.FileSelectedListener {
     private static final String TAG = "ModifierApp";
     private static final int REQUEST_CODE_SAVE_APK = 102;
+    private static final int REQUEST_CODE_CHOOSE_DESTINATION = 103;
     private static final int REQUEST_STORAGE_PERMISSION = 1001;
-    
-    // Keystore configuration
-    private static final String KEYSTORE_PASSWORD = "android";
-    private static final String KEY_ALIAS = "androiddebugkey";
-    private static final String KEY_PASSWORD = "android";
-    private static final String KEYSTORE_ASSET_NAME = "debug.keystore";
+    private static final String STATE_CURRENT_JOB = "currentJobId";
+    private static final String STATE_AWAITING_SAVE = "awaitingSave";
 
     private View rootView;
     private Button buttonSelectInput;
@@ -58,21 +49,42 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
     private TextView textViewInputPath;
     private TextView textViewStatus;
     private ProgressBar progressBar;
+    private CheckBox checkBoxChooseDestinationFirst;
+    private CheckBox checkBoxInstallOptimized;
+    private CheckBox checkBoxNativeLibsInApk;
     private MaterialCardView cardInputSelection;
     private MaterialCardView cardProcessing;
 
     private Uri inputApkUri;
-    private File tempProcessedFile;
     private List<ApkSigner.SignerConfig> signerConfigs;
     private ApkProcessor apkProcessor;
-    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
+    // Jobs run in the process-wide queue; this activity only shows the one it submitted last
+    private JobQueue jobQueue;
+    private String currentJobId;
+    // The save dialog for the current job's result is open (survives recreation with the dialog)
+    private boolean awaitingSave;
+    private ComputeScheduler.SerialQueue backgroundExecutor;
+    // Speculative pre-check of the selected input, kept apart so it can be cancelled on re-pick
+    private ComputeScheduler.SerialQueue preCheckExecutor;
+    private Future<ApkProcessor.PreparedInput> preCheckFuture;
+    private boolean preCheckFailed;
     private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
     
-    private final ApkProcessor.ProgressListener progressListener = status -> {
-        mainThreadHandler.post(() -> {
-            textViewStatus.setText("Status: " + status);
-            Log.d(TAG, "Progress update: " + status);
-        });
+    // Progress from worker threads is merged and drawn at most once per frame
+    private ProgressPipeline progressPipeline;
+    private final JobQueue.Listener jobListener = new JobQueue.Listener() {
+        @Override
+        public void onJobChanged(JobQueue.Job job) {
+            if (job.id.equals(currentJobId)) {
+                onCurrentJobChanged(job);
+            }
+        }
+
+        @Override
+        public void onJobProgress(String jobId, String status) {
+            Log.d(TAG, "Progress update [" + jobId + "]: " + status);
+            progressPipeline.publish(jobId, "process", status);
+        }
     };
 
     @Override
@@ -96,15 +108,35 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
         textViewInputPath = findViewById(R.id.textViewInputPath);
         textViewStatus = findViewById(R.id.textViewStatus);
         progressBar = findViewById(R.id.progressBar);
+        checkBoxChooseDestinationFirst = findViewById(R.id.checkBoxChooseDestinationFirst);
+        checkBoxInstallOptimized = findViewById(R.id.checkBoxInstallOptimized);
+        checkBoxNativeLibsInApk = findViewById(R.id.checkBoxNativeLibsInApk);
         cardInputSelection = findViewById(R.id.cardInputSelection);
         cardProcessing = findViewById(R.id.cardProcessing);
+        progressPipeline = new ProgressPipeline(events ->
+                textViewStatus.setText("Status: " + events.get(events.size() - 1).status));
 
-        // Initialize ApkProcessor
+        // Initialize ApkProcessor; all background work runs on the shared scheduler's threads
         apkProcessor = new ApkProcessor(getApplicationContext());
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            // Debug builds keep a Chrome trace of every job in the app's external files dir
+            apkProcessor.setTraceOutputDirectory(getExternalFilesDir("traces"));
+        }
+        ComputeScheduler computeScheduler = ComputeScheduler.getInstance(this);
+        backgroundExecutor = computeScheduler.newSerialQueue("save");
+        preCheckExecutor = computeScheduler.newSerialQueue("pre-check");
 
         // Set up event listeners
         buttonSelectInput.setOnClickListener(v -> selectInputApk());
         buttonProcess.setOnClickListener(v -> startApkProcessing());
+        // Keeping native libs in the APK only works when they are stored aligned
+        checkBoxInstallOptimized.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            checkBoxNativeLibsInApk.setEnabled(isChecked);
+            if (!isChecked) {
+                checkBoxNativeLibsInApk.setChecked(false);
+            }
+        });
+        checkBoxNativeLibsInApk.setEnabled(checkBoxInstallOptimized.isChecked());
 
         // Load signing configuration
         signerConfigs = loadSignerConfiguration();
@@ -122,10 +154,43 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
         checkProcessButtonState();
         resetInputSelectionUI();
         resetProcessingCardUI();
+
+        // Pick up the job this activity was showing before it was recreated, or the last one
+        // submitted before the app was closed; the listener replays its state in onStart
+        jobQueue = JobQueue.getInstance(this);
+        if (savedInstanceState != null) {
+            currentJobId = savedInstanceState.getString(STATE_CURRENT_JOB);
+            awaitingSave = savedInstanceState.getBoolean(STATE_AWAITING_SAVE);
+        } else {
+            JobQueue.Job latest = jobQueue.getLatestJob();
+            currentJobId = latest != null ? latest.id : null;
+        }
+        if (currentJobId != null) {
+            setUiProcessing(true);
+        }
         
         // Request storage permissions if needed
         checkAndRequestPermissions();
     }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        jobQueue.addListener(jobListener);
+    }
+
+    @Override
+    protected void onStop() {
+        jobQueue.removeListener(jobListener);
+        super.onStop();
+    }
+
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_CURRENT_JOB, currentJobId);
+        outState.putBoolean(STATE_AWAITING_SAVE, awaitingSave);
+    }
     
     private void checkAndRequestPermissions() {
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE) 
@@ -182,6 +247,7 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
             textViewInputPath.setText(fileName);
             cardInputSelection.setStrokeColor(ContextCompat.getColor(this, R.color.success_green));
             resetProcessingCardUI();
+            startPreCheck(uri);
             checkProcessButtonState();
             
             Log.i(TAG, "Selected APK: " + file.getAbsolutePath());
@@ -194,6 +260,62 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
         }
     }
 
+    /**
+     * Starts the pre-stage (archive open, DEX probe order, method verification, signer warm-up) for
+     * a newly selected input, cancelling the one for any previous selection. The verdict is shown as
+     * soon as it is known and reused when processing starts.
+     */
+    private void startPreCheck(Uri uri) {
+        cancelPreCheck();
+        if (signerConfigs == null || signerConfigs.isEmpty()) {
+            return;
+        }
+        textViewStatus.setText("Status: Checking selected APK...");
+        final List<ApkSigner.SignerConfig> configs = signerConfigs;
+        preCheckFuture = preCheckExecutor.submit(() -> {
+            try {
+                ApkProcessor.PreparedInput prepared = apkProcessor.prepareInput(uri, configs);
+                mainThreadHandler.post(() -> onPreCheckFinished(uri, prepared, null));
+                return prepared;
+            } catch (InterruptedIOException e) {
+                Log.d(TAG, "Pre-check cancelled for " + uri);
+                return null;
+            } catch (Exception e) {
+                Log.w(TAG, "Pre-check failed for " + uri, e);
+                mainThreadHandler.post(() -> onPreCheckFinished(uri, null, e));
+                return null;
+            }
+        });
+    }
+
+    private void cancelPreCheck() {
+        if (preCheckFuture != null) {
+            preCheckFuture.cancel(true);
+            preCheckFuture = null;
+        }
+        preCheckFailed = false;
+    }
+
+    private void onPreCheckFinished(Uri uri, ApkProcessor.PreparedInput prepared, Exception error) {
+        if (!uri.equals(inputApkUri)) {
+            return; // selection changed while the check was running
+        }
+        if (error != null) {
+            textViewStatus.setText("Status: Pre-check failed - " + error.getMessage());
+        } else if (prepared == null) {
+            textViewStatus.setText(getString(R.string.ready_to_process));
+        } else if (prepared.bundle) {
+            textViewStatus.setText("Status: Split bundle selected. Splits are checked when processing.");
+        } else if (prepared.verification.isPatchable()) {
+            textViewStatus.setText("Status: Pre-check passed - " + prepared.verification.message);
+        } else {
+            preCheckFailed = true;
+            textViewStatus.setText("Status: Cannot patch - " + prepared.verification.message);
+            cardInputSelection.setStrokeColor(ContextCompat.getColor(this, R.color.error_red));
+        }
+        checkProcessButtonState();
+    }
+
     private void startApkProcessing() {
         if (inputApkUri == null) {
             showErrorMessage("Please select an input APK file first.");
@@ -204,85 +326,98 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
             return;
         }
 
-        setUiProcessing(true);
-        textViewStatus.setText("Status: Starting processing...");
-
-        backgroundExecutor.execute(() -> {
-            ApkProcessor.ProcessingResult result = null;
-            File tempOutputForThisJob = null;
+        if (checkBoxChooseDestinationFirst.isChecked()) {
+            // Ask for the destination up front so the signer can write straight into it
+            promptToSaveFolder(REQUEST_CODE_CHOOSE_DESTINATION, inputApkUri);
+            return;
+        }
+        runApkProcessing(null);
+    }
 
+    /**
+     * Submits the job to the {@link JobQueue}. With a {@code directDestination} the signed APK is
+     * written into that document (straight away when it is backed by a regular file); otherwise the
+     * result is kept by the queue until it is saved.
+     */
+    private void runApkProcessing(Uri directDestination) {
+        if (directDestination != null) {
             try {
-                tempOutputForThisJob = createTempApkFile("signed_output_");
-                if (tempOutputForThisJob == null) {
-                    throw new IOException("Could not create temporary output file for signed APK.");
-                }
-                Log.i(TAG, "Processing APK -> Temp Output: " + tempOutputForThisJob.getAbsolutePath());
-
-                // Use the simplified method call without the modConfig parameter
-                result = apkProcessor.processAndSignApk(inputApkUri, tempOutputForThisJob, signerConfigs, progressListener);
-
-            } catch (Exception e) {
-                Log.e(TAG, "Exception during background APK processing setup", e);
-                result = new ApkProcessor.ProcessingResult(false, "Setup Error: " + e.getMessage(), null, e);
+                // The job may finish, or be resumed, after this activity is gone
+                getContentResolver().takePersistableUriPermission(directDestination,
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log.w(TAG, "No lasting access to " + directDestination + ", it is only writable while the app runs", e);
             }
+        }
+        setUiProcessing(true);
+        textViewStatus.setText("Status: Starting processing...");
+        awaitingSave = false;
+        currentJobId = jobQueue.enqueue(inputApkUri, directDestination, selectedOutputProfile(),
+                JobQueue.PRIORITY_NORMAL, preCheckFuture);
+    }
 
-            final ApkProcessor.ProcessingResult finalResult = result;
-            final File finalTempOutputForThisJob = tempOutputForThisJob;
-            
-            mainThreadHandler.post(() -> {
-                if (finalResult != null && finalResult.success && finalResult.outputFile != null && finalResult.outputFile.exists()) {
-                    tempProcessedFile = finalResult.outputFile;
-                    textViewStatus.setText("Status: " + finalResult.message + " Ready to save.");
+    private void onCurrentJobChanged(JobQueue.Job job) {
+        switch (job.getState()) {
+            case QUEUED:
+                setUiProcessing(true);
+                textViewStatus.setText("Status: Queued");
+                break;
+            case RUNNING:
+                setUiProcessing(true);
+                break;
+            case SUCCEEDED:
+                progressPipeline.drainNow(); // final status below must not be painted over
+                if (job.destination != null) {
+                    jobQueue.remove(job.id);
+                    currentJobId = null;
+                    onApkSaved();
+                } else if (!awaitingSave) {
+                    awaitingSave = true;
+                    textViewStatus.setText("Status: " + job.getMessage() + " Ready to save.");
                     Snackbar.make(rootView, "Processing successful! Choose save location.", Snackbar.LENGTH_LONG)
                         .setBackgroundTint(ContextCompat.getColor(this, R.color.success_green))
                         .setTextColor(ContextCompat.getColor(this, R.color.white))
                         .show();
-                    promptToSaveFolder();
-                } else {
-                    setUiProcessing(false);
-                    String errorMessage = "Processing failed.";
-                    if (finalResult != null) {
-                        errorMessage = "Error: " + finalResult.message;
-                        if (finalResult.exception != null) {
-                            Log.e(TAG, "Processing Exception: ", finalResult.exception);
-                        }
-                    }
-                    textViewStatus.setText("Status: Failed - " + errorMessage);
-                    showErrorMessage(errorMessage);
-                    
-                    if (finalTempOutputForThisJob != null && finalTempOutputForThisJob.exists()) {
-                        if (!finalTempOutputForThisJob.delete()) {
-                            Log.w(TAG, "Failed to delete temporary output file after failed processing: " 
-                                 + finalTempOutputForThisJob.getAbsolutePath());
-                        }
-                    }
-                    tempProcessedFile = null;
+                    promptToSaveFolder(REQUEST_CODE_SAVE_APK, job.input);
                 }
-            });
-        });
+                break;
+            case FAILED:
+            case CANCELLED:
+                progressPipeline.drainNow();
+                setUiProcessing(false);
+                String errorMessage = "Error: " + job.getMessage();
+                textViewStatus.setText("Status: Failed - " + errorMessage);
+                showErrorMessage(errorMessage);
+                jobQueue.remove(job.id);
+                currentJobId = null;
+                break;
+        }
     }
 
-    private void promptToSaveFolder() {
-        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
-        intent.addCategory(Intent.CATEGORY_OPENABLE);
-        intent.setType("application/vnd.android.package-archive");
-        
-        // Suggest a file name based on the input
+    private void promptToSaveFolder(int requestCode, Uri inputUri) {
+        // Suggest a file name based on the input, keeping its extension (.apk, or .apks/.xapk for bundles)
         String suggestedName;
-        if (inputApkUri != null) {
-            suggestedName = getFileNameFromUri(inputApkUri);
-            if (suggestedName.toLowerCase().endsWith(".apk")) {
-                suggestedName = suggestedName.substring(0, suggestedName.length() - 4) + "_modified.apk";
+        String extension = ".apk";
+        if (inputUri != null) {
+            suggestedName = getFileNameFromUri(inputUri);
+            int dotIndex = suggestedName.lastIndexOf('.');
+            if (dotIndex > 0 && FileItem.isApkFileName(suggestedName)) {
+                extension = suggestedName.substring(dotIndex);
+                suggestedName = suggestedName.substring(0, dotIndex) + "_modified" + extension;
             } else {
                 suggestedName = suggestedName + "_modified.apk";
             }
         } else {
             suggestedName = "modified.apk";
         }
+
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType(extension.equalsIgnoreCase(".apk") ? "application/vnd.android.package-archive" : "application/octet-stream");
         intent.putExtra(Intent.EXTRA_TITLE, suggestedName);
         
         try {
-            startActivityForResult(intent, REQUEST_CODE_SAVE_APK);
+            startActivityForResult(intent, requestCode);
         } catch (Exception e) {
             Log.e(TAG, "Error launching save dialog", e);
             showErrorMessage("Could not open save dialog: " + e.getMessage());
@@ -301,26 +436,33 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         
-        if (requestCode == REQUEST_CODE_SAVE_APK) {
+        if (requestCode == REQUEST_CODE_CHOOSE_DESTINATION) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                runApkProcessing(data.getData());
+            } else {
+                textViewStatus.setText("Status: Save location selection cancelled.");
+            }
+        } else if (requestCode == REQUEST_CODE_SAVE_APK) {
+            awaitingSave = false;
             if (resultCode == RESULT_OK && data != null && data.getData() != null) {
                 saveProcessedApkToUri(data.getData());
             } else {
                 setUiProcessing(false);
                 textViewStatus.setText("Status: Save location selection cancelled.");
                 
-                // Clean up the temp file if user cancels
-                if (tempProcessedFile != null && tempProcessedFile.exists()) {
-                    if (!tempProcessedFile.delete()) {
-                        Log.w(TAG, "Failed to delete temp file after save cancelled: " + tempProcessedFile.getAbsolutePath());
-                    }
-                    tempProcessedFile = null;
+                // Drop the kept result if user cancels
+                if (currentJobId != null) {
+                    jobQueue.remove(currentJobId);
+                    currentJobId = null;
                 }
             }
         }
     }
 
     private void saveProcessedApkToUri(Uri destinationUri) {
-        if (tempProcessedFile == null || !tempProcessedFile.exists()) {
+        JobQueue.Job job = currentJobId != null ? jobQueue.get(currentJobId) : null;
+        File processedFile = job != null ? job.getOutputFile() : null;
+        if (processedFile == null || !processedFile.exists()) {
             showErrorMessage("Error: Processed file not available.");
             setUiProcessing(false);
             return;
@@ -332,45 +474,28 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
             boolean success = false;
             String errorMessage = "";
             
-            try (InputStream in = new FileInputStream(tempProcessedFile);
-                 OutputStream out = getContentResolver().openOutputStream(destinationUri)) {
-                if (out == null) {
-                    throw new IOException("Failed to open output stream");
-                }
-                
-                byte[] buffer = new byte[8192];
-                int read;
-                while ((read = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
-                }
+            try {
+                JobQueue.copyFileToUri(this, processedFile, destinationUri);
                 success = true;
             } catch (IOException e) {
                 Log.e(TAG, "Error saving APK", e);
                 errorMessage = e.getMessage();
             } finally {
-                // Delete the temporary file
-                if (tempProcessedFile != null && tempProcessedFile.exists()) {
-                    if (!tempProcessedFile.delete()) {
-                        Log.w(TAG, "Failed to delete temp file after saving: " + tempProcessedFile.getAbsolutePath());
-                    }
-                    tempProcessedFile = null;
-                }
+                // The queue deletes the kept result with the job
+                jobQueue.remove(job.id);
             }
             
             final boolean finalSuccess = success;
             final String finalErrorMessage = errorMessage;
             
             mainThreadHandler.post(() -> {
-                setUiProcessing(false);
+                if (job.id.equals(currentJobId)) {
+                    currentJobId = null;
+                }
                 if (finalSuccess) {
-                    textViewStatus.setText("Status: Modified APK saved successfully.");
-                    showSuccessMessage("APK saved successfully!");
-                    resetInputSelectionUI();
-                    // Reset input APK as well, requiring a fresh selection for next operation
-                    inputApkUri = null;
-                    textViewInputPath.setText("No APK selected");
-                    checkProcessButtonState();
+                    onApkSaved();
                 } else {
+                    setUiProcessing(false);
                     textViewStatus.setText("Status: Failed to save Modified APK.");
                     showErrorMessage("Error saving file: " + finalErrorMessage);
                 }
@@ -378,41 +503,25 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
         });
     }
 
+    private void onApkSaved() {
+        setUiProcessing(false);
+        textViewStatus.setText("Status: Modified APK saved successfully.");
+        showSuccessMessage("APK saved successfully!");
+        resetInputSelectionUI();
+        // Reset input APK as well, requiring a fresh selection for next operation
+        cancelPreCheck();
+        inputApkUri = null;
+        textViewInputPath.setText("No APK selected");
+        checkProcessButtonState();
+    }
+
     private List<ApkSigner.SignerConfig> loadSignerConfiguration() {
         try {
-            KeyStore keystore = KeyStore.getInstance("PKCS12");
-            
-            try (InputStream keystoreInputStream = getAssets().open(KEYSTORE_ASSET_NAME)) {
-                keystore.load(keystoreInputStream, KEYSTORE_PASSWORD.toCharArray());
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to open keystore from assets. Check if file exists in assets folder.", e);
-                showErrorMessage("Keystore file not found in assets. Did you add debug.keystore?");
-                return null;
-            }
-            
-            try {
-                PrivateKey privateKey = (PrivateKey) keystore.getKey(KEY_ALIAS, KEY_PASSWORD.toCharArray());
-                if (privateKey == null) {
-                    Log.e(TAG, "Private key not found in keystore with alias: " + KEY_ALIAS);
-                    showErrorMessage("Private key not found in keystore. Check alias and password.");
-                    return null;
-                }
-                
-                List<X509Certificate> certs = new ArrayList<>();
-                X509Certificate cert = (X509Certificate) keystore.getCertificate(KEY_ALIAS);
-                if (cert == null) {
-                    Log.e(TAG, "Certificate not found in keystore");
-                    showErrorMessage("Certificate not found in keystore. Check alias.");
-                    return null;
-                }
-                certs.add(cert);
-                
-                return Arrays.asList(new ApkSigner.SignerConfig.Builder("CERT", privateKey, certs).build());
-            } catch (Exception e) {
-                Log.e(TAG, "Error accessing keystore entries", e);
-                showErrorMessage("Error accessing keystore entries: " + e.getMessage());
-                return null;
-            }
+            return SigningKeys.loadDebugSigner(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open keystore from assets. Check if file exists in assets folder.", e);
+            showErrorMessage("Keystore file not found in assets. Did you add debug.keystore?");
+            return null;
         } catch (Exception e) {
             Log.e(TAG, "Error loading signing configuration", e);
             showErrorMessage("Error loading keystore: " + e.getMessage());
@@ -420,16 +529,6 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
         }
     }
 
-    private File createTempApkFile(String prefix) {
-        try {
-            File outputDir = getCacheDir();
-            return File.createTempFile(prefix, ".apk", outputDir);
-        } catch (IOException e) {
-            Log.e(TAG, "Error creating temp file", e);
-            return null;
-        }
-    }
-
     private void showErrorMessage(String message) {
         Snackbar.make(rootView, message, Snackbar.LENGTH_LONG)
             .setBackgroundTint(ContextCompat.getColor(this, R.color.error_red))
@@ -445,7 +544,8 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
     }
 
     private void checkProcessButtonState() {
-        buttonProcess.setEnabled(inputApkUri != null && signerConfigs != null && !signerConfigs.isEmpty());
+        buttonProcess.setEnabled(inputApkUri != null && !preCheckFailed
+                && signerConfigs != null && !signerConfigs.isEmpty());
     }
 
     private void resetInputSelectionUI() {
@@ -458,10 +558,21 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
         progressBar.setProgress(0);
     }
 
+    private OutputProfile selectedOutputProfile() {
+        if (!checkBoxInstallOptimized.isChecked()) {
+            return OutputProfile.COMPATIBLE;
+        }
+        return checkBoxNativeLibsInApk.isChecked()
+                ? OutputProfile.INSTALL_OPTIMIZED_NO_EXTRACT : OutputProfile.INSTALL_OPTIMIZED;
+    }
+
     private void setUiProcessing(boolean processing) {
         boolean enableButtons = !processing && signerConfigs != null && !signerConfigs.isEmpty();
         buttonSelectInput.setEnabled(enableButtons);
-        buttonProcess.setEnabled(enableButtons && inputApkUri != null);
+        buttonProcess.setEnabled(enableButtons && inputApkUri != null && !preCheckFailed);
+        checkBoxChooseDestinationFirst.setEnabled(!processing);
+        checkBoxInstallOptimized.setEnabled(!processing);
+        checkBoxNativeLibsInApk.setEnabled(!processing && checkBoxInstallOptimized.isChecked());
 
         progressBar.setVisibility(processing ? View.VISIBLE : View.INVISIBLE);
         if (processing) {
@@ -472,13 +583,10 @@ public class MainActivity extends AppCompatActivity implements FilePickerDialog.
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // Jobs keep running in the queue; a pending save still finishes
         backgroundExecutor.shutdown();
-        
-        // Clean up any temporary files
-        if (tempProcessedFile != null && tempProcessedFile.exists()) {
-            if (!tempProcessedFile.delete()) {
-                Log.w(TAG, "Failed to delete temp file on destroy: " + tempProcessedFile.getAbsolutePath());
-            }
-        }
+        // Cancelled rather than just dropped, so a queued job waiting for the pre-check goes on without it
+        cancelPreCheck();
+        preCheckExecutor.shutdownNow();
     }
 }
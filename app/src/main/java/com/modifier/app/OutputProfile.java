@@ -0,0 +1,167 @@
+package com.modifier.app;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * How the patched APK is laid out.
+ *
+ * {@link #COMPATIBLE} deflates every entry, as the processor always did. The install-optimized
+ * profiles store {@code classes*.dex} and the {@code .so} files under {@code lib/} uncompressed and
+ * page-aligned, so ART can map the DEX files and the loader the libraries straight from the APK
+ * instead of inflating copies; the APK gets bigger, install and cold start get faster and less
+ * disk is used.
+ *
+ * resources.arsc is stored 4-byte aligned as well, which targetSdk 30+ requires anyway.
+ *
+ * Deflated entries are compressed at a level chosen by {@link EntryType}: media that is already
+ * compressed gets the fastest level since a higher one saves next to nothing on it.
+ */
+public class OutputProfile {
+    /** Page size the loader maps uncompressed entries with. */
+    public static final int PAGE_ALIGNMENT = 4096;
+    private static final int RESOURCE_TABLE_ALIGNMENT = 4;
+
+    private static final Pattern ROOT_DEX = Pattern.compile("classes\\d*\\.dex");
+    private static final Pattern MEDIA_EXTENSION =
+            Pattern.compile(".*\\.(png|jpe?g|webp|gif|ogg|mp3|m4a|aac|mp4|webm|ttf|otf|woff2?)");
+
+    /** Entry categories with their own compression level. */
+    public enum EntryType {
+        DEX(6),
+        NATIVE_LIB(6),
+        RESOURCE_TABLE(6),
+        /** Images, audio, video and fonts that are compressed formats themselves. */
+        COMPRESSED_MEDIA(1),
+        OTHER(6);
+
+        final int defaultLevel;
+
+        EntryType(int defaultLevel) {
+            this.defaultLevel = defaultLevel;
+        }
+
+        public static EntryType of(String entryName) {
+            if (ROOT_DEX.matcher(entryName).matches()) {
+                return DEX;
+            }
+            if (entryName.startsWith("lib/") && entryName.endsWith(".so")) {
+                return NATIVE_LIB;
+            }
+            if (entryName.equals(ResourceTable.ENTRY_NAME)) {
+                return RESOURCE_TABLE;
+            }
+            if (MEDIA_EXTENSION.matcher(entryName.toLowerCase(Locale.ROOT)).matches()) {
+                return COMPRESSED_MEDIA;
+            }
+            return OTHER;
+        }
+    }
+
+    public static final OutputProfile COMPATIBLE = new OutputProfile("compatible", false, false);
+    public static final OutputProfile INSTALL_OPTIMIZED = new OutputProfile("install-optimized", true, false);
+    /** Also sets android:extractNativeLibs="false", so the installer leaves the libraries in the APK. */
+    public static final OutputProfile INSTALL_OPTIMIZED_NO_EXTRACT =
+            new OutputProfile("install-optimized, libs in APK", true, true);
+
+    private static final OutputProfile[] PREDEFINED = {COMPATIBLE, INSTALL_OPTIMIZED, INSTALL_OPTIMIZED_NO_EXTRACT};
+
+    public final String name;
+    public final boolean storeCodeUncompressed;
+    public final boolean disableNativeLibExtraction;
+    private final int[] compressionLevels;
+
+    private OutputProfile(String name, boolean storeCodeUncompressed, boolean disableNativeLibExtraction) {
+        this(name, storeCodeUncompressed, disableNativeLibExtraction, defaultLevels());
+    }
+
+    private OutputProfile(String name, boolean storeCodeUncompressed, boolean disableNativeLibExtraction,
+                          int[] compressionLevels) {
+        this.name = name;
+        this.storeCodeUncompressed = storeCodeUncompressed;
+        this.disableNativeLibExtraction = disableNativeLibExtraction;
+        this.compressionLevels = compressionLevels;
+    }
+
+    /** Returns the predefined profile called {@code name}, or null if there is none. */
+    public static OutputProfile forName(String name) {
+        for (OutputProfile profile : PREDEFINED) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    private static int[] defaultLevels() {
+        EntryType[] types = EntryType.values();
+        int[] levels = new int[types.length];
+        for (EntryType type : types) {
+            levels[type.ordinal()] = type.defaultLevel;
+        }
+        return levels;
+    }
+
+    /**
+     * Returns a copy of this profile that deflates entries of {@code type} at {@code level} (0-9).
+     */
+    public OutputProfile withCompressionLevel(EntryType type, int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be 0-9, got " + level);
+        }
+        int[] levels = Arrays.copyOf(compressionLevels, compressionLevels.length);
+        levels[type.ordinal()] = level;
+        return new OutputProfile(name, storeCodeUncompressed, disableNativeLibExtraction, levels);
+    }
+
+    /**
+     * Returns the DEFLATE level an entry is compressed with when it is not stored.
+     */
+    public int compressionLevelFor(String entryName) {
+        return compressionLevels[EntryType.of(entryName).ordinal()];
+    }
+
+    /**
+     * The profile for a split of a bundle. Only the base split's manifest decides
+     * extractNativeLibs, so splits never get the manifest edit.
+     */
+    public OutputProfile forSplit() {
+        return disableNativeLibExtraction
+                ? new OutputProfile(INSTALL_OPTIMIZED.name, storeCodeUncompressed, false, compressionLevels)
+                : this;
+    }
+
+    /**
+     * Returns the alignment an entry has to be STORED with, or 0 if it should be deflated.
+     */
+    public int storedAlignmentFor(String entryName) {
+        if (!storeCodeUncompressed) {
+            return 0;
+        }
+        switch (EntryType.of(entryName)) {
+            case DEX:
+            case NATIVE_LIB:
+                return PAGE_ALIGNMENT;
+            case RESOURCE_TABLE:
+                return RESOURCE_TABLE_ALIGNMENT;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Identifies everything about this profile that shapes the written APK: the name, both flags and
+     * the compression level of every entry type. Profiles from {@link #withCompressionLevel} keep
+     * the name but not the key.
+     */
+    public String layoutKey() {
+        return name + "|" + storeCodeUncompressed + "|" + disableNativeLibExtraction + "|"
+                + Arrays.toString(compressionLevels);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
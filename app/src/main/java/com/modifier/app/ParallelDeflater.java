@@ -0,0 +1,245 @@
+package com.modifier.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * pigz-style DEFLATE: the input is cut into blocks which are compressed in parallel and joined into
+ * one raw DEFLATE stream any inflater reads.
+ *
+ * Each block is primed with the last 32 KiB of the block before it as preset dictionary, so matches
+ * can reach back across the boundary and the ratio stays close to a single deflater. Every block
+ * but the last ends with a sync flush, which leaves it byte aligned and not final, so the blocks can
+ * simply be concatenated; the last one is finished. The CRC is computed on the reading thread.
+ *
+ * Blocks are read through a {@link PooledIo} buffer and copied out at their exact length, so the many
+ * tiny entries of an APK do not each cost a full block. Deflaters and their output buffers are kept
+ * per in-flight block and reset between blocks; {@link #close()} ends the ones left idle.
+ */
+public class ParallelDeflater implements Closeable {
+    private static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+    private final Executor executor;
+    private final int parallelism;
+    private final int blockSize;
+    // Guarded by its own monitor
+    private final ArrayDeque<Slot> idleSlots = new ArrayDeque<>();
+    private boolean closed;
+
+    /** Sizes of one compressed stream. */
+    public static class Result {
+        public final long uncompressedSize;
+        public final long compressedSize;
+        public final long crc;
+
+        Result(long uncompressedSize, long compressedSize, long crc) {
+            this.uncompressedSize = uncompressedSize;
+            this.compressedSize = compressedSize;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * @param executor    runs the block compressions, e.g. {@link ComputeScheduler#cpuExecutor()}
+     * @param parallelism number of blocks compressed at the same time
+     */
+    public ParallelDeflater(Executor executor, int parallelism) {
+        this(executor, parallelism, DEFAULT_BLOCK_SIZE);
+    }
+
+    ParallelDeflater(Executor executor, int parallelism, int blockSize) {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.blockSize = Math.min(PooledIo.BUFFER_SIZE, Math.max(DICTIONARY_SIZE, blockSize));
+    }
+
+    /**
+     * Compresses {@code in} until EOF into {@code out} as raw DEFLATE (no zlib header) at
+     * {@code level}. Inputs of a single block are compressed on the calling thread.
+     */
+    public Result deflate(InputStream in, OutputStream out, int level) throws IOException {
+        CRC32 crc = new CRC32();
+        long uncompressedSize = 0;
+        long compressedSize = 0;
+        ArrayDeque<FutureTask<byte[]>> inFlight = new ArrayDeque<>();
+        byte[] previous = null;
+        byte[] current = readBlock(in);
+        try {
+            while (current != null) {
+                byte[] next = current.length == blockSize ? readBlock(in) : null;
+                crc.update(current, 0, current.length);
+                uncompressedSize += current.length;
+
+                FutureTask<byte[]> task = new FutureTask<>(new BlockJob(current, previous, level, next == null));
+                if (inFlight.isEmpty() && next == null) {
+                    task.run(); // single block, or the tail with nothing queued: no hand-off needed
+                } else {
+                    executor.execute(task);
+                }
+                inFlight.add(task);
+
+                // Keep at most 2x parallelism blocks buffered, writing them out in order
+                while (inFlight.size() >= parallelism * 2 || (next == null && !inFlight.isEmpty())) {
+                    byte[] compressed = await(inFlight.removeFirst());
+                    out.write(compressed);
+                    compressedSize += compressed.length;
+                }
+                previous = current;
+                current = next;
+            }
+            if (uncompressedSize == 0) {
+                // Empty input still needs a final empty block
+                byte[] compressed = new BlockJob(new byte[0], null, level, true).call();
+                out.write(compressed);
+                compressedSize += compressed.length;
+            }
+        } finally {
+            for (FutureTask<byte[]> task : inFlight) {
+                task.cancel(true);
+            }
+        }
+        return new Result(uncompressedSize, compressedSize, crc.getValue());
+    }
+
+    private byte[] readBlock(InputStream in) throws IOException {
+        byte[] buffer = PooledIo.acquireArray();
+        try {
+            int filled = 0;
+            int bytesRead;
+            while (filled < blockSize && (bytesRead = in.read(buffer, filled, blockSize - filled)) != -1) {
+                filled += bytesRead;
+            }
+            return filled == 0 ? null : Arrays.copyOf(buffer, filled);
+        } finally {
+            PooledIo.releaseArray(buffer);
+        }
+    }
+
+    private static byte[] await(FutureTask<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Block compression failed", e.getCause());
+        }
+    }
+
+    /** Ends the deflaters kept for reuse. Blocks still being compressed keep theirs until they finish. */
+    @Override
+    public void close() {
+        synchronized (idleSlots) {
+            closed = true;
+            for (Slot slot : idleSlots) {
+                slot.deflater.end();
+            }
+            idleSlots.clear();
+        }
+    }
+
+    /**
+     * Takes an idle slot deflating at {@code level}. Only slots of the same level are reused, since a
+     * reset deflater then produces exactly what a new one would.
+     */
+    private Slot acquireSlot(int level) {
+        synchronized (idleSlots) {
+            Iterator<Slot> iterator = idleSlots.iterator();
+            while (iterator.hasNext()) {
+                Slot slot = iterator.next();
+                if (slot.level == level) {
+                    iterator.remove();
+                    return slot;
+                }
+            }
+        }
+        return new Slot(level);
+    }
+
+    private void releaseSlot(Slot slot) {
+        slot.deflater.reset();
+        slot.out.reset();
+        synchronized (idleSlots) {
+            if (!closed && idleSlots.size() < parallelism * 2) {
+                idleSlots.push(slot);
+                return;
+            }
+        }
+        slot.deflater.end();
+    }
+
+    /** A deflater and its output buffers, used by one block at a time. */
+    private static class Slot {
+        final int level;
+        final Deflater deflater;
+        final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(OUTPUT_BUFFER_SIZE);
+
+        Slot(int level) {
+            this.level = level;
+            this.deflater = new Deflater(level, true);
+        }
+    }
+
+    private class BlockJob implements Callable<byte[]> {
+        private final byte[] data;
+        /** The block before this one, whose tail is the dictionary; null for the first block. */
+        private final byte[] previous;
+        private final int level;
+        private final boolean last;
+
+        BlockJob(byte[] data, byte[] previous, int level, boolean last) {
+            this.data = data;
+            this.previous = previous;
+            this.level = level;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() {
+            Slot slot = acquireSlot(level);
+            try {
+                Deflater deflater = slot.deflater;
+                if (previous != null) {
+                    int dictionaryLength = Math.min(previous.length, DICTIONARY_SIZE);
+                    deflater.setDictionary(previous, previous.length - dictionaryLength, dictionaryLength);
+                }
+                deflater.setInput(data);
+                ByteArrayOutputStream out = slot.out;
+                byte[] buffer = slot.buffer;
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buffer);
+                        out.write(buffer, 0, n);
+                    }
+                } else {
+                    // SYNC_FLUSH drains all input and ends on a byte boundary; a full buffer means more is pending
+                    int n;
+                    do {
+                        n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        out.write(buffer, 0, n);
+                    } while (n == buffer.length);
+                }
+                return out.toByteArray();
+            } finally {
+                releaseSlot(slot);
+            }
+        }
+    }
+}
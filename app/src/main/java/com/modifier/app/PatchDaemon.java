@@ -0,0 +1,360 @@
+package com.modifier.app;
+
+import android.content.Context;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.apksig.ApkSigner;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Long-running patch server for build farms. Keeps one {@link ApkProcessor} with its caches, the
+ * loaded signing keys and the warmed-up engines alive between jobs, so a job only pays for the
+ * patching itself instead of JIT warm-up, class loading and key parsing.
+ *
+ * Listens on the abstract Unix domain socket {@value #SOCKET_NAME}; from a host use
+ * {@code adb forward tcp:7300 localabstract:com.modifier.app.patchd}. Only this app, adb shell and
+ * root may connect. The protocol is one JSON object per line in each direction:
+ * <pre>
+ * {"op":"patch","id":"42","input":"/sdcard/in.apk","output":"/sdcard/Android/data/com.modifier.app/files/out.apk",
+ *  "patch":"default-provider-oncreate","signer":"debug","profile":"install-optimized","delta":true}
+ * {"op":"apply_delta","id":"43","base":"/data/app/.../base.apk","delta":"/sdcard/out.apk.apkdelta","output":"..."}
+ * {"op":"stats"}    daemon totals, scheduler state and I/O per call site (see {@link PooledIo})
+ * {"op":"ping"}
+ * </pre>
+ * {@code id}, {@code profile} and {@code delta} are optional; with {@code delta} the job also writes
+ * an {@link ApkDelta} from the input next to the output, which {@code apply_delta} turns back into
+ * the patched APK on a device that has the input; split bundles are rejected with {@code delta}.
+ * The output path has to be writable by the app.
+ * Jobs run one at a time in arrival order on a serial queue, the patching itself fans out on the
+ * shared CPU workers. Each patch reply carries the job's stats: time spent queued, total time,
+ * wall time per pipeline stage, output size and heap in use.
+ */
+public class PatchDaemon {
+    private static final String TAG = "PatchDaemon";
+    public static final String SOCKET_NAME = "com.modifier.app.patchd";
+    /** The patch {@link ApkProcessor} applies; the only one there is so far. */
+    public static final String DEFAULT_PATCH_ID = "default-provider-oncreate";
+
+    private static final int SHELL_UID = 2000;
+    private static final int ROOT_UID = 0;
+
+    private final Context context;
+    private final ApkProcessor apkProcessor;
+    private final ComputeScheduler.SerialQueue jobQueue;
+    // Signing keys by id, loaded on first use and kept
+    private final Map<String, List<ApkSigner.SignerConfig>> signers = new HashMap<>();
+    private final long startedAtMillis = SystemClock.elapsedRealtime();
+
+    private LocalServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    // Totals, guarded by this
+    private long jobsCompleted;
+    private long jobsFailed;
+    private long totalJobMillis;
+
+    public PatchDaemon(Context context) {
+        this.context = context.getApplicationContext();
+        this.apkProcessor = new ApkProcessor(this.context);
+        this.jobQueue = ComputeScheduler.getInstance(context).newSerialQueue("patch-daemon");
+    }
+
+    /**
+     * Binds the socket and starts accepting connections. The engines and the debug signer are
+     * warmed up on the job queue, so the first job waits for that instead of racing it.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new LocalServerSocket(SOCKET_NAME);
+        running = true;
+        jobQueue.execute(this::warmUp);
+        acceptThread = new Thread(this::acceptLoop, "patch-daemon-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.i(TAG, "Listening on @" + SOCKET_NAME);
+    }
+
+    /** Closes the socket and drops queued jobs; the running one is interrupted. */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        jobQueue.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close server socket", e);
+        }
+        acceptThread.interrupt();
+        Log.i(TAG, "Stopped: " + statsJson());
+    }
+
+    private void warmUp() {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            apkProcessor.warmUp(signerFor(SigningKeys.DEBUG_SIGNER_ID));
+        } catch (Exception e) {
+            Log.w(TAG, "Debug signer unavailable for warm-up", e);
+        }
+        Log.i(TAG, "Warm-up took " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            LocalSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "Accept failed", e);
+                }
+                return;
+            }
+            Thread connectionThread = new Thread(() -> serve(socket), "patch-daemon-connection");
+            connectionThread.setDaemon(true);
+            connectionThread.start();
+        }
+    }
+
+    private void serve(LocalSocket socket) {
+        try (LocalSocket s = socket) {
+            Credentials peer = s.getPeerCredentials();
+            if (!isTrusted(peer.getUid())) {
+                Log.w(TAG, "Rejected connection from uid " + peer.getUid());
+                return;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            Writer writer = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+            String line;
+            while (running && (line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                writer.write(handle(line).toString());
+                writer.write('\n');
+                writer.flush();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Connection closed: " + e.getMessage());
+        }
+    }
+
+    private static boolean isTrusted(int uid) {
+        return uid == Process.myUid() || uid == SHELL_UID || uid == ROOT_UID;
+    }
+
+    private JSONObject handle(String line) {
+        JSONObject request;
+        try {
+            request = new JSONObject(line);
+        } catch (JSONException e) {
+            return error(null, "Malformed request: " + e.getMessage());
+        }
+        String id = request.optString("id", null);
+        switch (request.optString("op", "patch")) {
+            case "ping":
+                return reply(id, true, "pong");
+            case "stats":
+                return withField(reply(id, true, "ok"), "daemon", statsJson());
+            case "patch":
+                return submitPatch(id, request);
+            case "apply_delta":
+                return submitApplyDelta(id, request);
+            default:
+                return error(id, "Unknown op: " + request.optString("op"));
+        }
+    }
+
+    private JSONObject submitPatch(String id, JSONObject request) {
+        String input = request.optString("input", null);
+        String output = request.optString("output", null);
+        if (input == null || output == null) {
+            return error(id, "input and output are required");
+        }
+        String patchId = request.optString("patch", DEFAULT_PATCH_ID);
+        if (!DEFAULT_PATCH_ID.equals(patchId)) {
+            return error(id, "Unknown patch \"" + patchId + "\", known: " + DEFAULT_PATCH_ID);
+        }
+        OutputProfile profile = OutputProfile.forName(request.optString("profile", OutputProfile.COMPATIBLE.name));
+        if (profile == null) {
+            return error(id, "Unknown profile: " + request.optString("profile"));
+        }
+        String signerId = request.optString("signer", SigningKeys.DEBUG_SIGNER_ID);
+        boolean delta = request.optBoolean("delta", false);
+
+        long queuedAt = SystemClock.elapsedRealtime();
+        return await(id, () -> runPatch(id, new File(input), new File(output), signerId, profile, delta, queuedAt));
+    }
+
+    private JSONObject submitApplyDelta(String id, JSONObject request) {
+        String base = request.optString("base", null);
+        String delta = request.optString("delta", null);
+        String output = request.optString("output", null);
+        if (base == null || delta == null || output == null) {
+            return error(id, "base, delta and output are required");
+        }
+        return await(id, () -> runApplyDelta(id, new File(base), new File(delta), new File(output)));
+    }
+
+    /** Queues {@code task} behind the other jobs and waits for its reply. */
+    private JSONObject await(String id, Callable<JSONObject> task) {
+        Future<JSONObject> job;
+        try {
+            job = jobQueue.submit(task);
+        } catch (RejectedExecutionException e) {
+            return error(id, "Daemon is shutting down");
+        }
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            job.cancel(true);
+            Thread.currentThread().interrupt();
+            return error(id, "Interrupted");
+        } catch (ExecutionException e) {
+            return error(id, "Job failed: " + e.getCause());
+        }
+    }
+
+    private JSONObject runPatch(String id, File input, File output, String signerId, OutputProfile profile,
+                                boolean delta, long queuedAt) throws JSONException {
+        long startedAt = SystemClock.elapsedRealtime();
+        boolean warm;
+        synchronized (this) {
+            warm = jobsCompleted + jobsFailed > 0;
+        }
+
+        List<ApkSigner.SignerConfig> signerConfigs;
+        try {
+            signerConfigs = signerFor(signerId);
+        } catch (Exception e) {
+            recordJob(false, 0);
+            return error(id, "Signer \"" + signerId + "\" unavailable: " + e.getMessage());
+        }
+
+        apkProcessor.setOutputProfile(profile);
+        apkProcessor.setDeltaOutputEnabled(delta);
+        Log.i(TAG, "Job " + id + ": " + input + " -> " + output + " (" + profile + ")");
+        ApkProcessor.ProcessingResult result = apkProcessor.processAndSignApk(Uri.fromFile(input), output,
+                signerConfigs, status -> Log.d(TAG, "Job " + id + ": " + status));
+        long finishedAt = SystemClock.elapsedRealtime();
+        recordJob(result.success, finishedAt - startedAt);
+
+        Runtime runtime = Runtime.getRuntime();
+        JSONObject stats = new JSONObject()
+                .put("queueMillis", startedAt - queuedAt)
+                .put("totalMillis", finishedAt - startedAt)
+                .put("warm", warm)
+                .put("stages", new JSONObject(result.getStageMillis()))
+                .put("outputBytes", result.success ? output.length() : 0)
+                .put("deltaBytes", result.getDeltaFile() != null ? result.getDeltaFile().length() : 0)
+                .put("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+        Log.i(TAG, "Job " + id + " " + (result.success ? "done" : "failed") + ": " + stats);
+        JSONObject reply = reply(id, result.success, result.message);
+        if (result.success) {
+            reply.put("output", output.getAbsolutePath());
+            reply.putOpt("delta", result.getDeltaFile() != null ? result.getDeltaFile().getAbsolutePath() : null);
+        }
+        return reply.put("stats", stats);
+    }
+
+    private JSONObject runApplyDelta(String id, File base, File delta, File output) throws JSONException {
+        long startedAt = SystemClock.elapsedRealtime();
+        try (ParallelDeflater deflater = new ParallelDeflater(
+                ComputeScheduler.getInstance(context).cpuExecutor(), Runtime.getRuntime().availableProcessors())) {
+            ApkDelta.apply(base, delta, output, deflater);
+        } catch (IOException e) {
+            Log.w(TAG, "Job " + id + ": applying " + delta + " failed", e);
+            return error(id, "Applying delta failed: " + e.getMessage());
+        }
+        return reply(id, true, "Rebuilt " + output.getName())
+                .put("output", output.getAbsolutePath())
+                .put("stats", new JSONObject()
+                        .put("totalMillis", SystemClock.elapsedRealtime() - startedAt)
+                        .put("outputBytes", output.length()));
+    }
+
+    private synchronized List<ApkSigner.SignerConfig> signerFor(String signerId) throws Exception {
+        List<ApkSigner.SignerConfig> configs = signers.get(signerId);
+        if (configs == null) {
+            configs = SigningKeys.load(context, signerId);
+            signers.put(signerId, configs);
+        }
+        return configs;
+    }
+
+    private synchronized void recordJob(boolean success, long millis) {
+        if (success) {
+            jobsCompleted++;
+        } else {
+            jobsFailed++;
+        }
+        totalJobMillis += millis;
+    }
+
+    private synchronized JSONObject statsJson() {
+        try {
+            long jobs = jobsCompleted + jobsFailed;
+            JSONObject io = new JSONObject();
+            for (Map.Entry<String, PooledIo.SiteStats> site : PooledIo.stats().entrySet()) {
+                io.put(site.getKey(), site.getValue().toString());
+            }
+            return new JSONObject()
+                    .put("uptimeMillis", SystemClock.elapsedRealtime() - startedAtMillis)
+                    .put("jobsCompleted", jobsCompleted)
+                    .put("jobsFailed", jobsFailed)
+                    .put("averageJobMillis", jobs == 0 ? 0 : totalJobMillis / jobs)
+                    .put("queueDepth", jobQueue.getQueueDepth())
+                    .put("scheduler", ComputeScheduler.getInstance(context).getStats().toString())
+                    .put("io", io);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JSONObject reply(String id, boolean ok, String message) {
+        try {
+            return new JSONObject().putOpt("id", id).put("ok", ok).put("message", message);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JSONObject withField(JSONObject object, String name, Object value) {
+        try {
+            return object.put(name, value);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JSONObject error(String id, String message) {
+        return reply(id, false, message);
+    }
+}
@@ -0,0 +1,88 @@
+package com.modifier.app;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Foreground service hosting the {@link PatchDaemon}, so the process and its warm state survive
+ * while the farm keeps sending jobs. Guarded by the DUMP permission, which adb shell holds and
+ * regular apps cannot get:
+ * <pre>
+ * adb shell am start-foreground-service -n com.modifier.app/.PatchDaemonService
+ * adb shell am startservice -n com.modifier.app/.PatchDaemonService -a com.modifier.app.action.STOP_DAEMON
+ * </pre>
+ */
+public class PatchDaemonService extends Service {
+    private static final String TAG = "PatchDaemonService";
+    public static final String ACTION_STOP = "com.modifier.app.action.STOP_DAEMON";
+    private static final String CHANNEL_ID = "patch_daemon";
+    private static final int NOTIFICATION_ID = 1;
+
+    private PatchDaemon daemon;
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (daemon == null) {
+            daemon = new PatchDaemon(this);
+            try {
+                daemon.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start patch daemon", e);
+                daemon = null;
+                stopSelf();
+                return START_NOT_STICKY;
+            }
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (daemon != null) {
+            daemon.stop();
+            daemon = null;
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = getSystemService(NotificationManager.class);
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.patch_daemon_channel), NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = newLegacyBuilder();
+        }
+        return builder
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.patch_daemon_running))
+                .setContentText("@" + PatchDaemon.SOCKET_NAME)
+                .setOngoing(true)
+                .build();
+    }
+
+    @SuppressWarnings("deprecation") // channels need API 26
+    private Notification.Builder newLegacyBuilder() {
+        return new Notification.Builder(this);
+    }
+}
@@ -0,0 +1,214 @@
+package com.modifier.app;
+
+import android.util.Log;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Decides whether an APK can be patched by resolving the exact target method (name, proto and
+ * access flags) through the DEX class and method tables, using dexlib2's lazily parsed
+ * {@link DexBackedClassDef}. Nothing is extracted or disassembled, DEX files are read straight
+ * from the archive into memory.
+ */
+public class PatchabilityVerifier {
+    private static final String TAG = "PatchabilityVerifier";
+
+    public enum Verdict {
+        PATCHABLE,
+        CLASS_NOT_FOUND,
+        METHOD_NOT_FOUND,
+        ACCESS_FLAGS_MISMATCH,
+        NO_CODE
+    }
+
+    public static class Result {
+        public final Verdict verdict;
+        /** DEX entry holding the class, or null if no DEX contains it. */
+        public final String dexEntryPath;
+        public final String message;
+
+        public Result(Verdict verdict, String dexEntryPath, String message) {
+            this.verdict = verdict;
+            this.dexEntryPath = dexEntryPath;
+            this.message = message;
+        }
+
+        public boolean isPatchable() {
+            return verdict == Verdict.PATCHABLE;
+        }
+    }
+
+    private final String classType;
+    private final String methodName;
+    private final List<String> parameterTypes;
+    private final String returnType;
+    private final String accessFlags;
+    private final String methodSignature;
+
+    /**
+     * @param targetClassPath       Class in internal form, e.g. "com/example/Foo".
+     * @param targetMethodSignature Smali method header, e.g. ".method public onCreate(Landroid/content/Context;)Z".
+     */
+    public PatchabilityVerifier(String targetClassPath, String targetMethodSignature) {
+        this.classType = "L" + targetClassPath.replace('.', '/') + ";";
+        this.methodSignature = targetMethodSignature.trim();
+
+        String header = methodSignature;
+        if (!header.startsWith(".method ")) {
+            throw new IllegalArgumentException("Not a smali method header: " + targetMethodSignature);
+        }
+        header = header.substring(".method ".length()).trim();
+        int lastSpace = header.lastIndexOf(' ');
+        String nameAndProto = lastSpace == -1 ? header : header.substring(lastSpace + 1);
+        this.accessFlags = lastSpace == -1 ? "" : header.substring(0, lastSpace).trim();
+
+        int paramsStart = nameAndProto.indexOf('(');
+        int paramsEnd = nameAndProto.indexOf(')');
+        if (paramsStart <= 0 || paramsEnd < paramsStart) {
+            throw new IllegalArgumentException("Malformed method prototype: " + nameAndProto);
+        }
+        this.methodName = nameAndProto.substring(0, paramsStart);
+        this.parameterTypes = splitTypeDescriptors(nameAndProto.substring(paramsStart + 1, paramsEnd));
+        this.returnType = nameAndProto.substring(paramsEnd + 1);
+    }
+
+    /**
+     * Checks the given DEX entries in order and stops at the first one where the method is patchable.
+     * If none is, the most specific verdict is returned (a class found without a matching method wins
+     * over a class that was not found at all).
+     */
+    public Result verifyApk(File apkFile, List<String> dexEntryPaths) throws IOException {
+        try (ZipFile zipFile = new ZipFile(apkFile)) {
+            return verifyApk(zipFile, dexEntryPaths);
+        }
+    }
+
+    /**
+     * Same as {@link #verifyApk(File, List)} for an APK the caller already has open.
+     */
+    public Result verifyApk(ZipFile zipFile, List<String> dexEntryPaths) throws IOException {
+        Result best = new Result(Verdict.CLASS_NOT_FOUND, null,
+                "Target class " + classType + " not found in any DEX file");
+        for (String dexEntryPath : dexEntryPaths) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Verification cancelled");
+            }
+            ZipEntry entry = zipFile.getEntry(dexEntryPath);
+            if (entry == null) {
+                continue;
+            }
+            DexBackedDexFile dexFile;
+            try (InputStream is = new BufferedInputStream(zipFile.getInputStream(entry))) {
+                dexFile = DexBackedDexFile.fromInputStream(Opcodes.getDefault(), is);
+            }
+            Verdict verdict = verify(dexFile);
+            Log.d(TAG, dexEntryPath + ": " + verdict);
+            if (verdict == Verdict.CLASS_NOT_FOUND) {
+                continue;
+            }
+            Result result = new Result(verdict, dexEntryPath, describe(verdict, dexEntryPath));
+            if (verdict == Verdict.PATCHABLE) {
+                return result;
+            }
+            if (best.dexEntryPath == null) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Resolves the target method in a single DEX file.
+     */
+    public Verdict verify(DexBackedDexFile dexFile) {
+        DexBackedClassDef classDef = findClass(dexFile);
+        if (classDef == null) {
+            return Verdict.CLASS_NOT_FOUND;
+        }
+
+        Verdict verdict = Verdict.METHOD_NOT_FOUND;
+        for (DexBackedMethod method : classDef.getMethods()) {
+            if (!method.getName().equals(methodName)
+                    || !method.getReturnType().equals(returnType)
+                    || !method.getParameterTypes().equals(parameterTypes)) {
+                continue;
+            }
+            // Same check the smali path does implicitly: the header line has to match exactly
+            if (!AccessFlags.formatAccessFlagsForMethod(method.getAccessFlags()).equals(accessFlags)) {
+                verdict = Verdict.ACCESS_FLAGS_MISMATCH;
+                continue;
+            }
+            if (method.getImplementation() == null) {
+                return Verdict.NO_CODE;
+            }
+            return Verdict.PATCHABLE;
+        }
+        return verdict;
+    }
+
+    private DexBackedClassDef findClass(DexBackedDexFile dexFile) {
+        List<DexBackedClassDef> classes = dexFile.getClassSection();
+        for (int i = 0; i < classes.size(); i++) {
+            DexBackedClassDef classDef = classes.get(i);
+            if (classDef.getType().equals(classType)) {
+                return classDef;
+            }
+        }
+        return null;
+    }
+
+    private String describe(Verdict verdict, String dexEntryPath) {
+        switch (verdict) {
+            case PATCHABLE:
+                return "Target method found in " + dexEntryPath;
+            case METHOD_NOT_FOUND:
+                return "Class " + classType + " found in " + dexEntryPath + " but it has no method '"
+                        + methodSignature + "'";
+            case ACCESS_FLAGS_MISMATCH:
+                return "Method " + methodName + " found in " + dexEntryPath + " but its access flags differ from '"
+                        + accessFlags + "'";
+            case NO_CODE:
+                return "Method " + methodName + " in " + dexEntryPath + " is abstract or native";
+            default:
+                return "Target class " + classType + " not found in any DEX file";
+        }
+    }
+
+    /**
+     * Splits a concatenated list of type descriptors, e.g. "ILjava/lang/String;[J".
+     */
+    private static List<String> splitTypeDescriptors(String descriptors) {
+        List<String> types = new ArrayList<>();
+        int i = 0;
+        while (i < descriptors.length()) {
+            int start = i;
+            while (descriptors.charAt(i) == '[') {
+                i++;
+            }
+            if (descriptors.charAt(i) == 'L') {
+                int end = descriptors.indexOf(';', i);
+                if (end == -1) {
+                    throw new IllegalArgumentException("Unterminated class descriptor in: " + descriptors);
+                }
+                i = end;
+            }
+            i++;
+            types.add(descriptors.substring(start, i));
+        }
+        return types;
+    }
+}
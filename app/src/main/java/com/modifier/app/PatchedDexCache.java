@@ -0,0 +1,151 @@
+package com.modifier.app;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Persistent cache of patched DEX files shared across APKs.
+ *
+ * Entries are keyed by the source DEX's CRC32 and size (taken from the zip central directory),
+ * its SHA-256 and the patch id. CRC and size are part of the file name so whether an entry may
+ * exist can be decided from a directory listing; only then is the exact entry looked up by the
+ * SHA-256. The caller still extracts and hashes the source DEX in either case, since a miss is
+ * patched from the extracted file and stored under its hash.
+ */
+public class PatchedDexCache {
+    private static final String TAG = "PatchedDexCache";
+    private static final String SUFFIX = ".dex";
+    private static final long DEFAULT_MAX_CACHE_BYTES = 256L * 1024 * 1024;
+
+    private final File cacheDir;
+    private final long maxCacheBytes;
+
+    public PatchedDexCache(File cacheDir) {
+        this(cacheDir, DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    public PatchedDexCache(File cacheDir, long maxCacheBytes) {
+        this.cacheDir = cacheDir;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * Cheap pre-check using only central directory data: true if some cached entry was patched
+     * from a DEX with this CRC and size. A hit still has to be confirmed with {@link #restore}.
+     */
+    public synchronized boolean hasCandidate(long crc, long size, String patchId) {
+        String prefix = keyPrefix(crc, size);
+        String suffix = "-" + patchId + SUFFIX;
+        String[] names = cacheDir.list();
+        if (names == null) {
+            return false;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the cached patched DEX over {@code destination} if an entry with this exact key exists.
+     *
+     * @return true if the cached bytes were restored.
+     */
+    public synchronized boolean restore(long crc, long size, String sourceSha256, String patchId, File destination) {
+        File cached = new File(cacheDir, fileName(crc, size, sourceSha256, patchId));
+        if (!cached.isFile()) {
+            return false;
+        }
+        try {
+            PooledIo.copyFile("restore cached dex", cached, destination);
+            if (!cached.setLastModified(System.currentTimeMillis())) {
+                Log.w(TAG, "Could not touch cache entry: " + cached.getName());
+            }
+            Log.i(TAG, "Cache hit: " + cached.getName());
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to restore cached DEX " + cached.getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Stores a patched DEX under the key of its source DEX. Failures are logged and ignored,
+     * the cache is only an optimisation.
+     */
+    public synchronized void store(long crc, long size, String sourceSha256, String patchId, File patchedDex) {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Log.w(TAG, "Failed to create cache directory: " + cacheDir.getAbsolutePath());
+            return;
+        }
+        File target = new File(cacheDir, fileName(crc, size, sourceSha256, patchId));
+        File tmp = new File(cacheDir, target.getName() + ".tmp");
+        try {
+            PooledIo.copyFile("store cached dex", patchedDex, tmp);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Log.i(TAG, "Stored patched DEX in cache: " + target.getName());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store patched DEX in cache", e);
+            if (tmp.exists() && !tmp.delete()) {
+                Log.w(TAG, "Failed to delete temp cache file: " + tmp.getAbsolutePath());
+            }
+            return;
+        }
+        trimToSize();
+    }
+
+    /**
+     * Evicts least recently used entries until the cache fits in its byte budget.
+     */
+    private void trimToSize() {
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxCacheBytes) {
+            return;
+        }
+        Arrays.sort(files, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+        for (File file : files) {
+            if (total <= maxCacheBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                Log.d(TAG, "Evicted cache entry: " + file.getName());
+            } else {
+                Log.w(TAG, "Failed to evict cache entry: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static String keyPrefix(long crc, long size) {
+        return String.format(Locale.US, "%08x-%d-", crc, size);
+    }
+
+    private static String fileName(long crc, long size, String sourceSha256, String patchId) {
+        return keyPrefix(crc, size) + sourceSha256 + "-" + patchId + SUFFIX;
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format(Locale.US, "%02x", b));
+        }
+        return sb.toString();
+    }
+}
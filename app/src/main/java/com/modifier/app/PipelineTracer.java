@@ -0,0 +1,147 @@
+package com.modifier.app;
+
+import android.os.Trace;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traces the stages of one job. Every section shows up in Perfetto/systrace through
+ * {@link Trace}, and is also recorded with its thread so the whole job can be written out as a
+ * Chrome trace-event JSON file (chrome://tracing, ui.perfetto.dev) with parallel stages on
+ * separate tracks.
+ *
+ * Sections must be closed on the thread that opened them, in reverse order; use
+ * try-with-resources. Sections from different threads may overlap freely.
+ */
+public class PipelineTracer {
+    private static final String TAG = "PipelineTracer";
+    private static final int MAX_SECTION_NAME_LENGTH = 127; // Trace.beginSection limit
+
+    // Off once Trace turns out to be unavailable (plain JVM, where the android.jar stubs throw)
+    private static volatile boolean systemTraceAvailable = true;
+
+    private final String jobName;
+    private final long startNanos = System.nanoTime();
+    private final List<Section> completed = new ArrayList<>();
+    private final Map<Long, String> threadNames = new LinkedHashMap<>();
+
+    public PipelineTracer(String jobName) {
+        this.jobName = jobName;
+    }
+
+    public Section section(String name) {
+        return new Section(name);
+    }
+
+    public class Section implements AutoCloseable {
+        private final String name;
+        private final long threadId;
+        private final long beginNanos;
+        private long endNanos;
+        private final boolean systemTraced;
+
+        private Section(String name) {
+            this.name = name;
+            this.threadId = Thread.currentThread().getId();
+            this.systemTraced = beginSystemSection(name);
+            this.beginNanos = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            endNanos = System.nanoTime();
+            if (systemTraced) {
+                Trace.endSection();
+            }
+            synchronized (PipelineTracer.this) {
+                completed.add(this);
+                threadNames.put(threadId, Thread.currentThread().getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the wall time of all closed sections in milliseconds, summed per section name, in
+     * the order the names first closed.
+     */
+    public synchronized Map<String, Long> sectionMillis() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (Section section : completed) {
+            long millis = (section.endNanos - section.beginNanos) / 1_000_000;
+            Long previous = totals.get(section.name);
+            totals.put(section.name, previous == null ? millis : previous + millis);
+        }
+        return totals;
+    }
+
+    private static boolean beginSystemSection(String name) {
+        if (!systemTraceAvailable) {
+            return false;
+        }
+        try {
+            Trace.beginSection(name.length() > MAX_SECTION_NAME_LENGTH
+                    ? name.substring(0, MAX_SECTION_NAME_LENGTH) : name);
+            return true;
+        } catch (RuntimeException | LinkageError e) {
+            systemTraceAvailable = false;
+            return false;
+        }
+    }
+
+    /**
+     * Writes all closed sections as a Chrome trace-event JSON file: one complete ("X") event per
+     * section, timestamps in microseconds since the job started, plus thread name metadata.
+     */
+    public synchronized void writeChromeTrace(File outputFile) throws IOException {
+        try {
+            JSONArray events = new JSONArray();
+            JSONObject processName = new JSONObject();
+            processName.put("name", "process_name");
+            processName.put("ph", "M");
+            processName.put("pid", 1);
+            processName.put("args", new JSONObject().put("name", jobName));
+            events.put(processName);
+            for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+                JSONObject threadName = new JSONObject();
+                threadName.put("name", "thread_name");
+                threadName.put("ph", "M");
+                threadName.put("pid", 1);
+                threadName.put("tid", thread.getKey());
+                threadName.put("args", new JSONObject().put("name", thread.getValue()));
+                events.put(threadName);
+            }
+            for (Section section : completed) {
+                JSONObject event = new JSONObject();
+                event.put("name", section.name);
+                event.put("cat", "pipeline");
+                event.put("ph", "X");
+                event.put("pid", 1);
+                event.put("tid", section.threadId);
+                event.put("ts", (section.beginNanos - startNanos) / 1000.0);
+                event.put("dur", (section.endNanos - section.beginNanos) / 1000.0);
+                events.put(event);
+            }
+            JSONObject root = new JSONObject();
+            root.put("traceEvents", events);
+            root.put("displayTimeUnit", "ms");
+            try (Writer writer = new FileWriter(outputFile)) {
+                writer.write(root.toString());
+            }
+        } catch (JSONException e) {
+            throw new IOException("Failed to build trace JSON", e);
+        }
+        Log.i(TAG, "Wrote " + completed.size() + " trace sections to " + outputFile.getAbsolutePath());
+    }
+}
@@ -0,0 +1,271 @@
+package com.modifier.app;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * The one place bulk I/O goes through: copying inputs, extracting entries, repacking and saving.
+ *
+ * Buffers come from small bounded pools of large arrays (and direct buffers for channel loops), so
+ * a batch run does not churn an 8 KiB array per file through the GC; a buffer the pool has no room
+ * for is just dropped. File-to-file copies use {@link FileChannel#transferTo}, which the kernel can
+ * do without a user-space buffer at all.
+ *
+ * Every operation is booked under a call-site name with bytes moved and time spent, see
+ * {@link #stats()}. Time includes whatever the streams do (inflating, deflating, the disk), so it
+ * shows where a stage's I/O time goes, not raw device speed.
+ */
+public final class PooledIo {
+    private static final String TAG = "PooledIo";
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_ARRAYS = 8;
+    private static final int MAX_POOLED_DIRECT = 4;
+
+    // Guarded by their own monitors
+    private static final ArrayDeque<byte[]> arrayPool = new ArrayDeque<>();
+    private static final ArrayDeque<ByteBuffer> directPool = new ArrayDeque<>();
+    private static final Map<String, SiteStats> statsBySite = new LinkedHashMap<>();
+
+    private PooledIo() {
+    }
+
+    /** Totals of one call site. */
+    public static class SiteStats {
+        public final long calls;
+        public final long bytes;
+        public final long nanos;
+
+        SiteStats(long calls, long bytes, long nanos) {
+            this.calls = calls;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            long millis = nanos / 1_000_000;
+            return calls + " calls, " + bytes / 1024 + " KiB in " + millis + " ms"
+                    + (millis > 0 ? " (" + bytes / 1024 * 1000 / 1024 / millis + " MiB/s)" : "");
+        }
+    }
+
+    /**
+     * Copies {@code in} to {@code out} until EOF. Neither stream is closed.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(String site, InputStream in, OutputStream out) throws IOException {
+        return copy(site, in, out, null);
+    }
+
+    /**
+     * Copies {@code in} to {@code out} until EOF, feeding the bytes into {@code digest} on the way
+     * if it is not null. Neither stream is closed.
+     */
+    public static long copy(String site, InputStream in, OutputStream out, MessageDigest digest) throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        byte[] buffer = acquireArray();
+        try {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+                if (digest != null) {
+                    digest.update(buffer, 0, bytesRead);
+                }
+                total += bytesRead;
+            }
+        } finally {
+            releaseArray(buffer);
+            record(site, total, start);
+        }
+        return total;
+    }
+
+    /**
+     * Copies a file, letting the kernel move the data where it can.
+     */
+    public static long copyFile(String site, File source, File destination) throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(destination).getChannel()) {
+            return transfer(site, in, out);
+        }
+    }
+
+    /**
+     * Moves everything from {@code in} to {@code out}. A file source goes through
+     * {@link FileChannel#transferTo}; anything else through a pooled direct buffer. Neither
+     * channel is closed.
+     */
+    public static long transfer(String site, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        try {
+            if (in instanceof FileChannel) {
+                FileChannel source = (FileChannel) in;
+                long size = source.size();
+                long position = source.position();
+                while (position < size) {
+                    long moved = source.transferTo(position, size - position, out);
+                    if (moved <= 0) {
+                        break; // target refuses bulk transfer, finish below through a buffer
+                    }
+                    position += moved;
+                    total += moved;
+                }
+                source.position(position);
+            }
+            ByteBuffer buffer = acquireDirect();
+            try {
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        total += out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                releaseDirect(buffer);
+            }
+        } finally {
+            record(site, total, start);
+        }
+        return total;
+    }
+
+    /**
+     * Reads {@code in} until EOF into an array; {@code sizeHint} (may be negative if unknown)
+     * presizes the result.
+     */
+    public static byte[] readFully(String site, InputStream in, long sizeHint) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                sizeHint > 0 && sizeHint < Integer.MAX_VALUE - 8 ? (int) sizeHint : 8192);
+        copy(site, in, bos);
+        return bos.toByteArray();
+    }
+
+    /** Runs a file through {@code checksum} and returns its value. */
+    public static long checksum(String site, File file, Checksum checksum) throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        byte[] buffer = acquireArray();
+        try (InputStream in = new FileInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                checksum.update(buffer, 0, bytesRead);
+                total += bytesRead;
+            }
+        } finally {
+            releaseArray(buffer);
+            record(site, total, start);
+        }
+        return checksum.getValue();
+    }
+
+    /** Runs a file through {@code digest} and returns the digest. */
+    public static byte[] digest(String site, File file, MessageDigest digest) throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        byte[] buffer = acquireArray();
+        try (InputStream in = new FileInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                total += bytesRead;
+            }
+        } finally {
+            releaseArray(buffer);
+            record(site, total, start);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Borrows a {@link #BUFFER_SIZE} array for a loop that does not fit the helpers above. Give it
+     * back with {@link #releaseArray} and account for it with {@link #record}.
+     */
+    public static byte[] acquireArray() {
+        synchronized (arrayPool) {
+            byte[] buffer = arrayPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    public static void releaseArray(byte[] buffer) {
+        if (buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (arrayPool) {
+            if (arrayPool.size() < MAX_POOLED_ARRAYS) {
+                arrayPool.push(buffer);
+            }
+        }
+    }
+
+    private static ByteBuffer acquireDirect() {
+        synchronized (directPool) {
+            ByteBuffer buffer = directPool.poll();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void releaseDirect(ByteBuffer buffer) {
+        synchronized (directPool) {
+            if (directPool.size() < MAX_POOLED_DIRECT) {
+                directPool.push(buffer);
+            }
+        }
+    }
+
+    /** Books {@code bytes} moved since {@code startNanos} under {@code site}. */
+    public static void record(String site, long bytes, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        synchronized (statsBySite) {
+            SiteStats previous = statsBySite.get(site);
+            statsBySite.put(site, previous == null ? new SiteStats(1, bytes, elapsed)
+                    : new SiteStats(previous.calls + 1, previous.bytes + bytes, previous.nanos + elapsed));
+        }
+    }
+
+    /** Returns a snapshot of the totals per call site since start or the last {@link #resetStats()}. */
+    public static Map<String, SiteStats> stats() {
+        synchronized (statsBySite) {
+            return new LinkedHashMap<>(statsBySite);
+        }
+    }
+
+    public static void resetStats() {
+        synchronized (statsBySite) {
+            statsBySite.clear();
+        }
+    }
+
+    public static void logStats() {
+        for (Map.Entry<String, SiteStats> site : stats().entrySet()) {
+            Log.d(TAG, site.getKey() + ": " + site.getValue());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.modifier.app;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Carries progress events from worker threads to the UI without flooding the main looper.
+ *
+ * Workers publish into a fixed-size ring with a single atomic increment and never block; when the
+ * ring wraps, the oldest events are overwritten. The main thread drains the ring at most once per
+ * frame, keeps only the newest event per job and stage, and hands that merged set to the
+ * {@link Renderer}. The most recent event is always the last one written, so it is never lost.
+ *
+ * Must be created on the main thread.
+ */
+public class ProgressPipeline {
+    private static final int CAPACITY = 256; // power of two
+    private static final int MASK = CAPACITY - 1;
+
+    public interface Renderer {
+        /** Called on the main thread with the newest event per job and stage, oldest first. */
+        void render(List<Event> events);
+    }
+
+    public static class Event {
+        public final String jobId;
+        public final String stage;
+        public final String status;
+        final long sequence;
+
+        Event(String jobId, String stage, String status, long sequence) {
+            this.jobId = jobId;
+            this.stage = stage;
+            this.status = status;
+            this.sequence = sequence;
+        }
+    }
+
+    private final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong writeSequence = new AtomicLong();
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> onFrame();
+    private final Renderer renderer;
+
+    // Main thread only
+    private long readSequence;
+
+    public ProgressPipeline(Renderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * Listener for one stage of one job. Safe to call from any thread.
+     */
+    public ApkProcessor.ProgressListener listenerFor(String jobId, String stage) {
+        return status -> publish(jobId, stage, status);
+    }
+
+    public void publish(String jobId, String stage, String status) {
+        long sequence = writeSequence.getAndIncrement();
+        ring.set((int) (sequence & MASK), new Event(jobId, stage, status, sequence));
+        if (frameScheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+
+    /**
+     * Renders whatever is pending right away. Call on the main thread before replacing the status
+     * with a final result, so a late frame cannot paint an older progress message over it.
+     */
+    public void drainNow() {
+        choreographer.removeFrameCallback(frameCallback);
+        frameScheduled.set(false);
+        drain();
+    }
+
+    private void onFrame() {
+        frameScheduled.set(false);
+        drain();
+    }
+
+    private void drain() {
+        long end = writeSequence.get();
+        if (end - readSequence > CAPACITY) {
+            readSequence = end - CAPACITY; // overwritten, only the newest CAPACITY events are left
+        }
+
+        Map<String, Event> merged = new LinkedHashMap<>();
+        while (readSequence < end) {
+            Event event = ring.get((int) (readSequence & MASK));
+            if (event == null || event.sequence < readSequence) {
+                break; // claimed but not written yet, pick it up next frame
+            }
+            if (event.sequence == readSequence) {
+                String key = event.jobId + '\u0000' + event.stage;
+                merged.remove(key); // re-insert so the map stays in arrival order
+                merged.put(key, event);
+            }
+            readSequence++;
+        }
+        if (!merged.isEmpty()) {
+            renderer.render(new ArrayList<>(merged.values()));
+        }
+        if (readSequence < writeSequence.get() && frameScheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.modifier.app;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Picks how the Smali round trip runs for a given DEX so that peak heap stays under a budget
+ * derived from the app's memory class and the heap that is currently free.
+ *
+ * On devices with room to spare the whole DEX is disassembled and reassembled with one Baksmali
+ * job per core, as before. When that does not fit, fewer jobs are used, and if even a single job
+ * does not fit only the target class goes through Smali and is merged back into the original DEX.
+ */
+public class ResourceGovernor {
+    private static final String TAG = "ResourceGovernor";
+
+    private static final long MB = 1024L * 1024L;
+
+    // Heap cost per byte of input DEX. These are estimates, not measurements: each is the number of
+    // full copies of the DEX's data the stage keeps alive at its peak, rounded up (a smali AST and its
+    // DexBuilder items come to several copies per class). They err high; a plan that picks a smaller
+    // scope than needed costs time, one that runs out of heap fails the job.
+    private static final int WHOLE_DEX_ASSEMBLY_FACTOR = 12; // smali ASTs + DexBuilder for every class
+    private static final int SINGLE_CLASS_MERGE_FACTOR = 4;  // DexPool interning every original class
+    private static final int IN_MEMORY_OUTPUT_FACTOR = 2;    // MemoryDataStore growing by doubling
+    // Working set of one Baksmali job (one class being written at a time)
+    private static final long BAKSMALI_JOB_BYTES = 8 * MB;
+    // Share of the free heap we allow ourselves, the rest is headroom for GC and fragmentation
+    private static final double BUDGET_FRACTION = 0.75;
+
+    public enum RewriteScope {
+        /** Disassemble and reassemble every class of the DEX. */
+        WHOLE_DEX,
+        /** Round trip only the target class and merge it into the original DEX. */
+        SINGLE_CLASS
+    }
+
+    public enum Intermediates {
+        /** The rewritten DEX is built in memory and written out in one go. */
+        IN_MEMORY,
+        /** The rewritten DEX is streamed straight to its file. */
+        ON_DISK
+    }
+
+    public static class ExecutionPlan {
+        public final int parallelism;
+        public final RewriteScope rewriteScope;
+        public final Intermediates intermediates;
+        public final long heapBudgetBytes;
+        public final long estimatedPeakBytes;
+
+        ExecutionPlan(int parallelism, RewriteScope rewriteScope, Intermediates intermediates,
+                      long heapBudgetBytes, long estimatedPeakBytes) {
+            this.parallelism = parallelism;
+            this.rewriteScope = rewriteScope;
+            this.intermediates = intermediates;
+            this.heapBudgetBytes = heapBudgetBytes;
+            this.estimatedPeakBytes = estimatedPeakBytes;
+        }
+
+        @Override
+        public String toString() {
+            return rewriteScope + ", " + parallelism + " job(s), " + intermediates
+                    + ", est. peak " + (estimatedPeakBytes / MB) + "MB of " + (heapBudgetBytes / MB) + "MB budget";
+        }
+    }
+
+    private final long memoryClassBytes;
+
+    public ResourceGovernor(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        this.memoryClassBytes = activityManager != null ? activityManager.getMemoryClass() * MB : Long.MAX_VALUE;
+    }
+
+    /**
+     * Heap we may use right now: the smaller of the memory class and the VM limit, minus what is
+     * already in use, scaled down to leave headroom.
+     */
+    public long currentBudgetBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        long heapLimit = Math.min(runtime.maxMemory(), memoryClassBytes);
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (long) (Math.max(0, heapLimit - used) * BUDGET_FRACTION);
+    }
+
+    public ExecutionPlan planFor(long dexSizeBytes) {
+        return planFor(dexSizeBytes, currentBudgetBytes(), Runtime.getRuntime().availableProcessors());
+    }
+
+    static ExecutionPlan planFor(long dexSizeBytes, long budget, int cores) {
+        ExecutionPlan plan;
+        // The loaded DEX itself is held for the whole round trip in either scope
+        long wholeDexBase = dexSizeBytes + dexSizeBytes * WHOLE_DEX_ASSEMBLY_FACTOR;
+        if (wholeDexBase + BAKSMALI_JOB_BYTES <= budget) {
+            int jobs = (int) Math.max(1, Math.min(cores, (budget - wholeDexBase) / BAKSMALI_JOB_BYTES));
+            plan = new ExecutionPlan(jobs, RewriteScope.WHOLE_DEX, Intermediates.ON_DISK, budget,
+                    wholeDexBase + jobs * BAKSMALI_JOB_BYTES);
+        } else {
+            long singleClassBase = dexSizeBytes + dexSizeBytes * SINGLE_CLASS_MERGE_FACTOR + BAKSMALI_JOB_BYTES;
+            long inMemoryPeak = singleClassBase + dexSizeBytes * IN_MEMORY_OUTPUT_FACTOR;
+            if (inMemoryPeak <= budget) {
+                plan = new ExecutionPlan(1, RewriteScope.SINGLE_CLASS, Intermediates.IN_MEMORY, budget, inMemoryPeak);
+            } else {
+                // Leanest option we have; may still exceed the estimate on tiny heaps
+                plan = new ExecutionPlan(1, RewriteScope.SINGLE_CLASS, Intermediates.ON_DISK, budget, singleClassBase);
+            }
+        }
+        Log.i(TAG, "Plan for " + (dexSizeBytes / 1024) + "KB DEX: " + plan);
+        return plan;
+    }
+}
@@ -0,0 +1,215 @@
+package com.modifier.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Minimal lookup into an APK's compiled resources.arsc, enough to turn the manifest's icon and
+ * label resource ids into a file entry and a default string.
+ *
+ * Only simple (non-bag) entries are resolved; strings are decoded on demand from the global
+ * pool instead of all at once.
+ */
+public class ResourceTable {
+    public static final String ENTRY_NAME = "resources.arsc";
+
+    // Chunk types
+    private static final int CHUNK_STRING_POOL = 0x0001;
+    private static final int CHUNK_TABLE = 0x0002;
+    private static final int CHUNK_PACKAGE = 0x0200;
+    private static final int CHUNK_TYPE = 0x0201;
+
+    // ResTable_type flags
+    private static final int TYPE_FLAG_SPARSE = 0x01;
+    // ResTable_entry flags
+    private static final int ENTRY_FLAG_COMPLEX = 0x0001;
+    private static final int ENTRY_FLAG_COMPACT = 0x0008;
+    private static final int NO_ENTRY = 0xFFFFFFFF;
+    private static final long NO_VALUE = -1;
+
+    // Typed value data types
+    private static final int TYPE_REFERENCE = 0x01;
+    private static final int TYPE_STRING = 0x03;
+
+    // ResTable_config.density special values
+    private static final int DENSITY_ANY = 0xFFFE;
+    private static final int DENSITY_NONE = 0xFFFF;
+
+    private static final int MAX_REFERENCE_DEPTH = 4;
+
+    private final ByteBuffer buf;
+    private final int globalPoolOffset;
+    private final int tableSize;
+
+    private ResourceTable(ByteBuffer buf, int globalPoolOffset, int tableSize) {
+        this.buf = buf;
+        this.globalPoolOffset = globalPoolOffset;
+        this.tableSize = tableSize;
+    }
+
+    /**
+     * Reads the resource table entry of an open APK, or returns null if it has none.
+     */
+    public static ResourceTable read(ZipFile zipFile) throws IOException {
+        ZipEntry entry = zipFile.getEntry(ENTRY_NAME);
+        if (entry == null) {
+            return null;
+        }
+        try (InputStream is = zipFile.getInputStream(entry)) {
+            return parse(PooledIo.readFully("read entry", is, entry.getSize()));
+        }
+    }
+
+    public static ResourceTable parse(byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < 12 || (buf.getShort(0) & 0xFFFF) != CHUNK_TABLE) {
+            throw new IOException("Not a resource table");
+        }
+        int headerSize = buf.getShort(2) & 0xFFFF;
+        int size = Math.min(buf.getInt(4), data.length);
+        if (headerSize + 8 > size || (buf.getShort(headerSize) & 0xFFFF) != CHUNK_STRING_POOL) {
+            throw new IOException("Resource table has no global string pool");
+        }
+        return new ResourceTable(buf, headerSize, size);
+    }
+
+    /**
+     * Resolves {@code resId} to the path of a bitmap file entry (png, webp, jpg), picking the
+     * highest density available. Adaptive icons (XML) are skipped. Returns null if no bitmap exists.
+     */
+    public String resolveBitmapPath(int resId) {
+        return resolve(resId, true, 0);
+    }
+
+    /**
+     * Resolves {@code resId} to a string value, preferring the default configuration.
+     */
+    public String resolveString(int resId) {
+        return resolve(resId, false, 0);
+    }
+
+    private String resolve(int resId, boolean bitmap, int depth) {
+        int packageId = resId >>> 24;
+        int typeId = (resId >>> 16) & 0xFF;
+        int entryIndex = resId & 0xFFFF;
+
+        String best = null;
+        int bestScore = Integer.MIN_VALUE;
+        int offset = buf.getShort(2) & 0xFFFF;
+        while (offset + 8 <= tableSize) {
+            int type = buf.getShort(offset) & 0xFFFF;
+            int size = buf.getInt(offset + 4);
+            if (size < 8) {
+                break;
+            }
+            if (type == CHUNK_PACKAGE && buf.getInt(offset + 8) == packageId) {
+                int packageHeaderSize = buf.getShort(offset + 2) & 0xFFFF;
+                int packageEnd = Math.min(offset + size, tableSize);
+                int chunk = offset + packageHeaderSize;
+                while (chunk + 8 <= packageEnd) {
+                    int chunkType = buf.getShort(chunk) & 0xFFFF;
+                    int chunkSize = buf.getInt(chunk + 4);
+                    if (chunkSize < 8) {
+                        break;
+                    }
+                    if (chunkType == CHUNK_TYPE && (buf.get(chunk + 8) & 0xFF) == typeId) {
+                        long value = readValue(chunk, entryIndex);
+                        if (value != NO_VALUE) {
+                            String candidate = valueToString(value, bitmap, depth);
+                            int score = score(chunk, candidate, bitmap);
+                            if (candidate != null && score > bestScore) {
+                                best = candidate;
+                                bestScore = score;
+                            }
+                        }
+                    }
+                    chunk += chunkSize;
+                }
+            }
+            offset += size;
+        }
+        return best;
+    }
+
+    /**
+     * Reads the value of a simple entry as {@code dataType << 32 | data}, or returns
+     * {@link #NO_VALUE} if the type chunk has no such entry or it is a bag.
+     */
+    private long readValue(int typeChunk, int entryIndex) {
+        int headerSize = buf.getShort(typeChunk + 2) & 0xFFFF;
+        int flags = buf.get(typeChunk + 9) & 0xFF;
+        int entryCount = buf.getInt(typeChunk + 12);
+        int entriesStart = buf.getInt(typeChunk + 16);
+
+        int entryOffset = NO_ENTRY;
+        if ((flags & TYPE_FLAG_SPARSE) != 0) {
+            for (int i = 0; i < entryCount; i++) {
+                int pair = buf.getInt(typeChunk + headerSize + i * 4);
+                if ((pair & 0xFFFF) == entryIndex) {
+                    entryOffset = (pair >>> 16) * 4;
+                    break;
+                }
+            }
+        } else if (entryIndex < entryCount) {
+            entryOffset = buf.getInt(typeChunk + headerSize + entryIndex * 4);
+        }
+        if (entryOffset == NO_ENTRY) {
+            return NO_VALUE;
+        }
+
+        int entry = typeChunk + entriesStart + entryOffset;
+        int entryFlags = buf.getShort(entry + 2) & 0xFFFF;
+        int dataType;
+        int data;
+        if ((entryFlags & ENTRY_FLAG_COMPACT) != 0) {
+            // key(2) flags(2) data(4), the data type lives in the high byte of flags
+            dataType = entryFlags >>> 8;
+            data = buf.getInt(entry + 4);
+        } else if ((entryFlags & ENTRY_FLAG_COMPLEX) != 0) {
+            return NO_VALUE;
+        } else {
+            // Res_value right after the entry header: size(2) res0(1) dataType(1) data(4)
+            int value = entry + (buf.getShort(entry) & 0xFFFF);
+            dataType = buf.get(value + 3) & 0xFF;
+            data = buf.getInt(value + 4);
+        }
+        return ((long) dataType << 32) | (data & 0xFFFFFFFFL);
+    }
+
+    private String valueToString(long value, boolean bitmap, int depth) {
+        int dataType = (int) (value >>> 32);
+        int data = (int) value;
+        if (dataType == TYPE_STRING) {
+            return BinaryManifest.readPoolString(buf, globalPoolOffset, data);
+        }
+        if (dataType == TYPE_REFERENCE && data != 0 && depth < MAX_REFERENCE_DEPTH) {
+            return resolve(data, bitmap, depth + 1);
+        }
+        return null;
+    }
+
+    private int score(int typeChunk, String candidate, boolean bitmap) {
+        if (candidate == null) {
+            return Integer.MIN_VALUE;
+        }
+        int config = typeChunk + 20;
+        if (!bitmap) {
+            // Default language first, everything else after
+            return buf.getShort(config + 8) == 0 ? 1 : 0;
+        }
+        String lower = candidate.toLowerCase(Locale.ROOT);
+        if (!(lower.endsWith(".png") || lower.endsWith(".webp") || lower.endsWith(".jpg"))) {
+            return Integer.MIN_VALUE;
+        }
+        int density = buf.getShort(config + 14) & 0xFFFF;
+        if (density == DENSITY_ANY || density == DENSITY_NONE) {
+            return 0;
+        }
+        return density == 0 ? 160 : density;
+    }
+}
@@ -0,0 +1,78 @@
+package com.modifier.app;
+
+import android.content.Context;
+
+import com.android.apksig.ApkSigner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Signing keys the app can sign with. For now that is the debug key bundled in the assets.
+ */
+public final class SigningKeys {
+    /** Id of the bundled debug key, as used by {@link PatchDaemon} requests. */
+    public static final String DEBUG_SIGNER_ID = "debug";
+
+    private static final String KEYSTORE_ASSET_NAME = "debug.keystore";
+    private static final String KEYSTORE_PASSWORD = "android";
+    private static final String KEY_ALIAS = "androiddebugkey";
+    private static final String KEY_PASSWORD = "android";
+
+    private SigningKeys() {
+    }
+
+    /**
+     * Loads the signer for {@code signerId}.
+     *
+     * @throws IOException              if the keystore asset cannot be read
+     * @throws GeneralSecurityException if the id is unknown or the key or certificate is missing
+     */
+    public static List<ApkSigner.SignerConfig> load(Context context, String signerId)
+            throws IOException, GeneralSecurityException {
+        if (!DEBUG_SIGNER_ID.equals(signerId)) {
+            throw new GeneralSecurityException("Unknown signer \"" + signerId + "\", known: " + DEBUG_SIGNER_ID);
+        }
+        return loadDebugSigner(context);
+    }
+
+    /**
+     * Loads the debug key from the {@code debug.keystore} asset.
+     *
+     * @throws IOException              if the asset is missing or unreadable
+     * @throws GeneralSecurityException if the alias has no key or certificate
+     */
+    public static List<ApkSigner.SignerConfig> loadDebugSigner(Context context)
+            throws IOException, GeneralSecurityException {
+        try (InputStream keystoreInputStream = context.getAssets().open(KEYSTORE_ASSET_NAME)) {
+            return loadDebugSigner(keystoreInputStream);
+        }
+    }
+
+    /**
+     * Loads the debug key from the {@code debug.keystore} contents in {@code keystoreInputStream}.
+     */
+    static List<ApkSigner.SignerConfig> loadDebugSigner(InputStream keystoreInputStream)
+            throws IOException, GeneralSecurityException {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+        keystore.load(keystoreInputStream, KEYSTORE_PASSWORD.toCharArray());
+
+        PrivateKey privateKey = (PrivateKey) keystore.getKey(KEY_ALIAS, KEY_PASSWORD.toCharArray());
+        if (privateKey == null) {
+            throw new UnrecoverableKeyException("Private key not found in keystore with alias: " + KEY_ALIAS);
+        }
+        X509Certificate cert = (X509Certificate) keystore.getCertificate(KEY_ALIAS);
+        if (cert == null) {
+            throw new GeneralSecurityException("Certificate not found in keystore for alias: " + KEY_ALIAS);
+        }
+        return Collections.singletonList(
+                new ApkSigner.SignerConfig.Builder("CERT", privateKey, Collections.singletonList(cert)).build());
+    }
+}
@@ -0,0 +1,333 @@
+package com.modifier.app;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.RecognitionException;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.CommonTreeNodeStream;
+import org.jf.baksmali.Adaptors.ClassDefinition;
+import org.jf.baksmali.BaksmaliOptions;
+import org.jf.baksmali.formatter.BaksmaliWriter;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.smali.SmaliOptions;
+import org.jf.smali.smaliFlexLexer;
+import org.jf.smali.smaliParser;
+import org.jf.smali.smaliTreeWalker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Smali sources of a whole DEX held in memory instead of a {@code smali_output} directory with a
+ * file per class, for the whole-DEX round trip.
+ *
+ * Each class's text is kept deflated (smali compresses about 8:1) under its type descriptor. Once
+ * the compressed texts in memory reach the limit given at construction, further classes are
+ * appended to a single spill file, so even a tree that does not fit costs one file, not thousands.
+ *
+ * {@link #disassemble} fills the tree straight from Baksmali's class writer and {@link #assemble}
+ * feeds the texts to Smali's lexer, parser and tree walker from memory, mirroring what
+ * {@code Baksmali.disassembleDexFile} and {@code Smali.assemble} do with files.
+ */
+public class SmaliSourceTree implements Closeable {
+    private static final String TAG = "SmaliSourceTree";
+
+    private final File spillFile;
+    private final long memoryLimitBytes;
+    // Guarded by this
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private long memoryBytes;
+    private RandomAccessFile spill;
+
+    private static class Entry {
+        /** Deflated text, or null if the text lives in the spill file. */
+        final byte[] compressed;
+        final long spillOffset;
+        final int compressedLength;
+        final int textLength;
+
+        Entry(byte[] compressed, long spillOffset, int compressedLength, int textLength) {
+            this.compressed = compressed;
+            this.spillOffset = spillOffset;
+            this.compressedLength = compressedLength;
+            this.textLength = textLength;
+        }
+    }
+
+    /**
+     * @param spillFile        where classes go once the memory limit is reached; created on demand
+     *                         and deleted by {@link #close()}
+     * @param memoryLimitBytes compressed bytes kept in memory at most
+     */
+    public SmaliSourceTree(File spillFile, long memoryLimitBytes) {
+        this.spillFile = spillFile;
+        this.memoryLimitBytes = memoryLimitBytes;
+    }
+
+    /**
+     * Disassembles every class of {@code dexFile} into {@code tree} on {@code jobs} threads. A
+     * class that appears twice keeps its first definition, as Baksmali does.
+     */
+    public static void disassemble(DexFile dexFile, BaksmaliOptions options, int jobs, SmaliSourceTree tree)
+            throws IOException {
+        List<ClassDef> classes = new ArrayList<>(dexFile.getClasses());
+        runParallel(jobs, classes, classDef -> {
+            StringWriter text = new StringWriter();
+            try (BaksmaliWriter writer = new BaksmaliWriter(text,
+                    options.implicitReferences ? classDef.getType() : null)) {
+                new ClassDefinition(options, classDef).writeTo(writer);
+            }
+            if (!tree.putIfAbsent(classDef.getType(), text.toString())) {
+                Log.w(TAG, "Ignoring duplicate class " + classDef.getType());
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Assembles every class of the tree into {@code outputDexFile} on {@code jobs} threads.
+     *
+     * @return false if any class had syntax errors; nothing is written then
+     */
+    public boolean assemble(File outputDexFile, int jobs) throws IOException {
+        SmaliOptions options = new SmaliOptions();
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(options.apiLevel));
+        boolean ok = runParallel(jobs, new ArrayList<>(classTypes()), classType -> {
+            try {
+                return assembleClass(classType, get(classType), options, dexBuilder);
+            } catch (RecognitionException e) {
+                Log.e(TAG, "Failed to assemble " + classType, e);
+                return false;
+            }
+        });
+        if (ok) {
+            dexBuilder.writeTo(new FileDataStore(outputDexFile));
+        }
+        return ok;
+    }
+
+    private static boolean assembleClass(String classType, String source, SmaliOptions options, DexBuilder dexBuilder)
+            throws RecognitionException {
+        smaliFlexLexer lexer = new smaliFlexLexer(new StringReader(source), options.apiLevel);
+        lexer.setSourceFile(new File(classType.substring(1, classType.length() - 1) + ".smali"));
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+
+        smaliParser parser = new smaliParser(tokens);
+        parser.setVerboseErrors(options.verboseErrors);
+        parser.setAllowOdex(options.allowOdexOpcodes);
+        parser.setApiLevel(options.apiLevel);
+        smaliParser.smali_file_return result = parser.smali_file();
+        if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
+            Log.e(TAG, "Syntax errors in " + classType);
+            return false;
+        }
+
+        CommonTree tree = result.getTree();
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(tree);
+        treeStream.setTokenStream(tokens);
+        smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
+        dexGen.setApiLevel(options.apiLevel);
+        dexGen.setVerboseErrors(options.verboseErrors);
+        dexGen.setDexBuilder(dexBuilder);
+        dexGen.smali_file();
+        return dexGen.getNumberOfSyntaxErrors() == 0;
+    }
+
+    private interface ClassTask<T> {
+        boolean run(T item) throws IOException;
+    }
+
+    /**
+     * Runs {@code task} over {@code items} on {@code jobs} threads; true if every run returned true.
+     * The caller holds the CPU permits for them, so the threads run at background priority like
+     * {@link ComputeScheduler}'s workers.
+     */
+    private static <T> boolean runParallel(int jobs, List<T> items, ClassTask<T> task) throws IOException {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, jobs), runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "smali-tree-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Boolean>> results = new ArrayList<>(items.size());
+            for (T item : items) {
+                results.add(executor.submit(() -> task.run(item)));
+            }
+            boolean ok = true;
+            for (Future<Boolean> result : results) {
+                ok &= result.get();
+            }
+            return ok;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public synchronized Set<String> classTypes() {
+        return new TreeSet<>(entries.keySet());
+    }
+
+    public synchronized boolean contains(String classType) {
+        return entries.containsKey(classType);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Returns the smali text of {@code classType}, or null if the tree does not have the class. */
+    public String get(String classType) throws IOException {
+        Entry entry;
+        byte[] compressed;
+        synchronized (this) {
+            entry = entries.get(classType);
+            if (entry == null) {
+                return null;
+            }
+            compressed = entry.compressed;
+            if (compressed == null) {
+                compressed = new byte[entry.compressedLength];
+                spill.seek(entry.spillOffset);
+                spill.readFully(compressed);
+            }
+        }
+        return inflate(compressed, entry.textLength);
+    }
+
+    /** Adds or replaces the text of {@code classType}, e.g. after a patch edited it. */
+    public void put(String classType, String smali) throws IOException {
+        store(classType, smali, true);
+    }
+
+    private boolean putIfAbsent(String classType, String smali) throws IOException {
+        return store(classType, smali, false);
+    }
+
+    private boolean store(String classType, String smali, boolean replace) throws IOException {
+        byte[] text = smali.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = deflate(text); // outside the lock, this is the expensive part
+        synchronized (this) {
+            Entry previous = entries.get(classType);
+            if (previous != null && !replace) {
+                return false;
+            }
+            if (previous != null && previous.compressed != null) {
+                memoryBytes -= previous.compressed.length;
+            }
+            Entry entry;
+            if (memoryBytes + compressed.length <= memoryLimitBytes) {
+                entry = new Entry(compressed, -1, compressed.length, text.length);
+                memoryBytes += compressed.length;
+            } else {
+                if (spill == null) {
+                    spill = new RandomAccessFile(spillFile, "rw");
+                    Log.i(TAG, "Memory limit of " + memoryLimitBytes / 1024 + " KiB reached after "
+                            + entries.size() + " classes, spilling to " + spillFile.getName());
+                }
+                long offset = spill.length();
+                spill.seek(offset);
+                spill.write(compressed);
+                entry = new Entry(null, offset, compressed.length, text.length);
+            }
+            entries.put(classType, entry);
+            return true;
+        }
+    }
+
+    /** Compressed bytes held in memory. */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /** Bytes written to the spill file, including texts that were replaced since. */
+    public synchronized long getSpilledBytes() throws IOException {
+        return spill != null ? spill.length() : 0;
+    }
+
+    private static byte[] deflate(byte[] text) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(text);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(text.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] compressed, int textLength) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] text = new byte[textLength];
+            int filled = 0;
+            while (filled < textLength) {
+                int n = inflater.inflate(text, filled, textLength - filled);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated smali entry");
+                }
+                filled += n;
+            }
+            return new String(text, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt smali entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        entries.clear();
+        memoryBytes = 0;
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            if (!spillFile.delete()) {
+                Log.w(TAG, "Failed to delete " + spillFile.getAbsolutePath());
+            }
+        }
+    }
+}
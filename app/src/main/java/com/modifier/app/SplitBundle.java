@@ -0,0 +1,146 @@
+package com.modifier.app;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A split APK bundle (.apks, .xapk): a zip holding base.apk plus split APKs, and for XAPK a
+ * manifest.json, icon and OBB files next to them.
+ */
+public class SplitBundle {
+    private static final String TAG = "SplitBundle";
+
+    private final File bundleFile;
+    private final List<String> splitEntries;
+
+    private SplitBundle(File bundleFile, List<String> splitEntries) {
+        this.bundleFile = bundleFile;
+        this.splitEntries = splitEntries;
+    }
+
+    /**
+     * A zip is treated as a bundle when it contains .apk entries but is not itself an APK
+     * (no top-level AndroidManifest.xml).
+     */
+    public static boolean isBundle(File file) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            if (zipFile.getEntry(BinaryManifest.ENTRY_NAME) != null) {
+                return false;
+            }
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                if (isSplitEntry(entries.nextElement())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static SplitBundle open(File bundleFile) throws IOException {
+        List<String> splitEntries = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(bundleFile)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (isSplitEntry(entry)) {
+                    splitEntries.add(entry.getName());
+                }
+            }
+        }
+        if (splitEntries.isEmpty()) {
+            throw new IOException("Bundle contains no split APKs: " + bundleFile.getName());
+        }
+        return new SplitBundle(bundleFile, splitEntries);
+    }
+
+    private static boolean isSplitEntry(ZipEntry entry) {
+        return !entry.isDirectory() && entry.getName().toLowerCase(Locale.ROOT).endsWith(".apk");
+    }
+
+    public List<String> getSplitEntries() {
+        return Collections.unmodifiableList(splitEntries);
+    }
+
+    /**
+     * Extracts every split APK into {@code destDir}. Files are named by bundle position plus the
+     * entry's file name, so {@code a/b.apk} and {@code a_b.apk} cannot land on the same file and no
+     * entry name can point outside {@code destDir}.
+     *
+     * @return Bundle entry name to extracted file, in bundle order.
+     */
+    public Map<String, File> extractSplits(File destDir) throws IOException {
+        Map<String, File> extracted = new LinkedHashMap<>();
+        try (ZipFile zipFile = new ZipFile(bundleFile)) {
+            for (int i = 0; i < splitEntries.size(); i++) {
+                String entryName = splitEntries.get(i);
+                File destination = new File(destDir, i + "_" + new File(entryName).getName());
+                try (InputStream is = zipFile.getInputStream(zipFile.getEntry(entryName));
+                     FileOutputStream fos = new FileOutputStream(destination)) {
+                    PooledIo.copy("extract splits", is, fos);
+                }
+                extracted.put(entryName, destination);
+            }
+        }
+        return extracted;
+    }
+
+    /**
+     * Writes a new bundle with the same layout as the input, taking split APKs from {@code splits}
+     * and copying every other entry (manifest.json, icons, OBBs) over from the input bundle.
+     * Split APKs are STORED since they are already compressed archives.
+     */
+    public void write(Map<String, File> splits, File outputFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(bundleFile);
+             ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(outputFile))) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File replacement = splits.get(entry.getName());
+                if (replacement != null) {
+                    ZipEntry newEntry = new ZipEntry(entry.getName());
+                    newEntry.setMethod(ZipEntry.STORED);
+                    newEntry.setSize(replacement.length());
+                    newEntry.setCompressedSize(replacement.length());
+                    newEntry.setCrc(PooledIo.checksum("repack bundle", replacement, new CRC32()));
+                    zos.putNextEntry(newEntry);
+                    try (InputStream is = new FileInputStream(replacement)) {
+                        PooledIo.copy("repack bundle", is, zos);
+                    }
+                } else {
+                    ZipEntry newEntry = new ZipEntry(entry.getName());
+                    if (entry.getMethod() == ZipEntry.STORED) {
+                        newEntry.setMethod(ZipEntry.STORED);
+                        newEntry.setSize(entry.getSize());
+                        newEntry.setCompressedSize(entry.getSize());
+                        newEntry.setCrc(entry.getCrc());
+                    }
+                    zos.putNextEntry(newEntry);
+                    if (!entry.isDirectory()) {
+                        try (InputStream is = zipFile.getInputStream(entry)) {
+                            PooledIo.copy("repack bundle", is, zos);
+                        }
+                    }
+                }
+                zos.closeEntry();
+            }
+        }
+        Log.d(TAG, "Wrote bundle " + outputFile.getName() + " (" + outputFile.length() + " bytes)");
+    }
+}
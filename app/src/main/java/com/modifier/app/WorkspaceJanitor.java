@@ -0,0 +1,170 @@
+package com.modifier.app;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Owns the processor's scratch workspaces ({@code apk_processing_*} in the temp dir) and gets
+ * deleting them off the critical path.
+ *
+ * A workspace that is no longer needed is renamed into a trash directory on the same volume, which
+ * is a single cheap rename no matter how many thousand smali files it holds, and then deleted on a
+ * serial queue at the lowest thread priority. The first use in a process also sweeps workspaces and
+ * trash left behind by a process that died before cleaning up.
+ *
+ * Deleting in the background must not let the disk fill up: while the trash holds
+ * {@link #MAX_PENDING} workspaces, or the volume has less than {@link #DISK_RESERVE_BYTES} free,
+ * workspaces are deleted inline like before.
+ */
+public class WorkspaceJanitor {
+    private static final String TAG = "WorkspaceJanitor";
+    public static final String WORKSPACE_PREFIX = "apk_processing_";
+    private static final String TRASH_DIR_NAME = "apk_trash";
+    static final int MAX_PENDING = 8;
+    static final long DISK_RESERVE_BYTES = 256L * 1024 * 1024;
+
+    private static WorkspaceJanitor instance;
+
+    private final File tempRoot;
+    private final File trashDir;
+    private final ComputeScheduler.SerialQueue queue;
+    // Guarded by this
+    private final Set<File> activeWorkspaces = new HashSet<>();
+    private int pendingDeletions;
+
+    public static synchronized WorkspaceJanitor getInstance(Context context) {
+        if (instance == null) {
+            instance = new WorkspaceJanitor(new File(System.getProperty("java.io.tmpdir")),
+                    ComputeScheduler.getInstance(context));
+        }
+        return instance;
+    }
+
+    private WorkspaceJanitor(File tempRoot, ComputeScheduler scheduler) {
+        this.tempRoot = tempRoot;
+        this.trashDir = new File(tempRoot, TRASH_DIR_NAME);
+        this.queue = scheduler.newSerialQueue("workspace-janitor");
+        queue.execute(() -> runAtLowestPriority(this::sweepOrphans));
+    }
+
+    /**
+     * Creates a fresh workspace directory named {@code prefix}&lt;random&gt; in the temp dir. Prefixes
+     * should start with {@link #WORKSPACE_PREFIX} so a crashed run's leftovers get swept.
+     */
+    public synchronized File createWorkspace(String prefix) throws IOException {
+        // Created and registered under the lock, so the orphan sweep never sees it unregistered
+        File workspace = Files.createTempDirectory(tempRoot.toPath(), prefix).toFile();
+        activeWorkspaces.add(workspace);
+        return workspace;
+    }
+
+    /**
+     * Gets rid of {@code directory} (a workspace or anything below one) without waiting for the
+     * delete. Safe to call with null or a directory that does not exist.
+     */
+    public void discard(File directory) {
+        if (directory == null || !directory.exists()) {
+            return;
+        }
+        boolean inline;
+        synchronized (this) {
+            activeWorkspaces.remove(directory);
+            inline = pendingDeletions >= MAX_PENDING || tempRoot.getUsableSpace() < DISK_RESERVE_BYTES;
+            if (!inline) {
+                pendingDeletions++;
+            }
+        }
+        if (inline) {
+            Log.d(TAG, "Trash is full or disk is low, deleting " + directory.getName() + " inline");
+            deleteRecursively(directory);
+            return;
+        }
+
+        File target = directory;
+        File trashed = new File(trashDir, directory.getName() + "_" + SystemClock.elapsedRealtimeNanos());
+        if ((trashDir.isDirectory() || trashDir.mkdirs()) && directory.renameTo(trashed)) {
+            target = trashed;
+        } else {
+            Log.w(TAG, "Could not move " + directory.getName() + " to trash, deleting it in place");
+        }
+        File toDelete = target;
+        try {
+            queue.execute(() -> runAtLowestPriority(() -> deleteTrashed(toDelete)));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Janitor unavailable, deleting " + directory.getName() + " inline", e);
+            deleteTrashed(toDelete);
+        }
+    }
+
+    private void deleteTrashed(File directory) {
+        long start = SystemClock.elapsedRealtime();
+        int deleted = deleteRecursively(directory);
+        synchronized (this) {
+            pendingDeletions--;
+        }
+        Log.d(TAG, "Deleted " + deleted + " files of " + directory.getName() + " in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Removes trash left behind by an earlier process and every workspace this process does not own,
+     * oldest first.
+     */
+    private void sweepOrphans() {
+        int deleted = deleteRecursively(trashDir);
+        File[] leftovers = tempRoot.listFiles((dir, name) -> name.startsWith(WORKSPACE_PREFIX));
+        if (leftovers != null) {
+            Arrays.sort(leftovers, Comparator.comparingLong(File::lastModified));
+            for (File leftover : leftovers) {
+                synchronized (this) {
+                    if (activeWorkspaces.contains(leftover)) {
+                        continue;
+                    }
+                }
+                Log.i(TAG, "Removing orphaned workspace " + leftover.getName());
+                deleted += deleteRecursively(leftover);
+            }
+        }
+        if (deleted > 0) {
+            Log.i(TAG, "Orphan sweep removed " + deleted + " files");
+        }
+    }
+
+    private static void runAtLowestPriority(Runnable task) {
+        int tid = Process.myTid();
+        int previous = Process.getThreadPriority(tid);
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        try {
+            task.run();
+        } finally {
+            Process.setThreadPriority(previous);
+        }
+    }
+
+    /** Deletes a file or directory tree and returns the number of entries removed. */
+    static int deleteRecursively(File file) {
+        int deleted = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleted += deleteRecursively(child);
+            }
+        }
+        if (file.delete()) {
+            deleted++;
+        } else if (file.exists()) {
+            Log.w(TAG, "Failed to delete " + file.getAbsolutePath());
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,254 @@
+package com.modifier.app.filepicker;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.modifier.app.ComputeScheduler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * On-disk index of every APK (and split bundle) on storage, so the picker can search without
+ * walking directories.
+ *
+ * The first refresh walks the whole tree. Later refreshes only re-list directories whose mtime
+ * changed (an entry was added, removed or renamed in them); for unchanged directories the
+ * already known APKs are just re-stat'ed to pick up files overwritten in place.
+ */
+public class ApkIndex {
+    private static final String TAG = "ApkIndex";
+    private static final String DATABASE_NAME = "apk_index.db";
+    // 2: name_lower is lowercased with Locale.ROOT instead of the device locale
+    private static final int DATABASE_VERSION = 2;
+
+    private static ApkIndex instance;
+
+    private final Helper helper;
+    private final ComputeScheduler.SerialQueue indexQueue;
+    private final AtomicBoolean refreshRunning = new AtomicBoolean();
+
+    public static synchronized ApkIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new ApkIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ApkIndex(Context context) {
+        this.helper = new Helper(context);
+        this.indexQueue = ComputeScheduler.getInstance(context).newSerialQueue("apk-index");
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            setWriteAheadLoggingEnabled(true); // searches are not blocked by a running refresh
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE apks (path TEXT PRIMARY KEY, dir TEXT NOT NULL, name_lower TEXT NOT NULL, "
+                    + "size INTEGER NOT NULL, mtime INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX apks_dir ON apks(dir)");
+            db.execSQL("CREATE TABLE dirs (path TEXT PRIMARY KEY, parent TEXT, mtime INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX dirs_parent ON dirs(parent)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS apks");
+            db.execSQL("DROP TABLE IF EXISTS dirs");
+            onCreate(db);
+        }
+    }
+
+    /**
+     * Starts a background refresh below {@code root} unless one is already running.
+     */
+    public void refreshAsync(File root) {
+        if (!refreshRunning.compareAndSet(false, true)) {
+            return;
+        }
+        indexQueue.execute(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                int changedDirs = refresh(root);
+                Log.i(TAG, "Index refresh of " + root + " done in " + (System.currentTimeMillis() - start)
+                        + "ms, " + changedDirs + " directories re-listed");
+            } catch (Exception e) {
+                Log.e(TAG, "Index refresh failed", e);
+            } finally {
+                refreshRunning.set(false);
+            }
+        });
+    }
+
+    /**
+     * Brings the index for {@code root} up to date. Returns the number of directories that had to
+     * be re-listed.
+     */
+    public int refresh(File root) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        int changedDirs = 0;
+        List<File> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            File dir = pending.remove(pending.size() - 1);
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            long mtime = dir.lastModified();
+            if (mtime == storedDirMtime(db, dir)) {
+                restatKnownApks(db, dir);
+                pending.addAll(storedChildDirs(db, dir));
+            } else {
+                pending.addAll(relist(db, dir, mtime));
+                changedDirs++;
+            }
+        }
+        return changedDirs;
+    }
+
+    private long storedDirMtime(SQLiteDatabase db, File dir) {
+        try (Cursor cursor = db.rawQuery("SELECT mtime FROM dirs WHERE path = ?",
+                new String[]{dir.getAbsolutePath()})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    private List<File> storedChildDirs(SQLiteDatabase db, File dir) {
+        List<File> children = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("SELECT path FROM dirs WHERE parent = ?",
+                new String[]{dir.getAbsolutePath()})) {
+            while (cursor.moveToNext()) {
+                children.add(new File(cursor.getString(0)));
+            }
+        }
+        return children;
+    }
+
+    private void restatKnownApks(SQLiteDatabase db, File dir) {
+        List<String[]> known = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("SELECT path, size, mtime FROM apks WHERE dir = ?",
+                new String[]{dir.getAbsolutePath()})) {
+            while (cursor.moveToNext()) {
+                known.add(new String[]{cursor.getString(0), cursor.getString(1), cursor.getString(2)});
+            }
+        }
+        for (String[] row : known) {
+            File file = new File(row[0]);
+            if (file.length() != Long.parseLong(row[1]) || file.lastModified() != Long.parseLong(row[2])) {
+                db.insertWithOnConflict("apks", null, apkValues(file), SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        }
+    }
+
+    /**
+     * Re-lists a changed directory in one transaction and returns its visible subdirectories.
+     */
+    private List<File> relist(SQLiteDatabase db, File dir, long mtime) {
+        List<File> subdirs = new ArrayList<>();
+        File[] files = dir.listFiles();
+        String dirPath = dir.getAbsolutePath();
+        db.beginTransaction();
+        try {
+            Set<String> seenApks = new HashSet<>();
+            Set<String> seenDirs = new HashSet<>();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isHidden()) {
+                        continue;
+                    }
+                    if (file.isDirectory()) {
+                        subdirs.add(file);
+                        seenDirs.add(file.getAbsolutePath());
+                    } else if (FileItem.isApkFileName(file.getName())) {
+                        seenApks.add(file.getAbsolutePath());
+                        db.insertWithOnConflict("apks", null, apkValues(file), SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                }
+            }
+            removeVanished(db, dirPath, seenApks, seenDirs);
+
+            ContentValues dirValues = new ContentValues();
+            dirValues.put("path", dirPath);
+            File parent = dir.getParentFile();
+            dirValues.put("parent", parent != null ? parent.getAbsolutePath() : null);
+            dirValues.put("mtime", mtime);
+            db.insertWithOnConflict("dirs", null, dirValues, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return subdirs;
+    }
+
+    private void removeVanished(SQLiteDatabase db, String dirPath, Set<String> seenApks, Set<String> seenDirs) {
+        try (Cursor cursor = db.rawQuery("SELECT path FROM apks WHERE dir = ?", new String[]{dirPath})) {
+            List<String> gone = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                if (!seenApks.contains(cursor.getString(0))) {
+                    gone.add(cursor.getString(0));
+                }
+            }
+            for (String path : gone) {
+                db.delete("apks", "path = ?", new String[]{path});
+            }
+        }
+        try (Cursor cursor = db.rawQuery("SELECT path FROM dirs WHERE parent = ?", new String[]{dirPath})) {
+            List<String> gone = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                if (!seenDirs.contains(cursor.getString(0))) {
+                    gone.add(cursor.getString(0));
+                }
+            }
+            for (String path : gone) {
+                // Drop the whole subtree of a removed directory
+                String subtree = escapeLike(path) + "/%";
+                db.delete("apks", "dir = ? OR dir LIKE ? ESCAPE '\\'", new String[]{path, subtree});
+                db.delete("dirs", "path = ? OR path LIKE ? ESCAPE '\\'", new String[]{path, subtree});
+            }
+        }
+    }
+
+    private static ContentValues apkValues(File file) {
+        ContentValues values = new ContentValues();
+        values.put("path", file.getAbsolutePath());
+        File parent = file.getParentFile();
+        values.put("dir", parent != null ? parent.getAbsolutePath() : "");
+        values.put("name_lower", file.getName().toLowerCase(Locale.ROOT));
+        values.put("size", file.length());
+        values.put("mtime", file.lastModified());
+        return values;
+    }
+
+    /**
+     * Returns indexed APKs whose file name contains {@code query} (case-insensitive), newest first.
+     */
+    public List<File> search(String query, int limit) {
+        List<File> results = new ArrayList<>();
+        SQLiteDatabase db = helper.getReadableDatabase();
+        try (Cursor cursor = db.rawQuery("SELECT path FROM apks WHERE name_lower LIKE ? ESCAPE '\\' "
+                        + "ORDER BY mtime DESC LIMIT " + limit,
+                new String[]{"%" + escapeLike(query.toLowerCase(Locale.ROOT)) + "%"})) {
+            while (cursor.moveToNext()) {
+                results.add(new File(cursor.getString(0)));
+            }
+        }
+        return results;
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -0,0 +1,295 @@
+package com.modifier.app.filepicker;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.modifier.app.BinaryManifest;
+import com.modifier.app.ComputeScheduler;
+import com.modifier.app.PatchedDexCache;
+import com.modifier.app.PooledIo;
+import com.modifier.app.ResourceTable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads package name, version, label and icon of APKs for the picker rows in the background.
+ *
+ * Only the zip central directory, AndroidManifest.xml, resources.arsc (when the label or icon is
+ * a resource) and the single icon entry are read, never the DEX files or the rest of the APK.
+ * Results are kept in a memory LRU and in a small disk cache keyed by path and mtime, so
+ * reopening the picker shows them immediately.
+ */
+public class ApkPreviewLoader {
+    private static final String TAG = "ApkPreviewLoader";
+    private static final int DISK_CACHE_FORMAT = 1;
+    private static final int MAX_DISK_CACHE_FILES = 1000;
+    private static final int ICON_SIZE_DP = 48;
+
+    private static ApkPreviewLoader instance;
+
+    public static class ApkPreview {
+        public final String packageName;
+        public final String versionName;
+        public final long versionCode;
+        /** Application label, or null if it could not be resolved. */
+        public final String label;
+        /** Launcher icon scaled down for the list, or null. */
+        public final Bitmap icon;
+
+        ApkPreview(String packageName, String versionName, long versionCode, String label, Bitmap icon) {
+            this.packageName = packageName;
+            this.versionName = versionName;
+            this.versionCode = versionCode;
+            this.label = label;
+            this.icon = icon;
+        }
+    }
+
+    public interface Callback {
+        /** Called on the main thread unless the load was cancelled. */
+        void onPreviewLoaded(ApkPreview preview);
+    }
+
+    // Remembers APKs that could not be read, so rebinding a row does not retry them
+    private static final ApkPreview NO_PREVIEW = new ApkPreview(null, null, 0, null, null);
+
+    private final LruCache<String, ApkPreview> memoryCache;
+    private final File diskCacheDir;
+    private final ComputeScheduler scheduler;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private final int iconSizePx;
+
+    public static synchronized ApkPreviewLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ApkPreviewLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ApkPreviewLoader(Context context) {
+        int cacheBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 32);
+        this.memoryCache = new LruCache<String, ApkPreview>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, ApkPreview preview) {
+                return 256 + (preview.icon != null ? preview.icon.getByteCount() : 0);
+            }
+        };
+        this.diskCacheDir = new File(context.getCacheDir(), "apk_previews");
+        this.scheduler = ComputeScheduler.getInstance(context);
+        this.iconSizePx = Math.round(ICON_SIZE_DP * context.getResources().getDisplayMetrics().density);
+    }
+
+    private static String cacheKey(File file) {
+        return file.getAbsolutePath() + '@' + file.lastModified();
+    }
+
+    /**
+     * Memory cache lookup for binding without a load. Returns null on a miss, and also for APKs
+     * known to have no readable manifest (check {@link #isKnownUnreadable}).
+     */
+    public ApkPreview getCached(File file) {
+        ApkPreview preview = memoryCache.get(cacheKey(file));
+        return preview == NO_PREVIEW ? null : preview;
+    }
+
+    public boolean isKnownUnreadable(File file) {
+        return memoryCache.get(cacheKey(file)) == NO_PREVIEW;
+    }
+
+    /**
+     * Loads the preview in the background. Cancel the returned future when the row goes away;
+     * a cancelled load never calls back.
+     */
+    public Future<?> load(File file, Callback callback) {
+        String key = cacheKey(file);
+        return scheduler.submitCpu(() -> {
+            ApkPreview preview = loadBlocking(file, key);
+            if (!Thread.currentThread().isInterrupted() && preview != NO_PREVIEW) {
+                mainThreadHandler.post(() -> callback.onPreviewLoaded(preview));
+            }
+            return null;
+        });
+    }
+
+    private ApkPreview loadBlocking(File file, String key) {
+        ApkPreview preview = memoryCache.get(key);
+        if (preview != null) {
+            return preview;
+        }
+        File diskFile = diskCacheFile(file);
+        preview = readDiskCache(diskFile);
+        if (preview == null) {
+            try {
+                byte[] iconBytes = readFromApk(file, diskFile);
+                preview = readDiskCache(diskFile);
+                if (preview == null) {
+                    preview = NO_PREVIEW;
+                } else if (iconBytes == null) {
+                    Log.d(TAG, "No bitmap icon in " + file.getName());
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "No preview for " + file.getName() + ": " + e.getMessage());
+                preview = NO_PREVIEW;
+            }
+        }
+        memoryCache.put(key, preview);
+        return preview;
+    }
+
+    /**
+     * Pulls the metadata and icon out of the APK and writes them to the disk cache entry.
+     * Returns the raw icon bytes, or null if the APK has no bitmap icon.
+     */
+    private byte[] readFromApk(File file, File diskFile) throws IOException {
+        String packageName;
+        String versionName;
+        long versionCode;
+        String label;
+        byte[] iconBytes = null;
+        try (ZipFile zipFile = new ZipFile(file)) {
+            BinaryManifest manifest = BinaryManifest.read(zipFile);
+            packageName = manifest.packageName;
+            versionName = manifest.versionName;
+            versionCode = manifest.versionCode;
+            label = manifest.label;
+
+            if (manifest.labelResId != 0 || manifest.iconResId != 0) {
+                ResourceTable resources = ResourceTable.read(zipFile);
+                if (resources != null) {
+                    if (label == null && manifest.labelResId != 0) {
+                        label = resources.resolveString(manifest.labelResId);
+                    }
+                    String iconPath = manifest.iconResId != 0 ? resources.resolveBitmapPath(manifest.iconResId) : null;
+                    ZipEntry iconEntry = iconPath != null ? zipFile.getEntry(iconPath) : null;
+                    if (iconEntry != null) {
+                        iconBytes = readEntry(zipFile, iconEntry);
+                    }
+                }
+            }
+        }
+        writeDiskCache(diskFile, packageName, versionName, versionCode, label, iconBytes);
+        return iconBytes;
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+        try (InputStream is = zipFile.getInputStream(entry)) {
+            return PooledIo.readFully("read entry", is, entry.getSize());
+        }
+    }
+
+    private Bitmap decodeIcon(byte[] iconBytes) {
+        if (iconBytes == null || iconBytes.length == 0) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(iconBytes, 0, iconBytes.length, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= iconSizePx && options.outHeight / (sampleSize * 2) >= iconSizePx) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(iconBytes, 0, iconBytes.length, options);
+    }
+
+    private File diskCacheFile(File file) {
+        String pathHash;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            pathHash = PatchedDexCache.toHex(digest.digest(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            pathHash = Integer.toHexString(file.getAbsolutePath().hashCode());
+        }
+        return new File(diskCacheDir, pathHash + "_" + file.lastModified() + ".bin");
+    }
+
+    private ApkPreview readDiskCache(File diskFile) {
+        if (!diskFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(diskFile))) {
+            if (in.readInt() != DISK_CACHE_FORMAT) {
+                return null;
+            }
+            String packageName = in.readUTF();
+            String versionName = emptyToNull(in.readUTF());
+            long versionCode = in.readLong();
+            String label = emptyToNull(in.readUTF());
+            byte[] iconBytes = new byte[in.readInt()];
+            in.readFully(iconBytes);
+            return new ApkPreview(packageName, versionName, versionCode, label, decodeIcon(iconBytes));
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable preview cache file " + diskFile.getName(), e);
+            diskFile.delete();
+            return null;
+        }
+    }
+
+    private void writeDiskCache(File diskFile, String packageName, String versionName, long versionCode,
+                                String label, byte[] iconBytes) {
+        if (!diskCacheDir.isDirectory() && !diskCacheDir.mkdirs()) {
+            return;
+        }
+        // Entries for older mtimes of the same path are stale now
+        String prefix = diskFile.getName().substring(0, diskFile.getName().indexOf('_') + 1);
+        File[] existing = diskCacheDir.listFiles();
+        if (existing != null) {
+            for (File old : existing) {
+                if (old.getName().startsWith(prefix)) {
+                    old.delete();
+                }
+            }
+            if (existing.length > MAX_DISK_CACHE_FILES) {
+                trimDiskCache(existing);
+            }
+        }
+        File tmp = new File(diskCacheDir, diskFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(DISK_CACHE_FORMAT);
+            out.writeUTF(packageName);
+            out.writeUTF(versionName != null ? versionName : "");
+            out.writeLong(versionCode);
+            out.writeUTF(label != null ? label : "");
+            byte[] icon = iconBytes != null ? iconBytes : new byte[0];
+            out.writeInt(icon.length);
+            out.write(icon);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write preview cache for " + packageName, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(diskFile)) {
+            tmp.delete();
+        }
+    }
+
+    private void trimDiskCache(File[] files) {
+        Arrays.sort(files, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+        for (int i = 0; i < files.length - MAX_DISK_CACHE_FILES / 2; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,166 @@
+package com.modifier.app.filepicker;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of processed directory listings (filtered, sorted {@link FileItem}s) so going back,
+ * up or to a breadcrumb can render without listing the directory again.
+ *
+ * An entry is stale once the directory's mtime changes (entries added, removed or renamed) or its
+ * {@link FileObserver} saw a change to a file inside it (an APK overwritten in place). Stale
+ * entries are still returned for an instant first frame; callers revalidate them in the background.
+ *
+ * Thread-safe; listing itself runs on the caller's thread.
+ */
+public class DirectoryListingCache {
+    private static final String TAG = "DirectoryListingCache";
+    private static final int MAX_ENTRIES = 32;
+    private static final int WATCH_MASK = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static class Entry {
+        final List<FileItem> items;
+        final long mtime;
+        final FileObserver observer;
+        volatile boolean changed;
+
+        Entry(File directory, List<FileItem> items, long mtime) {
+            this.items = items;
+            this.mtime = mtime;
+            this.observer = new DirectoryObserver(directory.getAbsolutePath(), this);
+        }
+    }
+
+    // Marks its entry stale on the first change; the next listing replaces the entry anyway
+    private static class DirectoryObserver extends FileObserver {
+        private final Entry entry;
+
+        @SuppressWarnings("deprecation") // File-based constructor needs API 29
+        DirectoryObserver(String path, Entry entry) {
+            super(path, WATCH_MASK);
+            this.entry = entry;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            entry.changed = true;
+        }
+    }
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Returns the cached listing of {@code directory}, possibly stale, or null if it was never listed.
+     */
+    public synchronized List<FileItem> get(File directory) {
+        Entry entry = entries.get(directory.getAbsolutePath());
+        return entry != null ? entry.items : null;
+    }
+
+    /**
+     * Whether the cached listing still matches the directory. Costs one stat.
+     */
+    public boolean isFresh(File directory) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(directory.getAbsolutePath());
+        }
+        return entry != null && !entry.changed && directory.lastModified() == entry.mtime;
+    }
+
+    /**
+     * Lists {@code directory} and caches the result, replacing any older entry.
+     */
+    public List<FileItem> refresh(File directory) {
+        // mtime before listing: a change during listing leaves the entry stale rather than wrong
+        long mtime = directory.lastModified();
+        Entry entry = new Entry(directory, Collections.unmodifiableList(listDirectory(directory)), mtime);
+
+        synchronized (this) {
+            Entry old = entries.put(directory.getAbsolutePath(), entry);
+            // inotify hands out one watch per path, so stopping the old observer after the new one
+            // started would remove the new watch as well
+            if (old != null) {
+                old.observer.stopWatching();
+            }
+            entry.observer.startWatching();
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+                it.next().getValue().observer.stopWatching();
+                it.remove();
+            }
+        }
+        return entry.items;
+    }
+
+    /**
+     * Stops all observers and drops every entry.
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.observer.stopWatching();
+        }
+        entries.clear();
+    }
+
+    /**
+     * Directories and APK files of {@code directory}, hidden files skipped; directories first, then
+     * files, both alphabetically.
+     */
+    static List<FileItem> listDirectory(File directory) {
+        File[] files = directory.listFiles();
+        List<FileItem> fileItems = new ArrayList<>();
+        if (files == null) {
+            Log.w(TAG, "Cannot list " + directory);
+            return fileItems;
+        }
+        for (File file : files) {
+            // Skip hidden files
+            if (file.isHidden()) {
+                continue;
+            }
+            // FileItem stats once, so the sort below does not hit the file system per comparison
+            FileItem item = new FileItem(file);
+            if (item.isDirectory() || item.isApkFile()) {
+                fileItems.add(item);
+            }
+        }
+        Collections.sort(fileItems, (f1, f2) -> {
+            if (f1.isDirectory() && !f2.isDirectory()) {
+                return -1;
+            } else if (!f1.isDirectory() && f2.isDirectory()) {
+                return 1;
+            } else {
+                return f1.getName().compareToIgnoreCase(f2.getName());
+            }
+        });
+        return fileItems;
+    }
+
+    /**
+     * Whether two listings would render the same rows.
+     */
+    static boolean sameListing(List<FileItem> a, List<FileItem> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            FileItem x = a.get(i);
+            FileItem y = b.get(i);
+            if (!x.getPath().equals(y.getPath()) || x.getLastModified() != y.getLastModified()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -12,20 +12,25 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.modifier.app.R;
 
+import java.io.File;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
 
 public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder> {
 
     private List<FileItem> fileItems;
     private OnFileClickListener listener;
+    private final ApkPreviewLoader previewLoader;
 
     public interface OnFileClickListener {
         void onFileClick(FileItem fileItem);
     }
 
-    public FileAdapter(List<FileItem> fileItems, OnFileClickListener listener) {
+    public FileAdapter(List<FileItem> fileItems, OnFileClickListener listener, ApkPreviewLoader previewLoader) {
         this.fileItems = fileItems;
         this.listener = listener;
+        this.previewLoader = previewLoader;
     }
 
     @NonNull
@@ -38,6 +43,8 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
     @Override
     public void onBindViewHolder(@NonNull FileViewHolder holder, int position) {
         FileItem fileItem = fileItems.get(position);
+        cancelPreview(holder);
+        holder.previewTextView.setVisibility(View.GONE);
         holder.nameTextView.setText(fileItem.getName());
         holder.infoTextView.setText(fileItem.getLastModifiedString());
         
@@ -48,6 +55,7 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
             // Use Android logo for APK files if available, otherwise use file icon
             // You can replace ic_android with ic_file if you don't have an Android logo
             holder.iconImageView.setImageResource(R.drawable.ic_android);
+            bindPreview(holder, fileItem.getFile());
         } else {
             // Fallback for other file types (shouldn't happen with current filtering)
             holder.iconImageView.setImageResource(R.drawable.ic_file);
@@ -60,6 +68,60 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
         });
     }
 
+    @Override
+    public void onViewRecycled(@NonNull FileViewHolder holder) {
+        // The row scrolled off, its preview is not needed anymore
+        cancelPreview(holder);
+    }
+
+    /**
+     * Shows the cached preview right away, or loads it in the background. Split bundles have no
+     * single manifest to preview.
+     */
+    private void bindPreview(FileViewHolder holder, File file) {
+        if (previewLoader == null || !file.getName().toLowerCase(Locale.ROOT).endsWith(".apk")
+                || previewLoader.isKnownUnreadable(file)) {
+            return;
+        }
+        ApkPreviewLoader.ApkPreview cached = previewLoader.getCached(file);
+        if (cached != null) {
+            showPreview(holder, cached);
+            return;
+        }
+        holder.boundFile = file;
+        holder.previewLoad = previewLoader.load(file, preview -> {
+            if (file.equals(holder.boundFile)) {
+                holder.previewLoad = null;
+                showPreview(holder, preview);
+            }
+        });
+    }
+
+    private void showPreview(FileViewHolder holder, ApkPreviewLoader.ApkPreview preview) {
+        if (preview.icon != null) {
+            holder.iconImageView.setImageBitmap(preview.icon);
+        }
+        StringBuilder text = new StringBuilder();
+        if (preview.label != null) {
+            text.append(preview.label).append(" • ");
+        }
+        text.append(preview.packageName);
+        if (preview.versionName != null) {
+            text.append(' ').append(preview.versionName);
+        }
+        text.append(" (").append(preview.versionCode).append(')');
+        holder.previewTextView.setText(text);
+        holder.previewTextView.setVisibility(View.VISIBLE);
+    }
+
+    private void cancelPreview(FileViewHolder holder) {
+        if (holder.previewLoad != null) {
+            holder.previewLoad.cancel(true);
+            holder.previewLoad = null;
+        }
+        holder.boundFile = null;
+    }
+
     @Override
     public int getItemCount() {
         return fileItems.size();
@@ -74,19 +136,24 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
      * Check if a FileItem represents an APK file
      */
     private boolean isApkFile(FileItem fileItem) {
-        return !fileItem.isDirectory() && fileItem.getName().toLowerCase().endsWith(".apk");
+        return fileItem.isApkFile();
     }
 
     static class FileViewHolder extends RecyclerView.ViewHolder {
         ImageView iconImageView;
         TextView nameTextView;
         TextView infoTextView;
+        TextView previewTextView;
+        // Row currently waiting for a preview, and the file it was requested for
+        Future<?> previewLoad;
+        File boundFile;
 
         public FileViewHolder(@NonNull View itemView) {
             super(itemView);
             iconImageView = itemView.findViewById(R.id.icon_image_view);
             nameTextView = itemView.findViewById(R.id.name_text_view);
             infoTextView = itemView.findViewById(R.id.info_text_view);
+            previewTextView = itemView.findViewById(R.id.preview_text_view);
         }
     }
 }
@@ -31,6 +31,10 @@ public class FileItem {
         return isDirectory;
     }
 
+    public long getLastModified() {
+        return lastModified;
+    }
+
     public String getLastModifiedString() {
         SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy, hh:mm a", Locale.getDefault());
         return "Last edited: " + sdf.format(new Date(lastModified));
@@ -41,10 +45,19 @@ public class FileItem {
     }
 
     /**
-     * Check if this file item represents an APK file
+     * Check if this file item represents an APK file or a split APK bundle
      */
     public boolean isApkFile() {
-        return !isDirectory && name.toLowerCase().endsWith(".apk");
+        return !isDirectory && isApkFileName(name);
+    }
+
+    /**
+     * Check if a file name has an extension the processor accepts: a plain APK or a split
+     * bundle (.apks, .xapk)
+     */
+    public static boolean isApkFileName(String fileName) {
+        String lowerName = fileName.toLowerCase(Locale.ROOT);
+        return lowerName.endsWith(".apk") || lowerName.endsWith(".apks") || lowerName.endsWith(".xapk");
     }
 
     /**
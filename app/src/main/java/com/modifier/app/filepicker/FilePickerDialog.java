@@ -5,12 +5,15 @@ import android.app.Dialog;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Environment;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -21,14 +24,15 @@ import androidx.fragment.app.DialogFragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.modifier.app.ComputeScheduler;
 import com.modifier.app.R;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Stack;
+import java.util.concurrent.Future;
 
 public class FilePickerDialog extends DialogFragment implements FileAdapter.OnFileClickListener {
 
@@ -41,6 +45,19 @@ public class FilePickerDialog extends DialogFragment implements FileAdapter.OnFi
     private Button selectButton;
     private ImageButton backButton;
     private ImageButton upButton;
+    private EditText searchEditText;
+
+    // Search over the APK index; only the newest query's results are shown
+    private static final int MAX_SEARCH_RESULTS = 200;
+    private ApkIndex apkIndex;
+    private ComputeScheduler.SerialQueue searchQueue;
+    private Future<?> pendingSearch;
+    private String activeQuery = "";
+    
+    // Processed listings of visited directories, for instant back/up/breadcrumb navigation
+    private DirectoryListingCache listingCache;
+    private ComputeScheduler.SerialQueue listingQueue;
+    private Future<?> pendingRevalidation;
     
     // Navigation history for better back navigation
     private Stack<File> navigationHistory;
@@ -98,6 +115,7 @@ public class FilePickerDialog extends DialogFragment implements FileAdapter.OnFi
         selectButton = view.findViewById(R.id.select_button);
         backButton = view.findViewById(R.id.back_button);
         upButton = view.findViewById(R.id.up_button);
+        searchEditText = view.findViewById(R.id.search_edit_text);
 
         // Initialize navigation
         navigationHistory = new Stack<>();
@@ -105,18 +123,40 @@ public class FilePickerDialog extends DialogFragment implements FileAdapter.OnFi
 
         // Setup RecyclerView
         recyclerView.setLayoutManager(new LinearLayoutManager(requireContext()));
-        adapter = new FileAdapter(new ArrayList<>(), this);
+        adapter = new FileAdapter(new ArrayList<>(), this, ApkPreviewLoader.getInstance(requireContext()));
         recyclerView.setAdapter(adapter);
 
+        listingCache = new DirectoryListingCache();
+        listingQueue = ComputeScheduler.getInstance(requireContext()).newSerialQueue("directory-listing");
+
         // Initialize with the root directory
         currentDirectory = rootDirectory;
         navigateToDirectory(currentDirectory, false);
 
+        // Keep the APK index fresh in the background; searches answer from it immediately
+        apkIndex = ApkIndex.getInstance(requireContext());
+        apkIndex.refreshAsync(rootDirectory);
+        searchQueue = ComputeScheduler.getInstance(requireContext()).newSerialQueue("apk-search");
+        searchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                onSearchQueryChanged(s.toString().trim());
+            }
+        });
+
         // Setup button listeners
         cancelButton.setOnClickListener(v -> dismiss());
         
         selectButton.setOnClickListener(v -> {
-            if (selectedFile != null && !selectedFile.isDirectory() && selectedFile.getName().toLowerCase().endsWith(".apk")) {
+            if (selectedFile != null && isApkFile(selectedFile)) {
                 listener.onFileSelected(selectedFile);
                 dismiss();
             } else {
@@ -155,33 +195,9 @@ public class FilePickerDialog extends DialogFragment implements FileAdapter.OnFi
         currentDirectory = directory;
         pathTextView.setText(getDisplayPath(directory));
         
-        File[] files = directory.listFiles();
-        List<FileItem> fileItems = new ArrayList<>();
-        
-        if (files != null) {
-            // Sort: directories first, then files, both alphabetically
-            Arrays.sort(files, (f1, f2) -> {
-                if (f1.isDirectory() && !f2.isDirectory()) {
-                    return -1;
-                } else if (!f1.isDirectory() && f2.isDirectory()) {
-                    return 1;
-                } else {
-                    return f1.getName().compareToIgnoreCase(f2.getName());
-                }
-            });
-            
-            for (File file : files) {
-                // Skip hidden files
-                if (file.isHidden()) {
-                    continue;
-                }
-                
-                // Only show directories and APK files
-                if (file.isDirectory() || isApkFile(file)) {
-                    fileItems.add(new FileItem(file));
-                }
-            }
-        }
+        // Cached listings render right away and are revalidated in the background
+        List<FileItem> cachedItems = listingCache.get(directory);
+        List<FileItem> fileItems = cachedItems != null ? cachedItems : listingCache.refresh(directory);
         
         // Show message if no APK files or directories found
         if (fileItems.isEmpty()) {
@@ -194,13 +210,94 @@ public class FilePickerDialog extends DialogFragment implements FileAdapter.OnFi
         selectedFile = null;
         selectButton.setEnabled(false);
         updateNavigationButtons();
+
+        if (cachedItems != null) {
+            revalidateListing(directory, cachedItems);
+        }
+    }
+
+    /**
+     * Re-lists a directory shown from the cache if it changed since, and swaps in the new rows
+     * while it is still the one on screen.
+     */
+    private void revalidateListing(File directory, List<FileItem> shownItems) {
+        if (pendingRevalidation != null) {
+            pendingRevalidation.cancel(true);
+        }
+        pendingRevalidation = listingQueue.submit(() -> {
+            if (listingCache.isFresh(directory)) {
+                return null;
+            }
+            List<FileItem> items = listingCache.refresh(directory);
+            if (DirectoryListingCache.sameListing(shownItems, items)) {
+                return null;
+            }
+            recyclerView.post(() -> {
+                if (isAdded() && directory.equals(currentDirectory) && !isSearching()) {
+                    adapter.updateData(items);
+                    if (selectedFile != null && !containsFile(items, selectedFile)) {
+                        selectedFile = null;
+                        selectButton.setEnabled(false);
+                    }
+                }
+            });
+            return null;
+        });
+    }
+
+    private static boolean containsFile(List<FileItem> items, File file) {
+        for (FileItem item : items) {
+            if (item.getFile().equals(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a search against the APK index, or goes back to the directory listing for an empty query
+     */
+    private void onSearchQueryChanged(String query) {
+        if (pendingSearch != null) {
+            pendingSearch.cancel(true);
+            pendingSearch = null;
+        }
+        activeQuery = query;
+        if (query.isEmpty()) {
+            navigateToDirectory(currentDirectory, false);
+            return;
+        }
+        pendingSearch = searchQueue.submit(() -> {
+            List<File> matches = apkIndex.search(query, MAX_SEARCH_RESULTS);
+            List<FileItem> items = new ArrayList<>(matches.size());
+            for (File match : matches) {
+                items.add(new FileItem(match));
+            }
+            recyclerView.post(() -> {
+                if (isAdded() && query.equals(activeQuery)) {
+                    pathTextView.setText("🔍 " + items.size() + " APKs matching \"" + query + "\"");
+                    adapter.updateData(items);
+                    selectedFile = null;
+                    selectButton.setEnabled(false);
+                }
+            });
+            return null;
+        });
+    }
+
+    private boolean isSearching() {
+        return !activeQuery.isEmpty();
     }
 
     /**
      * Handle back navigation (history-based)
      */
     private boolean handleBackNavigation() {
-        if (!navigationHistory.isEmpty()) {
+        if (isSearching()) {
+            // Leave search mode first, back to the directory that was open
+            searchEditText.setText("");
+            return true;
+        } else if (!navigationHistory.isEmpty()) {
             File previousDirectory = navigationHistory.pop();
             navigateToDirectory(previousDirectory, false);
             return true; // Consumed the back press
@@ -311,10 +408,10 @@ public class FilePickerDialog extends DialogFragment implements FileAdapter.OnFi
     }
 
     /**
-     * Check if a file is an APK file based on its extension
+     * Check if a file is an APK file or split APK bundle based on its extension
      */
     private boolean isApkFile(File file) {
-        return !file.isDirectory() && file.getName().toLowerCase().endsWith(".apk");
+        return !file.isDirectory() && FileItem.isApkFileName(file.getName());
     }
 
     @Override
@@ -332,6 +429,20 @@ public class FilePickerDialog extends DialogFragment implements FileAdapter.OnFi
         }
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (searchQueue != null) {
+            searchQueue.shutdownNow();
+        }
+        if (listingQueue != null) {
+            listingQueue.shutdownNow();
+        }
+        if (listingCache != null) {
+            listingCache.clear();
+        }
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -0,0 +1,694 @@
+package com.modifier.app;
+
+import org.jf.baksmali.Adaptors.ClassDefinition;
+import org.jf.baksmali.Baksmali;
+import org.jf.baksmali.BaksmaliOptions;
+import org.jf.baksmali.formatter.BaksmaliWriter;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.smali.Smali;
+import org.jf.smali.SmaliOptions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Differential harness for DEX patch engines: generates randomized synthetic APKs, patches each one
+ * with the reference pipeline (whole-DEX baksmali, {@code replaceMethodInSmaliFile},
+ * {@code Smali.assemble}, as in {@code modifyMethodInDex}) and with every alternative engine, and
+ * compares the patched classes semantically through dexlib2. It also times each engine against the
+ * reference, so one run is both a correctness gate and a speed report.
+ *
+ * Generated inputs cover multi-dex APKs, very large classes, decoy classes with the same method
+ * signature, overloads of the target method, try blocks in the original body, and the replacement
+ * Smali written with unusual indentation and line endings.
+ *
+ * The seed and input count default to a fixed run; {@code -DpatchEquivalence.seed=<n>} and
+ * {@code -DpatchEquivalence.inputs=<n>} widen it.
+ */
+public class PatchEquivalenceTest {
+    private static final long DEFAULT_SEED = 1;
+    private static final int DEFAULT_INPUTS = 20;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void everyEngineMatchesTheReference() throws IOException {
+        long seed = Long.getLong("patchEquivalence.seed", DEFAULT_SEED);
+        int inputs = Integer.getInteger("patchEquivalence.inputs", DEFAULT_INPUTS);
+        Report report = run(temporaryFolder.newFolder("patch_equivalence"),
+                Arrays.asList(SINGLE_CLASS_ENGINE, SOURCE_TREE_ENGINE, SPILLING_SOURCE_TREE_ENGINE, IN_PLACE_ENGINE),
+                inputs, seed);
+
+        assertTrue(report.toString(), report.passed());
+        for (EngineStats stats : report.engineStats.values()) {
+            // An engine that declines everything would pass without testing anything
+            assertTrue(stats.engineName + " patched no input\n" + report, stats.equivalent > 0);
+        }
+    }
+
+    /**
+     * A way of applying a method replacement to one DEX file.
+     */
+    interface PatchEngine {
+        String getName();
+
+        /**
+         * Replaces the method in {@code dexFile}, rewriting the file. {@code workDir} is an empty
+         * scratch directory. Returns false if the class or method is not in this DEX, or if the
+         * engine does not handle this input (the caller would fall back to the reference path).
+         */
+        boolean patch(File dexFile, File workDir, String classPath, String methodSignature,
+                      String replacementSmali) throws IOException;
+    }
+
+    /** The reference: whole-DEX Smali round trip. */
+    static final PatchEngine REFERENCE_ENGINE = new PatchEngine() {
+        @Override
+        public String getName() {
+            return "reference";
+        }
+
+        @Override
+        public boolean patch(File dexFile, File workDir, String classPath, String methodSignature,
+                             String replacementSmali) throws IOException {
+            File smaliDir = new File(workDir, "smali_output");
+            DexBackedDexFile dex = DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault());
+            if (!Baksmali.disassembleDexFile(dex, smaliDir, 1, new BaksmaliOptions())) {
+                throw new IOException("Baksmali failed on " + dexFile.getName());
+            }
+            File classSmaliFile = new File(smaliDir, classPath + ".smali");
+            if (!classSmaliFile.exists()
+                    || !ApkProcessor.replaceMethodInSmaliFile(classSmaliFile, methodSignature, replacementSmali)) {
+                return false;
+            }
+            File modifiedDexFile = new File(workDir, "modified.dex");
+            ApkProcessor.reassembleSmaliToDex(smaliDir, modifiedDexFile, 1);
+            if (!modifiedDexFile.isFile()) {
+                throw new IOException("Smali produced no output for " + dexFile.getName());
+            }
+            Files.copy(modifiedDexFile.toPath(), dexFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+    };
+
+    /** Single-class disassembly merged back into the original DEX (ResourceGovernor's SINGLE_CLASS scope). */
+    static final PatchEngine SINGLE_CLASS_ENGINE = new PatchEngine() {
+        @Override
+        public String getName() {
+            return "single-class merge";
+        }
+
+        @Override
+        public boolean patch(File dexFile, File workDir, String classPath, String methodSignature,
+                             String replacementSmali) throws IOException {
+            File smaliDir = new File(workDir, "smali_output");
+            String classType = "L" + classPath + ";";
+            DexBackedDexFile dex = DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault());
+            if (!Baksmali.disassembleDexFile(dex, smaliDir, 1, new BaksmaliOptions(),
+                    Collections.singletonList(classType))) {
+                throw new IOException("Baksmali failed on " + dexFile.getName());
+            }
+            File classSmaliFile = new File(smaliDir, classPath + ".smali");
+            if (!classSmaliFile.exists()
+                    || !ApkProcessor.replaceMethodInSmaliFile(classSmaliFile, methodSignature, replacementSmali)) {
+                return false;
+            }
+            File modifiedDexFile = new File(workDir, "modified.dex");
+            ApkProcessor.mergeClassIntoDex(dex, classType, classSmaliFile, modifiedDexFile, true);
+            Files.copy(modifiedDexFile.toPath(), dexFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+    };
+
+    /** The shipped whole-DEX path: {@link SmaliSourceTree} with {@code replaceMethodInSmali}, as in {@code rewriteWholeDex}. */
+    static final PatchEngine SOURCE_TREE_ENGINE = sourceTreeEngine("source tree", 64L * 1024 * 1024, false);
+
+    /** {@link #SOURCE_TREE_ENGINE} with a memory limit so small that most classes go to the spill file. */
+    static final PatchEngine SPILLING_SOURCE_TREE_ENGINE = sourceTreeEngine("source tree, spilling", 2 * 1024, true);
+
+    private static PatchEngine sourceTreeEngine(String name, long memoryLimitBytes, boolean expectSpill) {
+        return new PatchEngine() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean patch(File dexFile, File workDir, String classPath, String methodSignature,
+                                 String replacementSmali) throws IOException {
+                String classType = "L" + classPath + ";";
+                DexBackedDexFile dex = DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault());
+                BaksmaliOptions options = new BaksmaliOptions();
+                options.deodex = false;
+                File modifiedDexFile = new File(workDir, "modified.dex");
+                try (SmaliSourceTree tree = new SmaliSourceTree(new File(workDir, "smali_spill.bin"), memoryLimitBytes)) {
+                    SmaliSourceTree.disassemble(dex, options, 2, tree);
+                    if (expectSpill && tree.getSpilledBytes() == 0) {
+                        throw new IOException("Nothing was spilled with a memory limit of " + memoryLimitBytes);
+                    }
+                    String classSmali = tree.get(classType);
+                    if (classSmali == null) {
+                        return false;
+                    }
+                    String patchedSmali = ApkProcessor.replaceMethodInSmali(classSmali, classType, methodSignature,
+                            replacementSmali);
+                    if (patchedSmali == null) {
+                        return false;
+                    }
+                    tree.put(classType, patchedSmali);
+                    if (!tree.assemble(modifiedDexFile, 2)) {
+                        throw new IOException("Smali reported syntax errors for " + dexFile.getName());
+                    }
+                }
+                Files.copy(modifiedDexFile.toPath(), dexFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            }
+        };
+    }
+
+    /** {@link DexInPlacePatcher}; only handles the built-in DefaultProvider replacement. */
+    static final PatchEngine IN_PLACE_ENGINE = new PatchEngine() {
+        @Override
+        public String getName() {
+            return "in-place";
+        }
+
+        @Override
+        public boolean patch(File dexFile, File workDir, String classPath, String methodSignature,
+                             String replacementSmali) throws IOException {
+            if (!methodSignature.equals(ApkProcessor.TARGET_METHOD_SIGNATURE)
+                    || !normalizeSmali(replacementSmali).equals(normalizeSmali(ApkProcessor.REPLACEMENT_METHOD_SMALI))) {
+                return false;
+            }
+            return DexInPlacePatcher.tryPatchInPlace(dexFile, classPath);
+        }
+    };
+
+    static class EngineStats {
+        final String engineName;
+        int inputs;
+        /** Inputs the engine patched with the same result as the reference. */
+        int equivalent;
+        /** Inputs the reference patched but the engine declined (a fallback would handle them). */
+        int declined;
+        int mismatches;
+        long engineNanos;
+        /** Reference time over the same inputs, for the ratio. */
+        long referenceNanos;
+
+        EngineStats(String engineName) {
+            this.engineName = engineName;
+        }
+
+        /** Engine time divided by reference time; below 1 means faster than the reference. */
+        double timeRatio() {
+            return referenceNanos > 0 ? (double) engineNanos / referenceNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d inputs, %d equivalent, %d declined, %d mismatches, "
+                            + "%.1fms vs reference %.1fms (%.2fx)", engineName, inputs, equivalent, declined, mismatches,
+                    engineNanos / 1e6, referenceNanos / 1e6, timeRatio());
+        }
+    }
+
+    static class Report {
+        final long seed;
+        final int inputs;
+        final Map<String, EngineStats> engineStats = new LinkedHashMap<>();
+        /** One line per mismatch: input, engine and the first difference found. */
+        final List<String> mismatches = new ArrayList<>();
+
+        Report(long seed, int inputs) {
+            this.seed = seed;
+            this.inputs = inputs;
+        }
+
+        boolean passed() {
+            return mismatches.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(passed() ? "PASS" : "FAIL").append(": ").append(inputs).append(" inputs, seed ").append(seed);
+            for (EngineStats stats : engineStats.values()) {
+                sb.append('\n').append("  ").append(stats);
+            }
+            for (String mismatch : mismatches) {
+                sb.append('\n').append("  MISMATCH ").append(mismatch);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Generates {@code inputCount} APKs from {@code seed} and runs every engine on each. Work files of
+     * inputs with a mismatch are kept below {@code workDir} for inspection; the rest are deleted.
+     */
+    private static Report run(File workDir, List<PatchEngine> engines, int inputCount, long seed)
+            throws IOException {
+        Report report = new Report(seed, inputCount);
+        for (PatchEngine engine : engines) {
+            report.engineStats.put(engine.getName(), new EngineStats(engine.getName()));
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < inputCount; i++) {
+            File inputDir = new File(workDir, "input_" + i);
+            deleteRecursively(inputDir);
+            if (!inputDir.mkdirs()) {
+                throw new IOException("Cannot create " + inputDir);
+            }
+            SyntheticInput input = generateInput(random, inputDir);
+            String label = "#" + i + " (" + input.description + ")";
+
+            EngineRun reference = runOnApk(REFERENCE_ENGINE, input, new File(inputDir, "reference"));
+            boolean mismatchInInput = false;
+            for (PatchEngine engine : engines) {
+                EngineStats stats = report.engineStats.get(engine.getName());
+                EngineRun candidate = runOnApk(engine, input,
+                        new File(inputDir, engine.getName().replaceAll("[^A-Za-z0-9]", "_")));
+                stats.inputs++;
+                stats.engineNanos += candidate.nanos;
+                stats.referenceNanos += reference.nanos;
+
+                String difference = compareRuns(reference, candidate);
+                if (difference == null) {
+                    stats.equivalent++;
+                } else if (difference.isEmpty()) {
+                    stats.declined++;
+                } else {
+                    stats.mismatches++;
+                    mismatchInInput = true;
+                    report.mismatches.add(label + " " + engine.getName() + ": " + difference);
+                }
+            }
+            if (!mismatchInInput) {
+                deleteRecursively(inputDir);
+            }
+        }
+        return report;
+    }
+
+    // --- Running engines ---
+
+    private static class EngineRun {
+        /** Entry name of the DEX the engine patched, or null if it patched none. */
+        String patchedEntry;
+        File patchedDex;
+        long nanos;
+    }
+
+    /**
+     * Applies an engine the way the processor does: DEX files in order, stopping at the first one
+     * that gets patched. Only the engine calls are timed.
+     */
+    private static EngineRun runOnApk(PatchEngine engine, SyntheticInput input, File engineDir) throws IOException {
+        EngineRun run = new EngineRun();
+        try (ZipFile apk = new ZipFile(input.apkFile)) {
+            List<String> dexPaths = ApkProcessor.getSortedDexFilePaths(input.apkFile);
+            for (int i = 0; i < dexPaths.size(); i++) {
+                File attemptDir = new File(engineDir, "attempt_" + i);
+                if (!attemptDir.mkdirs()) {
+                    throw new IOException("Cannot create " + attemptDir);
+                }
+                File dexFile = new File(attemptDir, "in.dex");
+                try (InputStream is = apk.getInputStream(apk.getEntry(dexPaths.get(i)))) {
+                    Files.copy(is, dexFile.toPath());
+                }
+                File scratch = new File(attemptDir, "work");
+                if (!scratch.mkdirs()) {
+                    throw new IOException("Cannot create " + scratch);
+                }
+                long start = System.nanoTime();
+                boolean patched = engine.patch(dexFile, scratch, input.classPath, input.methodSignature,
+                        input.replacementSmali);
+                run.nanos += System.nanoTime() - start;
+                if (patched) {
+                    run.patchedEntry = dexPaths.get(i);
+                    run.patchedDex = dexFile;
+                    break;
+                }
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Returns null if the runs are equivalent, an empty string if the candidate declined an input
+     * the reference patched, or a description of the first difference.
+     */
+    private static String compareRuns(EngineRun reference, EngineRun candidate) throws IOException {
+        if (reference.patchedEntry == null) {
+            return candidate.patchedEntry == null ? null
+                    : "patched " + candidate.patchedEntry + ", the reference patched nothing";
+        }
+        if (candidate.patchedEntry == null) {
+            return "";
+        }
+        if (!reference.patchedEntry.equals(candidate.patchedEntry)) {
+            return "patched " + candidate.patchedEntry + ", the reference patched " + reference.patchedEntry;
+        }
+        return compareDexFiles(reference.patchedDex, candidate.patchedDex);
+    }
+
+    /**
+     * Compares two DEX files class by class on their canonical Smali text, so pool order, layout and
+     * instruction encoding do not matter but every member, flag, annotation and instruction does.
+     */
+    static String compareDexFiles(File expectedDex, File actualDex) throws IOException {
+        Map<String, String> expected = canonicalClasses(expectedDex);
+        Map<String, String> actual = canonicalClasses(actualDex);
+        for (String type : expected.keySet()) {
+            if (!actual.containsKey(type)) {
+                return "class " + type + " missing";
+            }
+        }
+        for (String type : actual.keySet()) {
+            if (!expected.containsKey(type)) {
+                return "unexpected class " + type;
+            }
+        }
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            String difference = firstDifference(entry.getValue(), actual.get(entry.getKey()));
+            if (difference != null) {
+                return entry.getKey() + ": " + difference;
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, String> canonicalClasses(File dexFile) throws IOException {
+        BaksmaliOptions options = new BaksmaliOptions();
+        options.sequentialLabels = true; // labels by position rather than code offset
+        Map<String, String> classes = new TreeMap<>();
+        for (ClassDef classDef : DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault()).getClasses()) {
+            StringWriter text = new StringWriter();
+            try (BaksmaliWriter writer = new BaksmaliWriter(text, classDef.getType())) {
+                new ClassDefinition(options, classDef).writeTo(writer);
+            }
+            classes.put(classDef.getType(), stripTrailingNops(text.toString()));
+        }
+        return classes;
+    }
+
+    /**
+     * Drops nops at the end of each method body. They are unreachable after the final return and are
+     * what an in-place patch pads the rest of the old code_item with.
+     */
+    private static String stripTrailingNops(String smali) {
+        String[] lines = smali.split("\n");
+        List<String> kept = new ArrayList<>(lines.length);
+        for (String line : lines) {
+            if (line.trim().equals(".end method")) {
+                while (!kept.isEmpty() && (kept.get(kept.size() - 1).trim().equals("nop")
+                        || kept.get(kept.size() - 1).trim().isEmpty())) {
+                    kept.remove(kept.size() - 1);
+                }
+            }
+            kept.add(line);
+        }
+        return String.join("\n", kept);
+    }
+
+    private static String firstDifference(String expected, String actual) {
+        String[] expectedLines = expected.split("\n");
+        String[] actualLines = actual.split("\n");
+        int lines = Math.min(expectedLines.length, actualLines.length);
+        for (int i = 0; i < lines; i++) {
+            if (!expectedLines[i].equals(actualLines[i])) {
+                return "line " + (i + 1) + ": expected '" + expectedLines[i].trim() + "' but was '"
+                        + actualLines[i].trim() + "'";
+            }
+        }
+        if (expectedLines.length != actualLines.length) {
+            return expectedLines.length + " lines expected but was " + actualLines.length;
+        }
+        return null;
+    }
+
+    // --- Input generation ---
+
+    private static class SyntheticInput {
+        File apkFile;
+        String classPath = ApkProcessor.TARGET_CLASS_PATH;
+        String methodSignature = ApkProcessor.TARGET_METHOD_SIGNATURE;
+        String replacementSmali;
+        String description;
+    }
+
+    private static final String CONTEXT = "Landroid/content/Context;";
+
+    /**
+     * Builds a random APK with one to four DEX files. Most inputs contain the built-in target class
+     * and method somewhere; the rest check that every engine agrees on leaving the APK alone.
+     */
+    private static SyntheticInput generateInput(Random random, File inputDir) throws IOException {
+        SyntheticInput input = new SyntheticInput();
+        int dexCount = random.nextInt(4) == 0 ? 2 + random.nextInt(3) : 1;
+        boolean hasTarget = random.nextInt(10) != 0;
+        int targetDex = random.nextInt(dexCount);
+        boolean largeTarget = random.nextInt(5) == 0;
+        boolean hasDelegate = random.nextInt(8) != 0;
+        int originalBodyUnits = 1 + random.nextInt(30);
+        boolean tryBlock = random.nextBoolean();
+        int replacementVariant = random.nextInt(6);
+        input.replacementSmali = replacementVariant(replacementVariant);
+
+        List<String> dexEntries = new ArrayList<>();
+        File apkFile = new File(inputDir, "input.apk");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(apkFile))) {
+            for (int d = 0; d < dexCount; d++) {
+                File sourceDir = new File(inputDir, "src" + d);
+                int classCount = 3 + random.nextInt(40);
+                for (int c = 0; c < classCount; c++) {
+                    String type = "com/synthetic/d" + d + "/C" + c;
+                    writeSmali(sourceDir, type, fillerClass(random, type, 2 + random.nextInt(30)));
+                }
+                // Same signature line in a class whose name shares the target's prefix
+                String decoyPath = ApkProcessor.TARGET_CLASS_PATH + "$Decoy" + d;
+                writeSmali(sourceDir, decoyPath, targetClass(random, decoyPath, 3, true, 4, false));
+                if (hasTarget && d == targetDex) {
+                    writeSmali(sourceDir, ApkProcessor.TARGET_CLASS_PATH, targetClass(random,
+                            ApkProcessor.TARGET_CLASS_PATH, largeTarget ? 500 + random.nextInt(1000) : random.nextInt(20),
+                            hasDelegate, originalBodyUnits, tryBlock));
+                }
+                File dexFile = new File(inputDir, "classes" + d + ".dex");
+                SmaliOptions options = new SmaliOptions();
+                options.outputDexFile = dexFile.getAbsolutePath();
+                if (!Smali.assemble(options, sourceDir.getAbsolutePath())) {
+                    throw new IOException("Failed to assemble synthetic DEX " + d);
+                }
+                String entryName = d == 0 ? "classes.dex" : "classes" + (d + 1) + ".dex";
+                dexEntries.add(entryName);
+                zos.putNextEntry(new ZipEntry(entryName));
+                Files.copy(dexFile.toPath(), zos);
+                zos.closeEntry();
+            }
+        }
+        input.apkFile = apkFile;
+        input.description = dexEntries.size() + " dex"
+                + (hasTarget ? ", target in " + dexEntries.get(targetDex) : ", no target")
+                + (largeTarget ? ", large class" : "")
+                + (hasDelegate ? "" : ", no delegate")
+                + ", " + originalBodyUnits + " body units" + (tryBlock ? " + try" : "")
+                + ", replacement variant " + replacementVariant;
+        return input;
+    }
+
+    private static void writeSmali(File sourceDir, String classPath, String smali) throws IOException {
+        File file = new File(sourceDir, classPath + ".smali");
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Cannot create " + file.getParentFile());
+        }
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(smali);
+        }
+    }
+
+    /**
+     * The built-in replacement re-indented or re-wrapped, plus one different body that only the
+     * Smali-based engines can apply.
+     */
+    private static String replacementVariant(int variant) {
+        String builtIn = ApkProcessor.REPLACEMENT_METHOD_SMALI;
+        switch (variant) {
+            case 1:
+                return builtIn.replace("\n    ", "\n\t");
+            case 2:
+                return "  " + builtIn.replace("\n    ", "\n \t      ").replace("\n", "   \n");
+            case 3:
+                return builtIn.replace("\n", "\r\n");
+            case 4:
+                return builtIn.replace("\n\n", "\n\n\n\n").replace("\n    ", "\n");
+            case 5:
+                return ".method public onCreate(Landroid/content/Context;)Z\n"
+                        + "\t.registers 2\n"
+                        + "        const/4 v0, 0x1\n"
+                        + "  return v0\n"
+                        + ".end method";
+            default:
+                return builtIn;
+        }
+    }
+
+    private static String classHeader(String type) {
+        String simpleName = type.substring(type.lastIndexOf('/') + 1);
+        return ".class public L" + type + ";\n"
+                + ".super Ljava/lang/Object;\n"
+                + ".source \"" + simpleName + ".java\"\n\n"
+                + ".method public constructor <init>()V\n"
+                + "    .registers 1\n"
+                + "    invoke-direct {p0}, Ljava/lang/Object;-><init>()V\n"
+                + "    return-void\n"
+                + ".end method\n\n";
+    }
+
+    private static String fillerClass(Random random, String type, int methodCount) {
+        StringBuilder sb = new StringBuilder(classHeader(type));
+        sb.append(".field public counter:I\n\n");
+        for (int m = 0; m < methodCount; m++) {
+            appendFillerMethod(sb, random, type, m);
+        }
+        return sb.toString();
+    }
+
+    private static void appendFillerMethod(StringBuilder sb, Random random, String type, int index) {
+        // Every third method gets an overload with the same name
+        int overloads = index % 3 == 0 ? 2 : 1;
+        for (int o = 0; o < overloads; o++) {
+            String params = o == 0 ? "I" : "II";
+            sb.append(".method public static m").append(index).append('(').append(params).append(")I\n");
+            sb.append("    .registers ").append(2 + params.length()).append('\n');
+            sb.append("    .line ").append(10 + index).append('\n');
+            sb.append("    const/16 v0, ").append(random.nextInt(1000)).append('\n');
+            int ops = 1 + random.nextInt(12);
+            for (int i = 0; i < ops; i++) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        sb.append("    add-int/2addr v0, p0\n");
+                        break;
+                    case 1:
+                        sb.append("    mul-int/lit8 v0, v0, ").append(1 + random.nextInt(100)).append('\n');
+                        break;
+                    default:
+                        sb.append("    if-eqz v0, :skip_").append(i).append('\n');
+                        sb.append("    add-int/lit8 v0, v0, -0x1\n");
+                        sb.append("    :skip_").append(i).append('\n');
+                }
+            }
+            if (o == 1) {
+                sb.append("    add-int/2addr v0, p1\n");
+            }
+            sb.append("    return v0\n");
+            sb.append(".end method\n\n");
+        }
+    }
+
+    /**
+     * A DefaultProvider-shaped class: onCreate(Context)Z among filler methods, its overloads, and the
+     * sCreated field and onCreate(Context, Context)V delegate the replacement uses.
+     */
+    private static String targetClass(Random random, String type, int fillerMethods, boolean hasDelegate,
+                                      int bodyUnits, boolean tryBlock) {
+        StringBuilder sb = new StringBuilder(classHeader(type));
+        if (hasDelegate) {
+            sb.append(".field private static sCreated:Z\n\n");
+        }
+        int targetPosition = fillerMethods > 0 ? random.nextInt(fillerMethods) : 0;
+        for (int m = 0; m < fillerMethods; m++) {
+            if (m == targetPosition) {
+                appendOriginalOnCreate(sb, type, bodyUnits, tryBlock);
+            }
+            appendFillerMethod(sb, random, type, m);
+        }
+        if (fillerMethods == 0) {
+            appendOriginalOnCreate(sb, type, bodyUnits, tryBlock);
+        }
+        sb.append(".method public onCreate()V\n    .registers 1\n    return-void\n.end method\n\n");
+        sb.append(".method public static onCreate(I)Z\n    .registers 2\n    const/4 v0, 0x0\n    return v0\n.end method\n\n");
+        if (hasDelegate) {
+            sb.append(".method public onCreate(").append(CONTEXT).append(CONTEXT).append(")V\n")
+                    .append("    .registers 3\n    return-void\n.end method\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static void appendOriginalOnCreate(StringBuilder sb, String type, int bodyUnits, boolean tryBlock) {
+        sb.append(".method public onCreate(").append(CONTEXT).append(")Z\n");
+        sb.append("    .registers 3\n");
+        sb.append("    .param p1, \"context\"\n");
+        sb.append("    .line 42\n");
+        for (int i = 0; i < bodyUnits; i++) {
+            sb.append("    const/4 v0, 0x0\n");
+        }
+        if (tryBlock) {
+            sb.append("    :try_start_0\n");
+            sb.append("    invoke-virtual {p0}, L").append(type).append(";->onCreate()V\n");
+            sb.append("    :try_end_0\n");
+            sb.append("    .catch Ljava/lang/RuntimeException; {:try_start_0 .. :try_end_0} :catch_0\n");
+        }
+        sb.append("    return v0\n");
+        if (tryBlock) {
+            sb.append("    :catch_0\n");
+            sb.append("    move-exception v0\n");
+            sb.append("    const/4 v0, 0x0\n");
+            sb.append("    return v0\n");
+        }
+        sb.append(".end method\n\n");
+    }
+
+    /**
+     * Smali lines trimmed, blank lines and line ending differences dropped.
+     */
+    private static String normalizeSmali(String smali) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : smali.split("\n")) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty()) {
+                sb.append(trimmed).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("Could not delete " + file.getAbsolutePath());
+        }
+    }
+}
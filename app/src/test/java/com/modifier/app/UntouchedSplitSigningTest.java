@@ -0,0 +1,110 @@
+package com.modifier.app;
+
+import com.android.apksig.ApkSigner;
+import com.android.apksig.ApkVerifier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Untouched splits of a bundle are laid out and signed as CPU tasks, one permit each. A bundle with
+ * more splits to lay out than there are permits (battery saver, thermal throttling, or just many
+ * splits) has to finish instead of leaving every permit held by a task that waits for more permits.
+ */
+public class UntouchedSplitSigningTest {
+    private static final int PERMITS = 2;
+    private static final int SPLITS = 3 * PERMITS;
+    private static final long TIMEOUT_SECONDS = 120;
+    private static final String NATIVE_LIB = "lib/arm64-v8a/libsplit.so";
+    // Several deflate blocks, so a fanned-out deflater would hand blocks to the CPU executor
+    private static final int RESOURCE_SIZE = 1024 * 1024;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void moreSplitsToLayOutThanPermitsFinish() throws Exception {
+        ComputeScheduler scheduler = new ComputeScheduler(PERMITS);
+        List<ApkSigner.SignerConfig> signerConfigs;
+        try (InputStream keystore = new FileInputStream("src/main/assets/debug.keystore")) {
+            signerConfigs = SigningKeys.loadDebugSigner(keystore);
+        }
+        File splitsDir = temporaryFolder.newFolder("splits");
+        File relaidDir = temporaryFolder.newFolder("relaid");
+        File signedDir = temporaryFolder.newFolder("signed");
+        // Stores native libraries page-aligned, so every split has to be laid out anew
+        OutputProfile profile = OutputProfile.INSTALL_OPTIMIZED.forSplit();
+
+        Random random = new Random(1);
+        List<File> signedSplits = new ArrayList<>();
+        List<Future<?>> jobs = new ArrayList<>();
+        PipelineTracer tracer = new PipelineTracer("untouched splits");
+        for (int i = 0; i < SPLITS; i++) {
+            File split = writeSplit(new File(splitsDir, "split_" + i + ".apk"), random);
+            File signedSplit = new File(signedDir, split.getName());
+            signedSplits.add(signedSplit);
+            jobs.add(ApkProcessor.submitUntouchedSplit(scheduler, split.getName(), split, relaidDir, signedSplit,
+                    profile, signerConfigs, tracer));
+        }
+
+        for (Future<?> job : jobs) {
+            try {
+                job.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                fail(SPLITS + " splits on " + PERMITS + " permits did not finish: " + scheduler.getStats());
+            }
+        }
+
+        for (File signedSplit : signedSplits) {
+            ApkVerifier.Result verification = new ApkVerifier.Builder(signedSplit)
+                    .setMinCheckedPlatformVersion(21)
+                    .build()
+                    .verify();
+            assertTrue(signedSplit.getName() + " is not validly signed: " + verification.getErrors(),
+                    verification.isVerified());
+            try (ZipFile zipFile = new ZipFile(signedSplit)) {
+                assertEquals(signedSplit.getName() + " was not laid out", ZipEntry.STORED,
+                        zipFile.getEntry(NATIVE_LIB).getMethod());
+            }
+        }
+    }
+
+    private static File writeSplit(File file, Random random) throws IOException {
+        byte[] nativeLib = new byte[64 * 1024];
+        random.nextBytes(nativeLib);
+        StringBuilder resource = new StringBuilder(RESOURCE_SIZE);
+        while (resource.length() < RESOURCE_SIZE) {
+            resource.append("resource line ").append(random.nextInt(1000)).append('\n');
+        }
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+            zos.putNextEntry(new ZipEntry(NATIVE_LIB));
+            zos.write(nativeLib);
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("res/raw/data.txt"));
+            zos.write(resource.toString().getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+        }
+        return file;
+    }
+}